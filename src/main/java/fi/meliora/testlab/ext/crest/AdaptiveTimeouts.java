@@ -0,0 +1,122 @@
+package fi.meliora.testlab.ext.crest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Computes the timeouts of uploads to Testlab.
+ *
+ * The connect timeout is set with the TESTLAB_SENDER_CONNECT_TIMEOUT system property
+ * (milliseconds, default 10000). The read timeout is the time Testlab is given to take the
+ * results and respond: TESTLAB_SENDER_READ_TIMEOUT (default 30000) plus three times the
+ * time the payload is expected to take to ingest, at most TESTLAB_SENDER_MAX_READ_TIMEOUT
+ * (default 600000).
+ *
+ * The ingest time is estimated from the size of the payload and a moving average of the
+ * throughput observed for the endpoint. Until uploads have been observed, a throughput of
+ * 50 kB/s is assumed.
+ *
+ * Adaptive timeouts apply to {@link HttpClientTransport}, {@link CrestTransport} has the
+ * fixed timeouts of {@link TestResultResource}.
+ *
+ * @author Meliora Ltd
+ */
+public class AdaptiveTimeouts {
+    private static final Logger log = LoggerFactory.getLogger(AdaptiveTimeouts.class);
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static final int DEFAULT_READ_TIMEOUT = 30000;
+    public static final int DEFAULT_MAX_READ_TIMEOUT = 600000;
+
+    // bytes per millisecond, about kB/s
+    public static final double DEFAULT_THROUGHPUT = 50d;
+
+    // weight of a new observation in the moving averages
+    private static final double ALPHA = 0.3d;
+    // smaller uploads are dominated by the latency and do not tell the throughput
+    private static final long MIN_OBSERVED_BYTES = 16 * 1024;
+    private static final double SAFETY_FACTOR = 3d;
+
+    private static AdaptiveTimeouts instance = new AdaptiveTimeouts();
+
+    public static AdaptiveTimeouts getInstance() {
+        return instance;
+    }
+
+    private final ConcurrentMap<String, Double> throughputs = new ConcurrentHashMap<String, Double>();
+
+    private AdaptiveTimeouts() {
+    }
+
+    public static int getConnectTimeout() {
+        return Integer.getInteger("TESTLAB_SENDER_CONNECT_TIMEOUT", DEFAULT_CONNECT_TIMEOUT);
+    }
+
+    public static int getBaseReadTimeout() {
+        return Integer.getInteger("TESTLAB_SENDER_READ_TIMEOUT", DEFAULT_READ_TIMEOUT);
+    }
+
+    public static int getMaxReadTimeout() {
+        return Math.max(getBaseReadTimeout(), Integer.getInteger("TESTLAB_SENDER_MAX_READ_TIMEOUT", DEFAULT_MAX_READ_TIMEOUT));
+    }
+
+    /**
+     * @param url url of the endpoint
+     * @param bytes size of the payload
+     * @return read timeout in milliseconds
+     */
+    public int getReadTimeout(String url, long bytes) {
+        double ingestMillis = bytes / getThroughput(url);
+        long timeout = getBaseReadTimeout() + (long) (SAFETY_FACTOR * ingestMillis);
+        return (int) Math.min(timeout, getMaxReadTimeout());
+    }
+
+    /**
+     * @param url url of the endpoint
+     * @return estimated throughput of the endpoint in bytes per millisecond
+     */
+    public double getThroughput(String url) {
+        Double throughput = throughputs.get(url);
+        return throughput != null ? throughput : DEFAULT_THROUGHPUT;
+    }
+
+    /**
+     * Updates the estimates with an upload Testlab has responded to.
+     *
+     * @param url url of the endpoint
+     * @param bytes bytes sent
+     * @param millis milliseconds from sending to the response
+     */
+    public void observe(String url, long bytes, long millis) {
+        if(bytes >= MIN_OBSERVED_BYTES) {
+            double sample = (double) bytes / Math.max(1L, millis);
+            double estimate = throughputs.merge(url, sample, AdaptiveTimeouts::average);
+            if(log.isDebugEnabled())
+                log.debug("Observed {} bytes in {} ms to {}, estimated throughput {} bytes/ms.", new Object[] { bytes, millis, url, estimate });
+        }
+    }
+
+    private static double average(double estimate, double sample) {
+        return estimate + ALPHA * (sample - estimate);
+    }
+
+    /**
+     * @return endpoint url -> estimated throughput in bytes per millisecond
+     */
+    public Map<String, Double> getThroughputs() {
+        return new TreeMap<String, Double>(throughputs);
+    }
+
+    /**
+     * Forgets the estimates.
+     */
+    public void reset() {
+        throughputs.clear();
+    }
+
+}
@@ -6,6 +6,10 @@ import org.slf4j.LoggerFactory;
 
 import java.lang.Class;
 import java.lang.String;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
 /**
  * A helper class to provide crest endpoints for calling external rest endpoints.
@@ -21,6 +25,13 @@ public class CrestEndpointFactory {
         return instance;
     }
 
+    // endpoints are thread-safe and reused, the cache is cleared if it grows past this
+    public static final int MAX_CACHED_ENDPOINTS = 256;
+
+    private final ConcurrentMap<String, Object> endpoints = new ConcurrentHashMap<String, Object>();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+
     private CrestEndpointFactory() {
     }
 
@@ -35,12 +46,54 @@ public class CrestEndpointFactory {
      * @return endpoint
      */
     public <T>T getEndpoint(String url, String username, String password, Class<T> endpointClass) {
-        T endpoint;
-        CRestBuilder b = new CRestBuilder().endpoint(url);
-        if(username != null && password != null) {
-            b = b.basicAuth(username, password);
+        return cached(endpointClass, url, username, password, () -> {
+            CRestBuilder b = new CRestBuilder().endpoint(url);
+            if(username != null && password != null) {
+                b = b.basicAuth(username, password);
+            }
+            return b.build().build(endpointClass);
+        });
+    }
+
+    /**
+     * Returns the transport to send results to Testlab with, picked with the
+     * TESTLAB_SENDER_TRANSPORT system property. Transports are cached as endpoints are.
+     *
+     * @param url url
+     * @param username user name
+     * @param password password
+     * @return transport
+     */
+    public TestlabTransport getTransport(String url, String username, String password) {
+        if(getTransportType() == TestlabTransport.Type.CREST)
+            return cached(CrestTransport.class, url, username, password,
+                    () -> new CrestTransport(getEndpoint(url, username, password, TestResultResource.class)));
+        return cached(HttpClientTransport.class, url, username, password,
+                () -> new HttpClientTransport(url, username, password));
+    }
+
+    /**
+     * @return transport configured with the TESTLAB_SENDER_TRANSPORT system property, 'http' by default
+     */
+    public static TestlabTransport.Type getTransportType() {
+        return "crest".equalsIgnoreCase(System.getProperty("TESTLAB_SENDER_TRANSPORT"))
+                ? TestlabTransport.Type.CREST : TestlabTransport.Type.HTTP;
+    }
+
+    private <T>T cached(Class<T> type, String url, String username, String password, Supplier<T> factory) {
+        String key = type.getName() + '\n' + url + '\n' + username + '\n' + password;
+        Object cached = endpoints.get(key);
+        if(cached != null) {
+            cacheHits.increment();
+            return type.cast(cached);
         }
-        endpoint = b.build().build(endpointClass);
+        cacheMisses.increment();
+
+        T endpoint = factory.get();
+
+        if(endpoints.size() >= MAX_CACHED_ENDPOINTS)
+            endpoints.clear();
+        endpoints.put(key, endpoint);
 
         if(log.isDebugEnabled())
             log.debug("Returning endpoint to {}: {}", url, endpoint);
@@ -48,12 +101,31 @@ public class CrestEndpointFactory {
         return endpoint;
     }
 
+    /**
+     * @return number of endpoints returned from the cache
+     */
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    /**
+     * @return number of endpoints constructed
+     */
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    /**
+     * Clears the cached endpoints.
+     */
+    public void clearCache() {
+        endpoints.clear();
+    }
+
     /**
      * Returns an endpoint to Testlab.
      *
-     * If onpremiseUrl is set it used as a base url. It not, this methods peeks for
-     * TESTLAB_&lt;companyid in upper case&gt; system environment variable for testlab api address.
-     * If none is set a default of https://companyid.melioratestlab.com/api is used.
+     * See {@link #getTestlabUrl(String, String)} for the url used.
      *
      * @param companyId company id
      * @param onpremiseUrl onpremise url
@@ -63,6 +135,45 @@ public class CrestEndpointFactory {
      * @return endpoint
      */
     public <T>T getTestlabEndpoint(String companyId, String onpremiseUrl, String apiKey, Class<T> endpointClass) {
+        String url = getTestlabUrl(companyId, onpremiseUrl);
+        if(onpremiseUrl != null && onpremiseUrl.trim().length() > 0) {
+            // force company id as "company" for calls to on-premise installations
+            companyId = "company";
+        }
+        return getEndpoint(url, companyId, apiKey, endpointClass);
+    }
+
+    /**
+     * Returns the transport to send results to Testlab with.
+     *
+     * See {@link #getTestlabUrl(String, String)} for the url used.
+     *
+     * @param companyId company id
+     * @param onpremiseUrl onpremise url
+     * @param apiKey api key
+     * @return transport
+     */
+    public TestlabTransport getTestlabTransport(String companyId, String onpremiseUrl, String apiKey) {
+        String url = getTestlabUrl(companyId, onpremiseUrl);
+        if(onpremiseUrl != null && onpremiseUrl.trim().length() > 0) {
+            // force company id as "company" for calls to on-premise installations
+            companyId = "company";
+        }
+        return getTransport(url, companyId, apiKey);
+    }
+
+    /**
+     * Returns the api url of Testlab.
+     *
+     * If onpremiseUrl is set it used as a base url. It not, this methods peeks for
+     * TESTLAB_&lt;companyid in upper case&gt; system environment variable for testlab api address.
+     * If none is set a default of https://companyid.melioratestlab.com/api is used.
+     *
+     * @param companyId company id
+     * @param onpremiseUrl onpremise url
+     * @return url
+     */
+    public String getTestlabUrl(String companyId, String onpremiseUrl) {
         String url;
         if(onpremiseUrl != null && onpremiseUrl.trim().length() > 0) {
             // on-premise testlab
@@ -73,8 +184,6 @@ public class CrestEndpointFactory {
             }
             sb.append("api");
             url = sb.toString();
-            // force company id as "company" for calls to on-premise installations
-            companyId = "company";
 
             if(log.isDebugEnabled())
                 log.debug("Using on-premise url {} as testlab endpoint.", url);
@@ -88,8 +197,7 @@ public class CrestEndpointFactory {
             if(log.isDebugEnabled())
                 log.debug("Using hosted url {} as testlab endpoint.", url);
         }
-
-        return getEndpoint(url, companyId, apiKey, endpointClass);
+        return url;
     }
 
 }
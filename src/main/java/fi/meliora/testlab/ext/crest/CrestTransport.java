@@ -0,0 +1,51 @@
+package fi.meliora.testlab.ext.crest;
+
+import fi.meliora.testlab.ext.crest.exception.TestlabAPIException;
+import fi.meliora.testlab.ext.rest.model.AddTestResultResponse;
+import fi.meliora.testlab.ext.rest.model.TestResult;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Sends the results with the CRest proxy of {@link TestResultResource}. CRest blocks for
+ * the request so the async variant runs it in the common pool.
+ *
+ * @author Meliora Ltd
+ */
+public class CrestTransport implements TestlabTransport {
+
+    private final TestResultResource endpoint;
+
+    public CrestTransport(TestResultResource endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    @Override
+    public AddTestResultResponse addTestResult(TestResult data, WireFormatNegotiator.WireFormat format, String idempotencyKey)
+            throws TestlabAPIException {
+        return format == WireFormatNegotiator.WireFormat.SMILE
+                ? endpoint.addTestResultSmile(data, idempotencyKey)
+                : endpoint.addTestResult(data, idempotencyKey);
+    }
+
+    @Override
+    public CompletableFuture<AddTestResultResponse> addTestResultAsync(final TestResult data, final WireFormatNegotiator.WireFormat format,
+                                                                       final String idempotencyKey) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return addTestResult(data, format, idempotencyKey);
+            } catch (RuntimeException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "CrestTransport{" +
+                "endpoint=" + endpoint +
+                '}';
+    }
+
+}
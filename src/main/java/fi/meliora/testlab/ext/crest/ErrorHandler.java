@@ -7,8 +7,13 @@ import org.codegist.crest.io.Response;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.Scanner;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 
 /**
  * Our Testlab API call error handler.
@@ -18,6 +23,11 @@ import java.util.Scanner;
 public class ErrorHandler implements org.codegist.crest.handler.ErrorHandler {
     private static final Logger log = LoggerFactory.getLogger(ErrorHandler.class);
 
+    // the response body is truncated to this many characters
+    public static final int MAX_RESPONSE_CHARS = 400;
+    // at most this many bytes of the response body are read, enough for MAX_RESPONSE_CHARS in any charset
+    public static final int MAX_RESPONSE_BYTES = 4096;
+
     @Override
     public <T> T handle(Request request, Exception e) throws Exception {
         if(e instanceof RequestException) {
@@ -39,23 +49,9 @@ public class ErrorHandler implements org.codegist.crest.handler.ErrorHandler {
                     );
 
                 // map status code to checked exceptions
-                int statusCode = testlabResponse.getStatusCode();
-                if(statusCode == javax.ws.rs.core.Response.Status.NOT_FOUND.getStatusCode()) {
-                    // call returned not found status
-                    throw new NotFoundException(responseData);
-                } else if(statusCode == javax.ws.rs.core.Response.Status.CONFLICT.getStatusCode()) {
-                    throw new ConflictException(responseData);
-                } else if(statusCode == javax.ws.rs.core.Response.Status.SERVICE_UNAVAILABLE.getStatusCode()) {
-                    throw new ServiceUnavailableException(responseData);
-                } else if(statusCode == javax.ws.rs.core.Response.Status.UNAUTHORIZED.getStatusCode()) {
-                    throw new UnauthorizedException(responseData);
-                } else if(statusCode == javax.ws.rs.core.Response.Status.BAD_REQUEST.getStatusCode()) {
-                    throw new ValidationException(responseData);
-                }
-
-                if(responseData != null && responseData.length() > 0) {
-                    throw new TestlabAPIException(responseData);
-                }
+                TestlabAPIException mapped = toException(testlabResponse.getStatusCode(), responseData, null);
+                if(mapped != null)
+                    throw mapped;
             }
         }
 
@@ -68,6 +64,83 @@ public class ErrorHandler implements org.codegist.crest.handler.ErrorHandler {
         throw e;
     }
 
+    /**
+     * Maps a failed response of Testlab to an exception carrying the status and the retry hint.
+     *
+     * @param statusCode HTTP status code
+     * @param responseData response body, if any
+     * @param retryAfterMillis milliseconds to wait before retrying, null if not hinted
+     * @return exception, null if the status is not mapped, not retryable and there is no response body
+     */
+    public static TestlabAPIException toException(int statusCode, String responseData, Long retryAfterMillis) {
+        if(statusCode == javax.ws.rs.core.Response.Status.NOT_FOUND.getStatusCode()) {
+            // call returned not found status
+            return new NotFoundException(responseData, statusCode, retryAfterMillis);
+        } else if(statusCode == javax.ws.rs.core.Response.Status.CONFLICT.getStatusCode()) {
+            return new ConflictException(responseData, statusCode, retryAfterMillis);
+        } else if(statusCode == javax.ws.rs.core.Response.Status.SERVICE_UNAVAILABLE.getStatusCode()) {
+            return new ServiceUnavailableException(responseData, statusCode, retryAfterMillis);
+        } else if(statusCode == javax.ws.rs.core.Response.Status.UNAUTHORIZED.getStatusCode()) {
+            return new UnauthorizedException(responseData, statusCode, retryAfterMillis);
+        } else if(statusCode == javax.ws.rs.core.Response.Status.BAD_REQUEST.getStatusCode()) {
+            return new ValidationException(responseData, statusCode, retryAfterMillis);
+        } else if(statusCode == javax.ws.rs.core.Response.Status.UNSUPPORTED_MEDIA_TYPE.getStatusCode()) {
+            return new UnsupportedMediaTypeException(responseData, statusCode, retryAfterMillis);
+        }
+
+        TestlabAPIException e = new TestlabAPIException(responseData, statusCode, retryAfterMillis);
+        if((responseData != null && responseData.length() > 0) || e.isRetryable()) {
+            return e;
+        }
+        return null;
+    }
+
+    /**
+     * Parses the Retry-After header of a response.
+     *
+     * @param retryAfter value of the header, delay in seconds or an HTTP date
+     * @return milliseconds to wait, null if not set or not valid
+     */
+    public static Long parseRetryAfter(String retryAfter) {
+        if(retryAfter == null || retryAfter.trim().length() == 0)
+            return null;
+        retryAfter = retryAfter.trim();
+        try {
+            return Math.max(0L, Long.parseLong(retryAfter)) * 1000L;
+        } catch (NumberFormatException e) {
+            // not seconds
+        }
+        try {
+            ZonedDateTime date = ZonedDateTime.parse(retryAfter, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0L, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads at most MAX_RESPONSE_BYTES of a response body with a fixed-size buffer, leaving the
+     * rest of the stream unread for the caller to abort by closing it.
+     *
+     * @param is stream of the response body
+     * @param charset charset of the body
+     * @return the body truncated to MAX_RESPONSE_CHARS characters, null if empty
+     * @throws IOException if reading fails
+     */
+    public static String readResponse(InputStream is, Charset charset) throws IOException {
+        byte[] buffer = new byte[MAX_RESPONSE_BYTES];
+        int n = 0;
+        int read;
+        while(n < buffer.length && (read = is.read(buffer, n, buffer.length - n)) != -1)
+            n += read;
+        if(n == 0)
+            return null;
+        String responseData = new String(buffer, 0, n, charset);
+        if(responseData.length() > MAX_RESPONSE_CHARS || n == buffer.length)
+            responseData = responseData.substring(0, Math.min(responseData.length(), MAX_RESPONSE_CHARS)) + "...";
+        return responseData;
+    }
+
     protected String getResponseIfAny(Response response) {
         // read response
         String responseData = null;
@@ -75,13 +148,8 @@ public class ErrorHandler implements org.codegist.crest.handler.ErrorHandler {
         try {
             is = response.asStream();
             if(is != null) {
-                String charset = response.getCharset() != null ? response.getCharset().name() : "UTF-8";
-                Scanner s = new Scanner(is, charset).useDelimiter("\\A");
-                if(s.hasNext())
-                    responseData = s.next();
+                responseData = readResponse(is, response.getCharset() != null ? response.getCharset() : StandardCharsets.UTF_8);
             }
-            if(responseData != null && responseData.length() > 400)
-                responseData = responseData.substring(0, 400) + "...";
         } catch (Exception e) {
             // could not read response, just ignore
         } finally {
@@ -0,0 +1,350 @@
+package fi.meliora.testlab.ext.crest;
+
+import fi.meliora.testlab.ext.crest.exception.TestlabAPIException;
+import fi.meliora.testlab.ext.rest.model.AddTestResultResponse;
+import fi.meliora.testlab.ext.rest.model.TestResult;
+import org.codegist.crest.serializer.jackson.SmileEntityWriter;
+import org.codehaus.jackson.map.ObjectWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends the results with java.net.http.
+ *
+ * All endpoints share a single HttpClient and its connection pool. For https urls HTTP/2 is
+ * preferred so concurrent uploads to the same Testlab host are multiplexed over a connection,
+ * with HTTP/1.1 used if the server does not support it. Plain http urls, such as of on-premise
+ * installations, are sent with HTTP/1.1 as preferring HTTP/2 would send an h2c upgrade
+ * request with each upload. Payloads encoded by the caller are sent as they are and payloads
+ * estimated small by {@link PayloadEstimator} are serialized in memory, both with a known
+ * length. Larger ones are streamed: the results are serialized in chunks straight to the
+ * request as the client consumes them, without buffering the whole payload in memory. The
+ * streamed payloads are serialized on at most TESTLAB_SENDER_WRITER_THREADS (default 8)
+ * threads, further ones wait for a thread.
+ *
+ * The timeouts are computed by {@link AdaptiveTimeouts}, the connect timeout when the
+ * client is created and the read timeout for each request from the size of the payload:
+ * the length of the body when it is serialized in memory, otherwise the size estimated by
+ * {@link PayloadEstimator}. The estimate of the caller is used if given.
+ *
+ * @author Meliora Ltd
+ */
+public class HttpClientTransport implements TestlabTransport {
+    private static final Logger log = LoggerFactory.getLogger(HttpClientTransport.class);
+
+    // size of the chunks the body is published in and the chunks buffered ahead of the client
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int CHUNKS_BUFFERED = 16;
+
+    public static final int DEFAULT_WRITER_THREADS = 8;
+
+    private static final ExecutorService writers = createWriters();
+
+    private static final class ClientHolder {
+        private static final HttpClient client = createClient();
+    }
+
+    private final String url;
+    private final URI uri;
+    private final HttpClient.Version version;
+    private final String authorization;
+
+    /**
+     * @param url api url of Testlab
+     * @param username user name, null if not authenticated
+     * @param password password
+     */
+    public HttpClientTransport(String url, String username, String password) {
+        this.url = url;
+        this.uri = URI.create(url + (url.endsWith("/") ? "" : "/") + "testresult");
+        this.version = "https".equalsIgnoreCase(uri.getScheme()) ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1;
+        this.authorization = username != null && password != null
+                ? "Basic " + Base64.getEncoder().encodeToString((username + ":" + password).getBytes(StandardCharsets.UTF_8))
+                : null;
+    }
+
+    private static HttpClient createClient() {
+        HttpClient.Builder b = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofMillis(AdaptiveTimeouts.getConnectTimeout()))
+                .followRedirects(HttpClient.Redirect.NORMAL);
+        // as HttpURLConnection, use the proxies of the JVM
+        ProxySelector proxy = ProxySelector.getDefault();
+        if(proxy != null)
+            b = b.proxy(proxy);
+        if(log.isInfoEnabled())
+            log.info("Sending results to Testlab with the HTTP client of the JDK, set TESTLAB_SENDER_TRANSPORT=crest to send them with CRest.");
+        return b.build();
+    }
+
+    private static ExecutorService createWriters() {
+        int threads = Math.max(1, Integer.getInteger("TESTLAB_SENDER_WRITER_THREADS", DEFAULT_WRITER_THREADS));
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), r -> {
+                    Thread t = new Thread(r, "Testlab request writer");
+                    t.setDaemon(true);
+                    return t;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * @return the HttpClient shared by all endpoints
+     */
+    public static HttpClient getClient() {
+        return ClientHolder.client;
+    }
+
+    @Override
+    public AddTestResultResponse addTestResult(TestResult data, WireFormatNegotiator.WireFormat format, String idempotencyKey)
+            throws TestlabAPIException {
+        return addTestResult(data, null, null, format, idempotencyKey);
+    }
+
+    @Override
+    public AddTestResultResponse addTestResult(TestResult data, byte[] encoded, PayloadEstimator.Estimate estimate,
+                                               WireFormatNegotiator.WireFormat format, String idempotencyKey) throws TestlabAPIException {
+        CompletableFuture<AddTestResultResponse> response = send(data, encoded, estimate, format, idempotencyKey);
+        try {
+            return response.get();
+        } catch (InterruptedException e) {
+            // the cause is the interrupt as the interface does not declare it, see TestlabTransport
+            response.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while sending results to Testlab.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if(cause instanceof IOException)
+                throw new UncheckedIOException((IOException) cause);
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    @Override
+    public CompletableFuture<AddTestResultResponse> addTestResultAsync(TestResult data, WireFormatNegotiator.WireFormat format,
+                                                                       String idempotencyKey) {
+        return send(data, null, null, format, idempotencyKey);
+    }
+
+    protected CompletableFuture<AddTestResultResponse> send(TestResult data, byte[] encoded, PayloadEstimator.Estimate estimate,
+                                                            WireFormatNegotiator.WireFormat format, String idempotencyKey) {
+        boolean smile = format == WireFormatNegotiator.WireFormat.SMILE;
+        ObjectWriter writer = smile
+                ? ObjectMapperFactory.getInstance().getSmileTestResultWriter()
+                : ObjectMapperFactory.getInstance().getTestResultWriter();
+
+        final AtomicLong written = new AtomicLong();
+        // the body may be written on a writer thread
+        final RequestTap.Request tapped = RequestTap.currentRequest();
+        HttpRequest.BodyPublisher body;
+        if(encoded == null && estimate == null)
+            estimate = PayloadEstimator.getEstimate(data);
+        long bytes = encoded != null ? encoded.length : estimate.getBytes();
+        if(encoded != null) {
+            // encoded by the caller, only copied if tapped
+            if(tapped != null) {
+                try (OutputStream out = RequestTap.tee(OutputStream.nullOutputStream(), tapped)) {
+                    out.write(encoded);
+                } catch (IOException e) {
+                    log.warn("Could not capture the body of the request.", e);
+                }
+            }
+            written.set(encoded.length);
+            body = HttpRequest.BodyPublishers.ofByteArray(encoded);
+        } else if(estimate.getStrategy() == PayloadEstimator.Strategy.SINGLE) {
+            // small enough to serialize in memory and send with a known length
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            PublishStats stats = PublishStats.current();
+            try (OutputStream out = RequestTap.tee(stats != null ? stats.record(buffer) : buffer, tapped)) {
+                writer.writeValue(out, data);
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            written.set(buffer.size());
+            bytes = buffer.size();
+            body = HttpRequest.BodyPublishers.ofByteArray(buffer.toByteArray());
+        } else {
+            body = HttpRequest.BodyPublishers.fromPublisher(new EntityPublisher(writer, data, PublishStats.current(), tapped, written));
+        }
+
+        // of the length of the body if known, otherwise of the estimate
+        final AdaptiveTimeouts timeouts = AdaptiveTimeouts.getInstance();
+        int timeout = timeouts.getReadTimeout(url, bytes);
+        if(log.isDebugEnabled())
+            log.debug("Sending {} bytes of results to {} with a read timeout of {} ms.", new Object[] { bytes, url, timeout });
+        HttpRequest.Builder b = HttpRequest.newBuilder(uri)
+                .version(version)
+                .timeout(Duration.ofMillis(timeout))
+                .header("Content-Type", smile ? SmileEntityWriter.CONTENT_TYPE : "application/json")
+                .header("Accept", "application/json")
+                .PUT(body);
+        if(authorization != null)
+            b = b.header("Authorization", authorization);
+        if(idempotencyKey != null)
+            b = b.header(UploadDeduplicator.HEADER, idempotencyKey);
+
+        final long started = System.nanoTime();
+        return getClient().sendAsync(b.build(), HttpResponse.BodyHandlers.ofInputStream()).thenApply(response -> {
+            AddTestResultResponse r = handle(response);
+            timeouts.observe(url, written.get(), (System.nanoTime() - started) / 1000000L);
+            return r;
+        });
+    }
+
+    /**
+     * Reads the response. Of an error response, at most {@link ErrorHandler#MAX_RESPONSE_BYTES}
+     * are read and the rest is discarded by closing the stream.
+     */
+    protected AddTestResultResponse handle(HttpResponse<InputStream> response) {
+        int status = response.statusCode();
+        try (InputStream in = response.body()) {
+            if(status >= 200 && status < 300)
+                return ObjectMapperFactory.getInstance().getMapper().readValue(in, AddTestResultResponse.class);
+
+            String responseData = ErrorHandler.readResponse(in, StandardCharsets.UTF_8);
+            Long retryAfter = ErrorHandler.parseRetryAfter(response.headers().firstValue("Retry-After").orElse(null));
+            if(log.isErrorEnabled())
+                log.error("Testlab REST call failed with response '{}', status code {}", responseData, status);
+
+            TestlabAPIException e = ErrorHandler.toException(status, responseData, retryAfter);
+            throw new CompletionException(e != null ? e : new TestlabAPIException("HTTP " + status, status, retryAfter));
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HttpClientTransport{" +
+                "uri=" + uri +
+                '}';
+    }
+
+    /**
+     * Publishes the entity as it is serialized. The results are written on a writer thread
+     * for each subscription, blocking while the client has not consumed the chunks buffered.
+     */
+    private static final class EntityPublisher implements Flow.Publisher<ByteBuffer> {
+        private final ObjectWriter writer;
+        private final TestResult data;
+        private final PublishStats stats;
+        private final RequestTap.Request tapped;
+        private final AtomicLong written;
+
+        EntityPublisher(ObjectWriter writer, TestResult data, PublishStats stats, RequestTap.Request tapped, AtomicLong written) {
+            this.writer = writer;
+            this.data = data;
+            this.stats = stats;
+            this.tapped = tapped;
+            this.written = written;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            // the chunks are delivered on the common pool, a writer blocked on a full buffer must not hold up the delivery
+            final SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<ByteBuffer>(ForkJoinPool.commonPool(), CHUNKS_BUFFERED);
+            publisher.subscribe(subscriber);
+            writers.execute(() -> {
+                try {
+                    OutputStream out = new ChunkOutputStream(publisher, written);
+                    if(stats != null)
+                        out = stats.record(out);
+                    out = RequestTap.tee(out, tapped);
+                    try {
+                        writer.writeValue(out, data);
+                    } finally {
+                        out.close();
+                    }
+                    publisher.close();
+                } catch (Throwable t) {
+                    publisher.closeExceptionally(t);
+                }
+            });
+        }
+    }
+
+    /**
+     * Submits the bytes written in chunks of CHUNK_SIZE.
+     */
+    private static final class ChunkOutputStream extends OutputStream {
+        private final SubmissionPublisher<ByteBuffer> publisher;
+        private final AtomicLong written;
+        private byte[] chunk = new byte[CHUNK_SIZE];
+        private int count = 0;
+
+        ChunkOutputStream(SubmissionPublisher<ByteBuffer> publisher, AtomicLong written) {
+            this.publisher = publisher;
+            this.written = written;
+            // the body is written again if the client resubscribes
+            written.set(0L);
+        }
+
+        @Override
+        public void write(int b) {
+            if(count == chunk.length)
+                submit();
+            chunk[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            while(len > 0) {
+                if(count == chunk.length)
+                    submit();
+                int n = Math.min(len, chunk.length - count);
+                System.arraycopy(b, off, chunk, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() {
+            if(chunk != null && count > 0) {
+                publisher.submit(ByteBuffer.wrap(Arrays.copyOf(chunk, count)));
+                written.addAndGet(count);
+            }
+            chunk = null;
+        }
+
+        private void submit() {
+            // blocks while the chunks buffered have not been consumed
+            publisher.submit(ByteBuffer.wrap(chunk));
+            written.addAndGet(chunk.length);
+            chunk = new byte[CHUNK_SIZE];
+            count = 0;
+        }
+    }
+
+}
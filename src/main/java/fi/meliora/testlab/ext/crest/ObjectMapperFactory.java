@@ -0,0 +1,188 @@
+package fi.meliora.testlab.ext.crest;
+
+import fi.meliora.testlab.ext.rest.model.*;
+import org.codehaus.jackson.map.AnnotationIntrospector;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectWriter;
+import org.codehaus.jackson.map.introspect.JacksonAnnotationIntrospector;
+import org.codehaus.jackson.smile.SmileFactory;
+import org.codehaus.jackson.smile.SmileGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Holds the process-wide jackson ObjectMappers and pre-configured ObjectWriters for
+ * TestResult. Jackson caches resolved serializers per ObjectMapper so sharing a single
+ * instance keeps the caches warm between publishes.
+ *
+ * Besides JSON, a mapper for the binary Smile format is provided. Smile writes repeated
+ * field names (and short repeated String values) as back-references which cuts the size
+ * of large result sets considerably.
+ *
+ * @author Meliora Ltd
+ */
+public class ObjectMapperFactory {
+    private static final Logger log = LoggerFactory.getLogger(ObjectMapperFactory.class);
+
+    /**
+     * Model classes sent to Testlab, serializers of these are resolved on warm up.
+     */
+    private static final Class<?>[] MODEL_CLASSES = new Class<?>[] {
+            TestResult.class,
+            TestCaseResult.class,
+            TestCaseResultStep.class,
+            KeyValuePair.class,
+            Changeset.class,
+            AddTestResultResponse.class
+    };
+
+    private static ObjectMapperFactory instance = new ObjectMapperFactory();
+
+    public static ObjectMapperFactory getInstance() {
+        return instance;
+    }
+
+    private final ObjectMapper mapper;
+    private final ObjectWriter testResultWriter;
+
+    private final ObjectMapper smileMapper;
+    private final ObjectWriter smileTestResultWriter;
+
+    private volatile boolean warm = false;
+
+    private ObjectMapperFactory() {
+        mapper = createObjectMapper();
+        testResultWriter = mapper.writerWithType(TestResult.class);
+        smileMapper = createSmileObjectMapper();
+        smileTestResultWriter = smileMapper.writerWithType(TestResult.class);
+    }
+
+    /**
+     * Constructs a new ObjectMapper configured as we use it to talk to Testlab. Prefer
+     * {@link #getMapper()} - this is public only to allow comparing against a cold mapper.
+     *
+     * @return a new ObjectMapper
+     */
+    public static ObjectMapper createObjectMapper() {
+        return configure(new ObjectMapper());
+    }
+
+    /**
+     * Constructs a new ObjectMapper for the Smile binary format with shared name and
+     * shared String value back-references enabled.
+     *
+     * @return a new ObjectMapper
+     */
+    public static ObjectMapper createSmileObjectMapper() {
+        SmileFactory smileFactory = new SmileFactory();
+        smileFactory.configure(SmileGenerator.Feature.CHECK_SHARED_NAMES, true);
+        smileFactory.configure(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES, true);
+        return configure(new ObjectMapper(smileFactory));
+    }
+
+    private static ObjectMapper configure(ObjectMapper mapper) {
+        AnnotationIntrospector jacksonIntrospector = new JacksonAnnotationIntrospector();
+        mapper.setDeserializationConfig(mapper.getDeserializationConfig().withAnnotationIntrospector(jacksonIntrospector));
+        mapper.setSerializationConfig(mapper.getSerializationConfig().withAnnotationIntrospector(jacksonIntrospector));
+        return mapper;
+    }
+
+    /**
+     * @return shared ObjectMapper, must not be reconfigured by callers
+     */
+    public ObjectMapper getMapper() {
+        return mapper;
+    }
+
+    /**
+     * @return shared immutable writer for TestResult
+     */
+    public ObjectWriter getTestResultWriter() {
+        return testResultWriter;
+    }
+
+    /**
+     * @return shared Smile ObjectMapper, must not be reconfigured by callers
+     */
+    public ObjectMapper getSmileMapper() {
+        return smileMapper;
+    }
+
+    /**
+     * @return shared immutable Smile writer for TestResult
+     */
+    public ObjectWriter getSmileTestResultWriter() {
+        return smileTestResultWriter;
+    }
+
+    /**
+     * Resolves the serializers for all model classes and serializes a sample TestResult
+     * once to populate jackson's serializer caches. Safe to call multiple times.
+     */
+    public void warmUp() {
+        if(warm)
+            return;
+        synchronized (this) {
+            if(warm)
+                return;
+            long start = System.currentTimeMillis();
+            try {
+                for(Class<?> c : MODEL_CLASSES) {
+                    if(!mapper.canSerialize(c) && log.isWarnEnabled())
+                        log.warn("No serializer resolved for {}", c);
+                    smileMapper.canSerialize(c);
+                }
+                TestResult sample = createSample();
+                testResultWriter.writeValue(OutputStream.nullOutputStream(), sample);
+                smileTestResultWriter.writeValue(OutputStream.nullOutputStream(), sample);
+                mapper.readValue("{\"testRunId\":1}", AddTestResultResponse.class);
+            } catch (Exception e) {
+                // warm up is an optimization only, serialization will be retried on actual use
+                if(log.isWarnEnabled())
+                    log.warn("Could not warm up jackson serializers: " + e.getMessage(), e);
+            }
+            warm = true;
+            if(log.isDebugEnabled())
+                log.debug("Warmed up jackson serializers in {} ms.", System.currentTimeMillis() - start);
+        }
+    }
+
+    public boolean isWarm() {
+        return warm;
+    }
+
+    /**
+     * @return a TestResult with all nested model types populated
+     */
+    protected static TestResult createSample() {
+        TestResult data = new TestResult();
+        data.setProjectKey("WARMUP");
+        data.setAddIssueStrategy(TestResult.AddIssueStrategy.DONOTADD);
+
+        KeyValuePair kvp = new KeyValuePair();
+        kvp.setKey("key");
+        kvp.setValue("value");
+        data.setParameters(Collections.singletonList(kvp));
+
+        TestCaseResultStep step = new TestCaseResultStep();
+        step.setDescription("step");
+        TestCaseResult result = new TestCaseResult();
+        result.setMappingId("warmup.test");
+        List<TestCaseResultStep> steps = new ArrayList<TestCaseResultStep>();
+        steps.add(step);
+        result.setSteps(steps);
+        data.setResults(Collections.singletonList(result));
+
+        Changeset cs = new Changeset();
+        cs.setIdentifier("0");
+        data.setChangesets(Collections.singletonList(cs));
+        data.setCulprits(Collections.singletonList("warmup"));
+        return data;
+    }
+
+}
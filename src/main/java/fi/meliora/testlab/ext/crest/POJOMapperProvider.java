@@ -1,8 +1,6 @@
 package fi.meliora.testlab.ext.crest;
 
-import org.codehaus.jackson.map.AnnotationIntrospector;
 import org.codehaus.jackson.map.ObjectMapper;
-import org.codehaus.jackson.map.introspect.JacksonAnnotationIntrospector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -22,12 +20,10 @@ public class POJOMapperProvider implements ContextResolver<ObjectMapper> {
     final ObjectMapper mapper;
 
     public POJOMapperProvider() {
-        mapper = new ObjectMapper();
-        AnnotationIntrospector jacksonIntrospector = new JacksonAnnotationIntrospector();
-        mapper.setDeserializationConfig(mapper.getDeserializationConfig().withAnnotationIntrospector(jacksonIntrospector));
-        mapper.setSerializationConfig(mapper.getSerializationConfig().withAnnotationIntrospector(jacksonIntrospector));
+        // share the process-wide mapper, see ObjectMapperFactory
+        mapper = ObjectMapperFactory.getInstance().getMapper();
         if(log.isDebugEnabled())
-            log.debug("Constructed ObjectMapper with POJOMapperProvider.");
+            log.debug("Using shared ObjectMapper with POJOMapperProvider.");
     }
 
     /**
@@ -0,0 +1,179 @@
+package fi.meliora.testlab.ext.crest;
+
+import fi.meliora.testlab.ext.rest.model.KeyValuePair;
+import fi.meliora.testlab.ext.rest.model.TestCaseResult;
+import fi.meliora.testlab.ext.rest.model.TestCaseResultStep;
+import fi.meliora.testlab.ext.rest.model.TestResult;
+
+import java.util.List;
+
+/**
+ * Estimates the size of the request sending results to Testlab without serializing them,
+ * from the number of results, steps and parameters and the lengths of their texts such as
+ * comments and stack traces, and the size of the robot output.
+ *
+ * The estimate picks the strategy to send the results with, see {@link Strategy}. The
+ * thresholds are set with TESTLAB_SENDER_STREAMING_THRESHOLD (bytes, default 1 MB) and
+ * TESTLAB_SENDER_CHUNKED_THRESHOLD (bytes, default 32 MB) system properties.
+ *
+ * Single and streamed requests differ only with {@link HttpClientTransport},
+ * {@link CrestTransport} always serializes the request in memory.
+ *
+ * @author Meliora Ltd
+ */
+public class PayloadEstimator {
+
+    public static final long DEFAULT_STREAMING_THRESHOLD = 1024L * 1024L;
+    public static final long DEFAULT_CHUNKED_THRESHOLD = 32L * 1024L * 1024L;
+
+    // approximate bytes of JSON field names, punctuation and numbers
+    private static final int RESULT_OVERHEAD = 200;
+    private static final int STEP_OVERHEAD = 60;
+    private static final int PARAMETER_OVERHEAD = 30;
+    private static final int CHANGESET_OVERHEAD = 40;
+    private static final int REQUEST_OVERHEAD = 1024;
+
+    public enum Strategy {
+        /**
+         * Serialized in memory and sent with a known length.
+         */
+        SINGLE,
+        /**
+         * Streamed to the request as serialized.
+         */
+        STREAMING,
+        /**
+         * Split to chunks sent in parallel to the same test run.
+         */
+        CHUNKED
+    }
+
+    private PayloadEstimator() {
+    }
+
+    public static long getStreamingThreshold() {
+        return Long.getLong("TESTLAB_SENDER_STREAMING_THRESHOLD", DEFAULT_STREAMING_THRESHOLD);
+    }
+
+    public static long getChunkedThreshold() {
+        return Long.getLong("TESTLAB_SENDER_CHUNKED_THRESHOLD", DEFAULT_CHUNKED_THRESHOLD);
+    }
+
+    /**
+     * @return estimated size of a chunk when sending chunked, a quarter of the chunked threshold
+     */
+    public static long getChunkBytes() {
+        return Math.max(1L, getChunkedThreshold() / 4);
+    }
+
+    /**
+     * @param data results
+     * @return estimated size of the results serialized as JSON
+     */
+    public static long estimate(TestResult data) {
+        long bytes = REQUEST_OVERHEAD
+                + length(data.getDescription())
+                + length(data.getTestRunTitle())
+                + length(data.getResultName())
+                + length(data.getTags());
+        if(data.getParameters() != null)
+            bytes += estimate(data.getParameters());
+        if(data.getCulprits() != null) {
+            for(String culprit : data.getCulprits())
+                bytes += 3 + length(culprit);
+        }
+        if(data.getChangesets() != null)
+            bytes += (long) data.getChangesets().size() * CHANGESET_OVERHEAD;
+        if(data.getResults() != null) {
+            for(TestCaseResult r : data.getResults())
+                bytes += estimate(r);
+        }
+        bytes += length(data.getXml());
+        return bytes;
+    }
+
+    /**
+     * @param r result
+     * @return estimated size of the result serialized as JSON
+     */
+    public static long estimate(TestCaseResult r) {
+        long bytes = RESULT_OVERHEAD
+                + length(r.getMappingId())
+                + length(r.getRunBy())
+                + length(r.getComment());
+        if(r.getSteps() != null) {
+            for(TestCaseResultStep step : r.getSteps())
+                bytes += STEP_OVERHEAD + length(step.getDescription()) + length(step.getExpected()) + length(step.getComment());
+        }
+        return bytes;
+    }
+
+    private static long estimate(List<KeyValuePair> parameters) {
+        long bytes = 0;
+        for(KeyValuePair kvp : parameters)
+            bytes += PARAMETER_OVERHEAD + length(kvp.getKey()) + length(kvp.getValue());
+        return bytes;
+    }
+
+    private static int length(String s) {
+        return s != null ? s.length() : 0;
+    }
+
+    /**
+     * Estimates the results once for the strategy and the transport.
+     *
+     * @param data results
+     * @return estimate
+     */
+    public static Estimate getEstimate(TestResult data) {
+        return getEstimate(data, estimate(data));
+    }
+
+    /**
+     * @param data results
+     * @param bytes estimated size, see {@link #estimate(TestResult)}
+     * @return estimate
+     */
+    public static Estimate getEstimate(TestResult data, long bytes) {
+        return new Estimate(bytes, getStrategy(data, bytes));
+    }
+
+    /**
+     * Picks the cheapest strategy to send the results with. Robot output can not be split, so
+     * results with robot output are streamed instead of chunked.
+     *
+     * @param data results
+     * @param bytes estimated size, see {@link #estimate(TestResult)}
+     * @return strategy
+     */
+    public static Strategy getStrategy(TestResult data, long bytes) {
+        if(bytes <= getStreamingThreshold())
+            return Strategy.SINGLE;
+        if(bytes > getChunkedThreshold() && data.getXml() == null
+                && data.getResults() != null && data.getResults().size() > 1)
+            return Strategy.CHUNKED;
+        return Strategy.STREAMING;
+    }
+
+    /**
+     * Estimated size of results and the strategy picked to send them with.
+     */
+    public static final class Estimate {
+        private final long bytes;
+        private final Strategy strategy;
+
+        Estimate(long bytes, Strategy strategy) {
+            this.bytes = bytes;
+            this.strategy = strategy;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public Strategy getStrategy() {
+            return strategy;
+        }
+    }
+
+}
@@ -0,0 +1,257 @@
+package fi.meliora.testlab.ext.crest;
+
+import fi.meliora.testlab.ext.rest.model.TestCaseResult;
+import fi.meliora.testlab.ext.rest.model.TestResult;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Statistics of publishing results to Testlab.
+ *
+ * The statistics of a publish are collected to the instance bound to the publishing thread
+ * with {@link #start()}: the uploads are sent on the thread of the build (see
+ * PublishScheduler) so the entity writers and {@link WireFormatNegotiator} can record the
+ * bytes, times and retries of the upload without them being passed around.
+ *
+ * @author Meliora Ltd
+ */
+public class PublishStats {
+    private static final ThreadLocal<PublishStats> current = new ThreadLocal<PublishStats>();
+
+    private int passed;
+    private int failed;
+    private int skipped;
+    private int other;
+
+    private long parseMillis;
+    private long serializeMillis;
+    // time of the requests including serializing the entity
+    private long requestMillis;
+
+    private long payloadBytes;
+
+    private int retries;
+    private int uploads;
+
+    private Long testRunId;
+
+    /**
+     * Binds a new instance to the current thread.
+     *
+     * @return statistics collected
+     */
+    public static PublishStats start() {
+        PublishStats stats = new PublishStats();
+        current.set(stats);
+        return stats;
+    }
+
+    /**
+     * @return statistics collected on this thread, null if not collecting
+     */
+    public static PublishStats current() {
+        return current.get();
+    }
+
+    /**
+     * Unbinds the instance from the current thread.
+     */
+    public static void stop() {
+        current.remove();
+    }
+
+    /**
+     * Counts the results by their status.
+     *
+     * @param data data sent
+     */
+    public void addResults(TestResult data) {
+        if(data == null || data.getResults() == null)
+            return;
+        for(TestCaseResult r : data.getResults()) {
+            switch(r.getResult()) {
+                case TestCaseResult.RESULT_PASS: passed++; break;
+                case TestCaseResult.RESULT_FAIL: failed++; break;
+                case TestCaseResult.RESULT_SKIP: skipped++; break;
+                default: other++;
+            }
+        }
+    }
+
+    public void addParseMillis(long millis) {
+        parseMillis += millis;
+    }
+
+    public void addRequest(long millis) {
+        requestMillis += millis;
+        uploads++;
+    }
+
+    public void addRetry() {
+        retries++;
+    }
+
+    public void setTestRunId(Long testRunId) {
+        if(testRunId != null)
+            this.testRunId = testRunId;
+    }
+
+    /**
+     * Wraps the stream an entity is written to, recording the bytes and time written.
+     *
+     * @param out stream of the request
+     * @return stream to write the entity to
+     */
+    public OutputStream record(OutputStream out) {
+        return new RecordingOutputStream(out);
+    }
+
+    /**
+     * Adds the statistics of another publish to these.
+     *
+     * @param s statistics
+     */
+    public synchronized void add(PublishStats s) {
+        passed += s.passed;
+        failed += s.failed;
+        skipped += s.skipped;
+        other += s.other;
+        parseMillis += s.parseMillis;
+        serializeMillis += s.serializeMillis;
+        requestMillis += s.requestMillis;
+        payloadBytes += s.payloadBytes;
+        retries += s.retries;
+        uploads += s.uploads;
+        if(s.testRunId != null)
+            testRunId = s.testRunId;
+    }
+
+    public int getPassed() {
+        return passed;
+    }
+
+    public int getFailed() {
+        return failed;
+    }
+
+    public int getSkipped() {
+        return skipped;
+    }
+
+    public int getOther() {
+        return other;
+    }
+
+    public int getTotal() {
+        return passed + failed + skipped + other;
+    }
+
+    public long getParseMillis() {
+        return parseMillis;
+    }
+
+    /**
+     * @return time spent encoding and writing the entities of the requests
+     */
+    public long getSerializeMillis() {
+        return serializeMillis;
+    }
+
+    /**
+     * @return time spent in requests waiting for Testlab, excluding the time writing the entities
+     */
+    public long getNetworkMillis() {
+        return Math.max(0, requestMillis - serializeMillis);
+    }
+
+    /**
+     * @return size of the encoded entities
+     */
+    public long getPayloadBytes() {
+        return payloadBytes;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    public int getUploads() {
+        return uploads;
+    }
+
+    public Long getTestRunId() {
+        return testRunId;
+    }
+
+    @Override
+    public String toString() {
+        return "PublishStats{" +
+                "passed=" + passed +
+                ", failed=" + failed +
+                ", skipped=" + skipped +
+                ", other=" + other +
+                ", parseMillis=" + parseMillis +
+                ", serializeMillis=" + serializeMillis +
+                ", networkMillis=" + getNetworkMillis() +
+                ", payloadBytes=" + payloadBytes +
+                ", retries=" + retries +
+                ", uploads=" + uploads +
+                ", testRunId=" + testRunId +
+                '}';
+    }
+
+    /**
+     * Counts the bytes of an entity and the time spent writing it.
+     */
+    private final class RecordingOutputStream extends FilterOutputStream {
+        private final long started = System.nanoTime();
+        private long bytes = 0;
+        private long recordedBytes = 0;
+        private long recordedNanos = 0;
+
+        RecordingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            bytes += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+            record();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.close();
+            } finally {
+                record();
+            }
+        }
+
+        /**
+         * Records the bytes and time since the previous flush.
+         */
+        private void record() {
+            long nanos = System.nanoTime() - started;
+            serializeMillis += nanos / 1000000L - recordedNanos / 1000000L;
+            payloadBytes += bytes - recordedBytes;
+            recordedNanos = nanos;
+            recordedBytes = bytes;
+        }
+    }
+
+}
@@ -0,0 +1,172 @@
+package fi.meliora.testlab.ext.crest;
+
+import fi.meliora.testlab.ext.rest.model.AddTestResultResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Copies the bodies of the requests sent to Testlab, for capturing the payloads of a publish.
+ *
+ * As {@link PublishStats}, a tap is bound to the publishing thread. {@link WireFormatNegotiator}
+ * opens a {@link Request} of the tap for each request it sends, including resends and requests
+ * which fail, and the transports and entity writers copy the body to it as they write the
+ * body to the request. The bodies are not encoded again for the tap.
+ *
+ * @author Meliora Ltd
+ */
+public abstract class RequestTap {
+    private static final Logger log = LoggerFactory.getLogger(RequestTap.class);
+
+    private static final ThreadLocal<RequestTap> current = new ThreadLocal<RequestTap>();
+    private static final ThreadLocal<Request> currentRequest = new ThreadLocal<Request>();
+
+    /**
+     * Binds a tap to the current thread.
+     *
+     * @param tap tap, null to unbind
+     * @return tap bound before
+     */
+    public static RequestTap bind(RequestTap tap) {
+        RequestTap previous = current.get();
+        if(tap != null)
+            current.set(tap);
+        else
+            current.remove();
+        return previous;
+    }
+
+    /**
+     * @return tap bound to this thread, null if the requests are not tapped
+     */
+    public static RequestTap current() {
+        return current.get();
+    }
+
+    /**
+     * @return request being sent on this thread if tapped, null otherwise
+     */
+    public static Request currentRequest() {
+        return currentRequest.get();
+    }
+
+    static void setCurrentRequest(Request request) {
+        if(request != null)
+            currentRequest.set(request);
+        else
+            currentRequest.remove();
+    }
+
+    /**
+     * Copies the bytes written to the stream to the body of a tapped request. Failing to copy
+     * is only logged and does not fail the request.
+     *
+     * @param out stream of the request
+     * @param request tapped request, null if not tapped
+     * @return stream to write the entity to
+     */
+    public static OutputStream tee(OutputStream out, Request request) {
+        if(request == null)
+            return out;
+        try {
+            return new TeeOutputStream(out, request.openBody());
+        } catch (IOException e) {
+            log.warn("Could not capture the body of the request.", e);
+            return out;
+        }
+    }
+
+    /**
+     * Opens a request to be sent.
+     *
+     * @param url api url of Testlab
+     * @param contentType content type of the body
+     * @param idempotencyKey idempotency key of the upload, null if not sent
+     * @return request, null if the request is not tapped
+     */
+    public abstract Request open(String url, String contentType, String idempotencyKey);
+
+    /**
+     * A request tapped.
+     */
+    public interface Request {
+
+        /**
+         * Opens the stream the body is copied to. The body is written again if the request is
+         * resent by the client and each call starts the body over.
+         *
+         * @return stream
+         */
+        OutputStream openBody() throws IOException;
+
+        /**
+         * Called when the request has completed.
+         *
+         * @param response response, null if failed
+         * @param failure failure, null if succeeded
+         */
+        void completed(AddTestResultResponse response, Throwable failure);
+    }
+
+    private static final class TeeOutputStream extends FilterOutputStream {
+        private OutputStream copy;
+
+        TeeOutputStream(OutputStream out, OutputStream copy) {
+            super(out);
+            this.copy = copy;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if(copy != null) {
+                try {
+                    copy.write(b);
+                } catch (IOException e) {
+                    drop(e);
+                }
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if(copy != null) {
+                try {
+                    copy.write(b, off, len);
+                } catch (IOException e) {
+                    drop(e);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.close();
+            } finally {
+                if(copy != null) {
+                    try {
+                        copy.close();
+                    } catch (IOException e) {
+                        log.warn("Could not capture the body of the request.", e);
+                    }
+                    copy = null;
+                }
+            }
+        }
+
+        private void drop(IOException e) {
+            log.warn("Could not capture the body of the request.", e);
+            try {
+                copy.close();
+            } catch (IOException ignored) {
+            }
+            copy = null;
+        }
+    }
+
+}
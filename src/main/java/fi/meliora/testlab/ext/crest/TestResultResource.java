@@ -5,6 +5,7 @@ import fi.meliora.testlab.ext.rest.model.AddTestResultResponse;
 import fi.meliora.testlab.ext.rest.model.TestResult;
 import org.codegist.crest.annotate.*;
 import org.codegist.crest.serializer.jackson.JsonEntityWriter;
+import org.codegist.crest.serializer.jackson.SmileEntityWriter;
 
 /**
  * Crest client-side descriptor for Testlab's TestResultResource.
@@ -15,11 +16,27 @@ import org.codegist.crest.serializer.jackson.JsonEntityWriter;
 @org.codegist.crest.annotate.ErrorHandler(fi.meliora.testlab.ext.crest.ErrorHandler.class)
 public interface TestResultResource {
 
+    /**
+     * Sends the result. The idempotency key identifies the upload, see UploadDeduplicator.
+     */
     @PUT
     @ConnectionTimeout(30000)
     @SocketTimeout(30000)
     @EntityWriter(JsonEntityWriter.class)
-    public AddTestResultResponse addTestResult(@FormParam("param") TestResult result)
+    public AddTestResultResponse addTestResult(@FormParam("param") TestResult result,
+                                               @HeaderParam(UploadDeduplicator.HEADER) String idempotencyKey)
+            throws TestlabAPIException;
+
+    /**
+     * As addTestResult but sends the result encoded in binary Smile format. Testlab responds
+     * with 415 UNSUPPORTED MEDIA TYPE if it does not accept Smile, see WireFormatNegotiator.
+     */
+    @PUT
+    @ConnectionTimeout(30000)
+    @SocketTimeout(30000)
+    @EntityWriter(SmileEntityWriter.class)
+    public AddTestResultResponse addTestResultSmile(@FormParam("param") TestResult result,
+                                                    @HeaderParam(UploadDeduplicator.HEADER) String idempotencyKey)
             throws TestlabAPIException;
 
 }
@@ -0,0 +1,69 @@
+package fi.meliora.testlab.ext.crest;
+
+import fi.meliora.testlab.ext.crest.exception.TestlabAPIException;
+import fi.meliora.testlab.ext.rest.model.AddTestResultResponse;
+import fi.meliora.testlab.ext.rest.model.TestResult;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Transport sending results to a Testlab endpoint.
+ *
+ * The transport is picked with the TESTLAB_SENDER_TRANSPORT system property: 'http' (default)
+ * sends with java.net.http, see {@link HttpClientTransport}, and 'crest' with the CRest
+ * proxy of {@link TestResultResource}, see {@link CrestTransport}.
+ *
+ * A transport interrupted while waiting for the response sets the interrupt status of the
+ * thread and throws an unchecked exception caused by the {@link InterruptedException}.
+ *
+ * @author Meliora Ltd
+ */
+public interface TestlabTransport {
+
+    enum Type {
+        HTTP,
+        CREST
+    }
+
+    /**
+     * Sends the results and waits for the response.
+     *
+     * @param data results
+     * @param format wire format to encode the results with
+     * @param idempotencyKey key of the upload sent in the Idempotency-Key header
+     * @return response
+     * @throws TestlabAPIException if Testlab responds with an error
+     */
+    AddTestResultResponse addTestResult(TestResult data, WireFormatNegotiator.WireFormat format, String idempotencyKey)
+            throws TestlabAPIException;
+
+    /**
+     * Sends results already encoded or estimated and waits for the response. The encoded body
+     * is sent as it is if the transport can, otherwise the results are encoded again. The
+     * estimate is used instead of estimating the results again.
+     *
+     * @param data results
+     * @param encoded results encoded in the format, null if not encoded
+     * @param estimate estimate of the results, null if not estimated
+     * @param format wire format the results are encoded with
+     * @param idempotencyKey key of the upload sent in the Idempotency-Key header
+     * @return response
+     * @throws TestlabAPIException if Testlab responds with an error
+     */
+    default AddTestResultResponse addTestResult(TestResult data, byte[] encoded, PayloadEstimator.Estimate estimate,
+                                                WireFormatNegotiator.WireFormat format, String idempotencyKey) throws TestlabAPIException {
+        return addTestResult(data, format, idempotencyKey);
+    }
+
+    /**
+     * Sends the results without waiting for the response.
+     *
+     * @param data results
+     * @param format wire format to encode the results with
+     * @param idempotencyKey key of the upload sent in the Idempotency-Key header
+     * @return response, completed exceptionally with a TestlabAPIException if Testlab responds with an error
+     */
+    CompletableFuture<AddTestResultResponse> addTestResultAsync(TestResult data, WireFormatNegotiator.WireFormat format,
+                                                                String idempotencyKey);
+
+}
@@ -0,0 +1,164 @@
+package fi.meliora.testlab.ext.crest;
+
+import fi.meliora.testlab.ext.rest.model.AddTestResultResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps track of the uploads Testlab has acknowledged so that an identical upload is not
+ * sent again.
+ *
+ * An upload sent in a single request is encoded before it is sent and keyed with a SHA-256
+ * digest of the job, the build number and the encoded body, which is then sent as it is. The
+ * key thus changes with any change of the bytes sent. Larger uploads are streamed or sent in
+ * chunks and serialized only as they are sent, after the key has been sent as a header, so
+ * they are keyed with a random key of their own and not checked for duplicates. The chunks
+ * of a chunked upload are sent in single requests and keyed with their digests.
+ *
+ * The key is sent to Testlab in the Idempotency-Key header and the keys of the latest
+ * acknowledged uploads are kept per endpoint url. The number of keys kept is set with the
+ * TESTLAB_SENDER_DEDUPE_SIZE system property (default 256). 0 disables skipping the
+ * duplicates and the uploads are then keyed with a random key without a digest.
+ *
+ * @author Meliora Ltd
+ */
+public class UploadDeduplicator {
+    private static final Logger log = LoggerFactory.getLogger(UploadDeduplicator.class);
+
+    public static final String HEADER = "Idempotency-Key";
+
+    public static final int DEFAULT_SIZE = 256;
+
+    private static UploadDeduplicator instance = new UploadDeduplicator();
+
+    public static UploadDeduplicator getInstance() {
+        return instance;
+    }
+
+    private final Map<String, AddTestResultResponse> acknowledged = new LinkedHashMap<String, AddTestResultResponse>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, AddTestResultResponse> eldest) {
+            return size() > getSize();
+        }
+    };
+    private final LongAdder skipped = new LongAdder();
+
+    private UploadDeduplicator() {
+    }
+
+    /**
+     * @return number of acknowledged uploads remembered, 0 if duplicates are not skipped
+     */
+    public static int getSize() {
+        return Integer.getInteger("TESTLAB_SENDER_DEDUPE_SIZE", DEFAULT_SIZE);
+    }
+
+    /**
+     * @return random idempotency key of an upload not encoded before it is sent, such uploads
+     *         are not checked for duplicates
+     */
+    public static String newKey() {
+        return UUID.randomUUID().toString();
+    }
+
+    /**
+     * Returns the idempotency key of an upload encoded before it is sent.
+     *
+     * @param job full name of the job, null if none
+     * @param build build number
+     * @param encoded body of the request
+     * @return hex encoded SHA-256 digest of the job, the build number and the body
+     */
+    public String getKey(String job, int build, byte[] encoded) {
+        MessageDigest digest = start(job, build);
+        digest.update(encoded);
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest start(String job, int build) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            update(digest, job, build);
+            return digest;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Could not compute the idempotency key of the results.", e);
+        }
+    }
+
+    private static void update(MessageDigest digest, Object... values) {
+        for(Object value : values) {
+            digest.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(64);
+        for(byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return sb.toString();
+    }
+
+    /**
+     * Returns the response to an identical upload Testlab has already acknowledged.
+     *
+     * @param url url of the endpoint
+     * @param key idempotency key
+     * @return response to the upload, null if the upload should be sent
+     */
+    public AddTestResultResponse getAcknowledged(String url, String key) {
+        if(getSize() <= 0)
+            return null;
+        AddTestResultResponse response;
+        synchronized(acknowledged) {
+            response = acknowledged.get(url + '\n' + key);
+        }
+        if(response != null) {
+            skipped.increment();
+            if(log.isInfoEnabled())
+                log.info("Results with idempotency key {} were already sent to {}, skipping.", key, url);
+        }
+        return response;
+    }
+
+    /**
+     * Remembers an upload Testlab has acknowledged.
+     *
+     * @param url url of the endpoint
+     * @param key idempotency key
+     * @param response response to the upload
+     */
+    public void acknowledge(String url, String key, AddTestResultResponse response) {
+        if(getSize() <= 0 || response == null)
+            return;
+        synchronized(acknowledged) {
+            acknowledged.put(url + '\n' + key, response);
+        }
+    }
+
+    /**
+     * @return number of duplicate uploads skipped
+     */
+    public long getSkipped() {
+        return skipped.sum();
+    }
+
+    /**
+     * Forgets the acknowledged uploads and resets the count of skipped ones.
+     */
+    public void clear() {
+        synchronized(acknowledged) {
+            acknowledged.clear();
+        }
+        skipped.reset();
+    }
+
+}
@@ -0,0 +1,291 @@
+package fi.meliora.testlab.ext.crest;
+
+import fi.meliora.testlab.ext.crest.exception.TestlabAPIException;
+import fi.meliora.testlab.ext.crest.exception.UnsupportedMediaTypeException;
+import fi.meliora.testlab.ext.crest.exception.ValidationException;
+import fi.meliora.testlab.ext.rest.model.AddTestResultResponse;
+import fi.meliora.testlab.ext.rest.model.TestResult;
+import org.codegist.crest.serializer.jackson.SmileEntityWriter;
+import org.codehaus.jackson.map.ObjectWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Picks the wire format used to send results to a Testlab endpoint.
+ *
+ * Results are sent as JSON by default. If the preferred format is set to Smile with the
+ * TESTLAB_SENDER_WIRE_FORMAT=smile system property, Smile is tried first and the outcome
+ * is remembered per endpoint url: if Testlab refuses the Smile encoded entity (415, 406,
+ * or 400 telling the content type is not supported before Smile has ever been accepted by
+ * the endpoint) the results are resent as JSON and JSON is used for the endpoint. Other
+ * failures, such as a 400 for invalid results, are not retried as JSON.
+ *
+ * An endpoint falls back to JSON for TESTLAB_SENDER_JSON_ONLY_TTL milliseconds (default
+ * an hour), after which Smile is tried again so that an upgraded Testlab is picked up.
+ *
+ * @author Meliora Ltd
+ */
+public class WireFormatNegotiator {
+    private static final Logger log = LoggerFactory.getLogger(WireFormatNegotiator.class);
+
+    public enum WireFormat {
+        JSON,
+        SMILE
+    }
+
+    public static final long DEFAULT_JSON_ONLY_TTL = 60L * 60L * 1000L;
+
+    private static final int NOT_ACCEPTABLE = 406;
+
+    private enum EndpointSupport {
+        SMILE_ACCEPTED,
+        JSON_ONLY
+    }
+
+    /**
+     * Format support of an endpoint and when it was learned.
+     */
+    private static final class Negotiated {
+        final EndpointSupport support;
+        final long at;
+
+        Negotiated(EndpointSupport support) {
+            this.support = support;
+            this.at = System.currentTimeMillis();
+        }
+
+        boolean isJsonOnly() {
+            return support == EndpointSupport.JSON_ONLY && System.currentTimeMillis() - at < getJsonOnlyTtl();
+        }
+    }
+
+    private static WireFormatNegotiator instance = new WireFormatNegotiator();
+
+    public static WireFormatNegotiator getInstance() {
+        return instance;
+    }
+
+    private final ConcurrentMap<String, Negotiated> endpoints = new ConcurrentHashMap<String, Negotiated>();
+
+    private WireFormatNegotiator() {
+    }
+
+    /**
+     * @return wire format preferred by configuration
+     */
+    public WireFormat getPreferredFormat() {
+        String format = System.getProperty("TESTLAB_SENDER_WIRE_FORMAT");
+        return "smile".equalsIgnoreCase(format) ? WireFormat.SMILE : WireFormat.JSON;
+    }
+
+    /**
+     * @return milliseconds an endpoint not accepting Smile is sent JSON before Smile is tried again
+     */
+    public static long getJsonOnlyTtl() {
+        return Long.getLong("TESTLAB_SENDER_JSON_ONLY_TTL", DEFAULT_JSON_ONLY_TTL);
+    }
+
+    /**
+     * @param url endpoint url
+     * @return wire format to use for the endpoint
+     */
+    public WireFormat getFormat(String url) {
+        Negotiated negotiated = endpoints.get(url);
+        if(getPreferredFormat() == WireFormat.SMILE && (negotiated == null || !negotiated.isJsonOnly()))
+            return WireFormat.SMILE;
+        return WireFormat.JSON;
+    }
+
+    /**
+     * Sends the results to Testlab with the negotiated wire format keyed with a random key,
+     * see {@link UploadDeduplicator}.
+     *
+     * @param url url of the endpoint, used as a key for the negotiated format
+     * @param endpoint endpoint
+     * @param data results
+     * @return response
+     * @throws TestlabAPIException on failure
+     */
+    public AddTestResultResponse addTestResult(String url, TestResultResource endpoint, TestResult data) throws TestlabAPIException {
+        return addTestResult(url, endpoint, data, UploadDeduplicator.newKey());
+    }
+
+    /**
+     * Sends the results to Testlab with the negotiated wire format.
+     *
+     * @param url url of the endpoint, used as a key for the negotiated format
+     * @param endpoint endpoint
+     * @param data results
+     * @param idempotencyKey key of the upload sent in the Idempotency-Key header, the same for a resend
+     * @return response
+     * @throws TestlabAPIException on failure
+     */
+    public AddTestResultResponse addTestResult(String url, TestResultResource endpoint, TestResult data, String idempotencyKey) throws TestlabAPIException {
+        return addTestResult(url, new CrestTransport(endpoint), data, idempotencyKey);
+    }
+
+    /**
+     * Sends the results to Testlab with the negotiated wire format.
+     *
+     * @param url url of the endpoint, used as a key for the negotiated format
+     * @param transport transport to the endpoint
+     * @param data results
+     * @param idempotencyKey key of the upload sent in the Idempotency-Key header, the same for a resend
+     * @return response
+     * @throws TestlabAPIException on failure
+     */
+    public AddTestResultResponse addTestResult(String url, TestlabTransport transport, TestResult data, String idempotencyKey) throws TestlabAPIException {
+        return addTestResult(url, transport, data, null, null, idempotencyKey);
+    }
+
+    /**
+     * Sends the results to Testlab with the negotiated wire format. If the results are already
+     * encoded in the format, the encoded body is sent as it is.
+     *
+     * @param url url of the endpoint, used as a key for the negotiated format
+     * @param transport transport to the endpoint
+     * @param data results
+     * @param encoded results encoded with {@link #encode(String, TestResult)}, null if not encoded
+     * @param estimate estimate of the results passed to the transport, null if not estimated
+     * @param idempotencyKey key of the upload sent in the Idempotency-Key header, the same for a resend
+     * @return response
+     * @throws TestlabAPIException on failure
+     */
+    public AddTestResultResponse addTestResult(String url, TestlabTransport transport, TestResult data, Encoded encoded,
+                                               PayloadEstimator.Estimate estimate, String idempotencyKey) throws TestlabAPIException {
+        PublishStats stats = PublishStats.current();
+        if(getFormat(url) == WireFormat.SMILE) {
+            Negotiated negotiated = endpoints.get(url);
+            boolean accepted = negotiated != null && negotiated.support == EndpointSupport.SMILE_ACCEPTED;
+            long started = System.nanoTime();
+            try {
+                AddTestResultResponse response = send(url, transport, data, encoded, estimate, WireFormat.SMILE, idempotencyKey);
+                if(!accepted)
+                    endpoints.put(url, new Negotiated(EndpointSupport.SMILE_ACCEPTED));
+                return response;
+            } catch (TestlabAPIException e) {
+                if(!isSmileRefused(e, accepted))
+                    throw e;
+                fallback(url, e);
+            } finally {
+                if(stats != null)
+                    stats.addRequest((System.nanoTime() - started) / 1000000L);
+            }
+        }
+        long started = System.nanoTime();
+        try {
+            return send(url, transport, data, encoded, estimate, WireFormat.JSON, idempotencyKey);
+        } finally {
+            if(stats != null)
+                stats.addRequest((System.nanoTime() - started) / 1000000L);
+        }
+    }
+
+    /**
+     * Sends a request, tapped if a {@link RequestTap} is bound to the thread.
+     */
+    protected AddTestResultResponse send(String url, TestlabTransport transport, TestResult data, Encoded encoded,
+                                         PayloadEstimator.Estimate estimate, WireFormat format, String idempotencyKey) throws TestlabAPIException {
+        byte[] body = encoded != null && encoded.format == format ? encoded.bytes : null;
+        RequestTap tap = RequestTap.current();
+        RequestTap.Request request = tap != null
+                ? tap.open(url, format == WireFormat.SMILE ? SmileEntityWriter.CONTENT_TYPE : "application/json", idempotencyKey)
+                : null;
+        if(request == null)
+            return transport.addTestResult(data, body, estimate, format, idempotencyKey);
+        RequestTap.setCurrentRequest(request);
+        try {
+            AddTestResultResponse response = transport.addTestResult(data, body, estimate, format, idempotencyKey);
+            request.completed(response, null);
+            return response;
+        } catch (RuntimeException e) {
+            request.completed(null, e);
+            throw e;
+        } finally {
+            RequestTap.setCurrentRequest(null);
+        }
+    }
+
+    /**
+     * @param e failure of a Smile encoded upload
+     * @param accepted true if the endpoint has accepted Smile before
+     * @return true if Testlab refused the upload for its content type
+     */
+    protected static boolean isSmileRefused(TestlabAPIException e, boolean accepted) {
+        if(e instanceof UnsupportedMediaTypeException || e.getStatus() == NOT_ACCEPTABLE)
+            return true;
+        if(accepted || !(e instanceof ValidationException) || !(e.getResponseData() instanceof String))
+            return false;
+        // a 400 of a server not knowing Smile tells the content type it could not read
+        String response = ((String) e.getResponseData()).toLowerCase();
+        return response.contains("content type") || response.contains("content-type")
+                || response.contains("media type") || response.contains("smile");
+    }
+
+    protected void fallback(String url, TestlabAPIException e) {
+        PublishStats stats = PublishStats.current();
+        if(stats != null)
+            stats.addRetry();
+        endpoints.put(url, new Negotiated(EndpointSupport.JSON_ONLY));
+        if(log.isInfoEnabled())
+            log.info("Testlab at {} did not accept Smile encoded results ({}), falling back to JSON.", url, e.getMessage());
+    }
+
+    /**
+     * Encodes the results in the wire format negotiated for the endpoint.
+     *
+     * @param url url of the endpoint
+     * @param data results
+     * @return encoded results
+     */
+    public Encoded encode(String url, TestResult data) {
+        WireFormat format = getFormat(url);
+        ObjectWriter writer = format == WireFormat.SMILE
+                ? ObjectMapperFactory.getInstance().getSmileTestResultWriter()
+                : ObjectMapperFactory.getInstance().getTestResultWriter();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PublishStats stats = PublishStats.current();
+        try (OutputStream out = stats != null ? stats.record(buffer) : buffer) {
+            writer.writeValue(out, data);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not encode the results.", e);
+        }
+        return new Encoded(format, buffer.toByteArray());
+    }
+
+    /**
+     * Forgets all negotiated formats.
+     */
+    public void reset() {
+        endpoints.clear();
+    }
+
+    /**
+     * Results encoded in a wire format.
+     */
+    public static final class Encoded {
+        private final WireFormat format;
+        private final byte[] bytes;
+
+        Encoded(WireFormat format, byte[] bytes) {
+            this.format = format;
+            this.bytes = bytes;
+        }
+
+        public WireFormat getFormat() {
+            return format;
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+    }
+
+}
@@ -11,4 +11,8 @@ public class ConflictException extends TestlabAPIException {
         super(responseData);
     }
 
+    public ConflictException(Object responseData, int status, Long retryAfterMillis) {
+        super(responseData, status, retryAfterMillis);
+    }
+
 }
@@ -11,4 +11,8 @@ public class NotFoundException extends TestlabAPIException {
         super(responseData);
     }
 
+    public NotFoundException(Object responseData, int status, Long retryAfterMillis) {
+        super(responseData, status, retryAfterMillis);
+    }
+
 }
@@ -11,5 +11,9 @@ public class ServiceUnavailableException extends TestlabAPIException {
         super(responseData);
     }
 
+    public ServiceUnavailableException(Object responseData, int status, Long retryAfterMillis) {
+        super(responseData, status, retryAfterMillis);
+    }
+
 }
 
@@ -10,14 +10,48 @@ import org.codegist.crest.CRestException;
 public class TestlabAPIException extends CRestException {
 
     private Object responseData;
+    private int status;
+    private Long retryAfterMillis;
 
     public TestlabAPIException(Object responseData) {
         super(String.valueOf(responseData));
         this.responseData = responseData;
     }
 
+    /**
+     * @param responseData response body, truncated
+     * @param status HTTP status of the response
+     * @param retryAfterMillis milliseconds to wait before retrying as hinted with Retry-After, null if not hinted
+     */
+    public TestlabAPIException(Object responseData, int status, Long retryAfterMillis) {
+        this(responseData);
+        this.status = status;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
     public Object getResponseData() {
         return responseData;
     }
 
+    /**
+     * @return HTTP status of the response, 0 if not known
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return milliseconds to wait before retrying as hinted with Retry-After, null if not hinted
+     */
+    public Long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    /**
+     * @return true if the call may succeed if retried: Testlab was unavailable, overloaded or hinted to retry
+     */
+    public boolean isRetryable() {
+        return status == 429 || status == 502 || status == 503 || status == 504 || retryAfterMillis != null;
+    }
+
 }
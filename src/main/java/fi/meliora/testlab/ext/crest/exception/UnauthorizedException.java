@@ -11,5 +11,9 @@ public class UnauthorizedException extends TestlabAPIException {
         super(responseData);
     }
 
+    public UnauthorizedException(Object responseData, int status, Long retryAfterMillis) {
+        super(responseData, status, retryAfterMillis);
+    }
+
 }
 
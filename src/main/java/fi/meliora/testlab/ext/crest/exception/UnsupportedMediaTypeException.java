@@ -0,0 +1,18 @@
+package fi.meliora.testlab.ext.crest.exception;
+
+/**
+ * Thrown if rest endpoint sends 415 UNSUPPORTED MEDIA TYPE response.
+ *
+ * @author Meliora Ltd
+ */
+public class UnsupportedMediaTypeException extends TestlabAPIException {
+
+    public UnsupportedMediaTypeException(Object responseData) {
+        super(responseData);
+    }
+
+    public UnsupportedMediaTypeException(Object responseData, int status, Long retryAfterMillis) {
+        super(responseData, status, retryAfterMillis);
+    }
+
+}
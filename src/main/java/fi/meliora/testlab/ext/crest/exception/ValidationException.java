@@ -11,5 +11,9 @@ public class ValidationException extends TestlabAPIException {
         super(responseData);
     }
 
+    public ValidationException(Object responseData, int status, Long retryAfterMillis) {
+        super(responseData, status, retryAfterMillis);
+    }
+
 }
 
@@ -1,88 +1,268 @@
 package fi.meliora.testlab.ext.jenkins;
 
+import hudson.util.PluginServletFilter;
+
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Adds CORS headers to Jenkins response. Adapted from CORS-filter and included in
  * this plugin because the original plugin is not published in public repositories.
  *
+ * The filter is hit on every request Jenkins serves, so the settings are kept in an
+ * immutable snapshot which is swapped as a whole when the settings change. Requests read
+ * the snapshot without locking and the header values are computed when configured.
+ *
+ * Preflight (OPTIONS) requests from allowed origins are answered by this filter and do not
+ * enter the rest of the filter chain. The preflight response carries Access-Control-Max-Age
+ * so that browsers can cache it instead of sending a preflight before every call.
+ *
+ * The requests handled by the filter installed to Jenkins are counted and exported with
+ * {@link PublishMetrics}.
+ *
  * @author Meliora Ltd
  */
 public class CORSFilter implements Filter {
     private final static Logger log = Logger.getLogger(CORSFilter.class.getName());
 
-    private boolean enabled = false;
-    private List<String> origins = null;     // by default, no origins allowed
+    private static final boolean CORS_HANDLE_OPTIONS_METHOD = Boolean.parseBoolean(System.getProperty("cors.options", "true"));
+    private static final String CORS_METHODS = System.getProperty("cors.methods", "GET, POST, PUT, DELETE");
+    private static final String CORS_HEADERS = System.getProperty("cors.headers", "Authorization, .crumb, Origin, Jenkins-Crumb");
+    private static final String CORS_CREDENTIALS = System.getProperty("cors.credentials", "true");
+
+    /**
+     * Default for how long in seconds browsers may cache the preflight response.
+     */
+    public static final int DEFAULT_MAX_AGE = 600;
+
+    // the filter added to Jenkins, null if not installed
+    private static volatile CORSFilter installed;
+
+    // by default, disabled and no origins allowed
+    private volatile Config config = Config.DISABLED;
+
+    private final LongAdder preflightRequests = new LongAdder();
+    private final LongAdder corsRequests = new LongAdder();
+    private final LongAdder deniedRequests = new LongAdder();
+
+    /**
+     * Adds the filter to the filters of Jenkins.
+     *
+     * @throws ServletException if the filter could not be added
+     */
+    public void install() throws ServletException {
+        PluginServletFilter.addFilter(this);
+        installed = this;
+    }
+
+    /**
+     * @return the filter added to Jenkins, null if not installed
+     */
+    public static CORSFilter getInstalled() {
+        return installed;
+    }
 
     public boolean isEnabled() {
-        return enabled;
+        return config.enabled;
     }
 
-    public void setEnabled(boolean enabled) {
-        this.enabled = enabled;
+    public synchronized void setEnabled(boolean enabled) {
+        configure(enabled, config.origins, config.maxAge);
     }
 
     public List<String> getOrigins() {
-        return origins;
+        return config.origins;
     }
 
-    public void setOrigins(List<String> origins) {
-        this.origins = origins;
+    public synchronized void setOrigins(List<String> origins) {
+        configure(config.enabled, origins, config.maxAge);
     }
 
-    private static final String CORS_HANDLE_OPTIONS_METHOD = System.getProperty("cors.options", "true");
-    private static final String CORS_METHODS = System.getProperty("cors.methods", "GET, POST, PUT, DELETE");
-    private static final String CORS_HEADERS = System.getProperty("cors.headers", "Authorization, .crumb, Origin, Jenkins-Crumb");
-    private static final String CORS_CREDENTIALS = System.getProperty("cors.credentials", "true");
+    public int getMaxAge() {
+        return config.maxAge;
+    }
+
+    /**
+     * Replaces the settings of the filter at once with the default max age for preflights.
+     *
+     * @param enabled true if CORS headers should be added
+     * @param origins allowed origins, "*" allows all
+     */
+    public void configure(boolean enabled, List<String> origins) {
+        configure(enabled, origins, DEFAULT_MAX_AGE);
+    }
+
+    /**
+     * Replaces the settings of the filter at once.
+     *
+     * @param enabled true if CORS headers should be added
+     * @param origins allowed origins, "*" allows all
+     * @param maxAge seconds the browsers may cache preflight responses, 0 or less not to send Access-Control-Max-Age
+     */
+    public synchronized void configure(boolean enabled, List<String> origins, int maxAge) {
+        config = new Config(enabled, origins, maxAge);
+        if(log.isLoggable(Level.FINE))
+            log.fine("CORSFilter configured: " + config);
+    }
 
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
             throws IOException, ServletException {
-        if(enabled) {
-            log.finest("doFilter: CORSFilter enabled for origins " + origins);
+        final Config config = this.config;
+        if(config.enabled) {
+            if(log.isLoggable(Level.FINEST))
+                log.finest("doFilter: CORSFilter enabled for origins " + config.origins);
 
-            if (request instanceof HttpServletRequest && response instanceof HttpServletResponse) {
-                if(origins != null && origins.size() > 0) {
-                    final HttpServletRequest req = (HttpServletRequest)request;
-                    final HttpServletResponse resp = (HttpServletResponse) response;
+            if (config.hasOrigins && request instanceof HttpServletRequest && response instanceof HttpServletResponse) {
+                final HttpServletRequest req = (HttpServletRequest)request;
+                final HttpServletResponse resp = (HttpServletResponse) response;
 
-                    String origin = req.getHeader("Origin");
-                    if(origin != null) {
+                String origin = req.getHeader("Origin");
+                if(origin != null) {
+                    if(log.isLoggable(Level.FINEST))
                         log.finest("doFilter: CORSFilter processing request for Origin: " + origin);
 
-                        //
-                        // note: as the cors header supports only a single Origin value, we
-                        //  support multiple values here by echoing back the valid Origin values
-                        //  ourselves
-                        //
-                        if(origins.contains("*") || origins.contains(origin)) {
+                    //
+                    // note: as the cors header supports only a single Origin value, we
+                    //  support multiple values here by echoing back the valid Origin values
+                    //  ourselves
+                    //
+                    // the response depends on the Origin so caches should not share it between origins
+                    resp.addHeader("Vary", "Origin");
+                    String allowOrigin = config.getAllowOrigin(origin);
+                    if(allowOrigin != null) {
+                        if(log.isLoggable(Level.FINEST))
                             log.finest("doFilter: CORSFilter adding headers.");
-                            resp.addHeader("Access-Control-Allow-Origin", URLEncoder.encode(origin, StandardCharsets.UTF_8.name()));
-                            resp.addHeader("Access-Control-Allow-Methods", CORS_METHODS);
-                            resp.addHeader("Access-Control-Allow-Headers", CORS_HEADERS);
-                            resp.addHeader("Access-Control-Allow-Credentials", CORS_CREDENTIALS);
-                            if(Boolean.valueOf(CORS_HANDLE_OPTIONS_METHOD)) {
-                                if("OPTIONS".equals(req.getMethod())) {
-                                    resp.setStatus(200);
-                                    return;
-                                }
-                            }
+                        resp.addHeader("Access-Control-Allow-Origin", allowOrigin);
+                        resp.addHeader("Access-Control-Allow-Methods", CORS_METHODS);
+                        resp.addHeader("Access-Control-Allow-Headers", CORS_HEADERS);
+                        resp.addHeader("Access-Control-Allow-Credentials", CORS_CREDENTIALS);
+                        if(CORS_HANDLE_OPTIONS_METHOD && "OPTIONS".equals(req.getMethod())) {
+                            // preflight, answer without entering the rest of the chain
+                            if(config.maxAgeValue != null)
+                                resp.setHeader("Access-Control-Max-Age", config.maxAgeValue);
+                            resp.setStatus(200);
+                            resp.setContentLength(0);
+                            preflightRequests.increment();
+                            return;
                         }
+                        corsRequests.increment();
+                    } else {
+                        deniedRequests.increment();
                     }
                 }
             }
-        } else {
+        } else if(log.isLoggable(Level.FINEST)) {
             log.finest("doFilter: CORSFilter disabled.");
         }
         chain.doFilter(request, response);
     }
 
+    /**
+     * @return number of preflight requests answered since startup
+     */
+    public long getPreflightRequests() {
+        return preflightRequests.sum();
+    }
+
+    /**
+     * @return number of actual requests from allowed origins since startup
+     */
+    public long getCorsRequests() {
+        return corsRequests.sum();
+    }
+
+    /**
+     * @return number of requests from origins not allowed since startup
+     */
+    public long getDeniedRequests() {
+        return deniedRequests.sum();
+    }
+
+    /**
+     * Immutable settings of the filter.
+     */
+    static final class Config {
+        static final Config DISABLED = new Config(false, null, DEFAULT_MAX_AGE);
+
+        // encoded values of origins allowed by "*" or a pattern are cached up to this many origins
+        private static final int MAX_CACHED_ORIGINS = 256;
+
+        final boolean enabled;
+        final List<String> origins;
+        final boolean hasOrigins;
+        final boolean allowAll;
+        final int maxAge;
+        // value for Access-Control-Max-Age, null if not sent
+        final String maxAgeValue;
+        // allowed origin -> encoded Access-Control-Allow-Origin value
+        private final Map<String, String> allowed;
+        // wildcard patterns such as https://*.melioratestlab.com, null if none
+        private final OriginMatcher matcher;
+        private final ConcurrentMap<String, String> encodedCache;
+
+        Config(boolean enabled, List<String> origins, int maxAge) {
+            this.enabled = enabled;
+            this.maxAge = maxAge;
+            this.maxAgeValue = maxAge > 0 ? String.valueOf(maxAge) : null;
+            this.origins = origins != null ? Collections.unmodifiableList(new ArrayList<String>(origins)) : null;
+            this.hasOrigins = origins != null && !origins.isEmpty();
+            this.allowAll = hasOrigins && origins.contains("*");
+
+            Map<String, String> allowed = new HashMap<String, String>();
+            if(origins != null) {
+                for(String origin : origins) {
+                    if(origin != null && !"*".equals(origin) && !OriginMatcher.isPattern(origin))
+                        allowed.put(origin, encode(origin));
+                }
+            }
+            this.allowed = allowed;
+            this.matcher = OriginMatcher.compile(origins);
+            this.encodedCache = allowAll || matcher != null ? new ConcurrentHashMap<String, String>() : null;
+        }
+
+        /**
+         * @param origin Origin of the request
+         * @return value for Access-Control-Allow-Origin or null if the origin is not allowed
+         */
+        String getAllowOrigin(String origin) {
+            String value = allowed.get(origin);
+            if(value != null || !(allowAll || matcher != null && matcher.matches(origin)))
+                return value;
+
+            value = encodedCache.get(origin);
+            if(value == null) {
+                value = encode(origin);
+                if(encodedCache.size() < MAX_CACHED_ORIGINS)
+                    encodedCache.putIfAbsent(origin, value);
+            }
+            return value;
+        }
+
+        private static String encode(String origin) {
+            return URLEncoder.encode(origin, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String toString() {
+            return "Config{" +
+                    "enabled=" + enabled +
+                    ", origins=" + origins +
+                    ", matcher=" + matcher +
+                    ", maxAge=" + maxAge +
+                    '}';
+        }
+    }
+
     /**
      * Called by the web container to indicate to a filter that it is being placed into
      * service. The servlet container calls the init method exactly once after instantiating the
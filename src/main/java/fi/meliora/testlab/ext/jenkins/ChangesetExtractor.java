@@ -0,0 +1,103 @@
+package fi.meliora.testlab.ext.jenkins;
+
+import fi.meliora.testlab.ext.rest.model.Changeset;
+import hudson.scm.ChangeLogSet;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects the changesets of a build to be sent to Testlab from the change logs of any SCM
+ * by the commit ids of the entries. The type of each change log is resolved with the
+ * registered {@link ChangesetTypeMapper}s, change logs of unknown SCMs are skipped.
+ *
+ * A commit reported by multiple change logs (such as multiple checkouts of the same
+ * repository) is sent once, in the order first seen. At most TESTLAB_MAX_CHANGESETS
+ * (system property, defaults to 1000) changesets are sent.
+ *
+ * @author Meliora Ltd
+ */
+public class ChangesetExtractor {
+    private final static Logger log = Logger.getLogger(ChangesetExtractor.class.getName());
+
+    public static final int DEFAULT_MAX_CHANGESETS = 1000;
+
+    /**
+     * @return maximum number of changesets sent for a build
+     */
+    public static int getMaxChangesets() {
+        return Integer.getInteger("TESTLAB_MAX_CHANGESETS", DEFAULT_MAX_CHANGESETS);
+    }
+
+    /**
+     * Extracts the changesets with registered mappers.
+     *
+     * @param changeLogSets change logs of a build
+     * @return changesets, null if none
+     */
+    public static List<Changeset> extract(List<? extends ChangeLogSet<? extends ChangeLogSet.Entry>> changeLogSets) {
+        return extract(changeLogSets, ChangesetTypeMapper.all(), getMaxChangesets());
+    }
+
+    /**
+     * @param changeLogSets change logs of a build
+     * @param mappers mappers to resolve the type of change logs with, in order of precedence
+     * @param max maximum number of changesets to return
+     * @return changesets, null if none
+     */
+    public static List<Changeset> extract(List<? extends ChangeLogSet<? extends ChangeLogSet.Entry>> changeLogSets,
+                                          Iterable<? extends ChangesetTypeMapper> mappers, int max) {
+        if(changeLogSets == null || changeLogSets.isEmpty() || max <= 0)
+            return null;
+
+        // commit id -> changeset, in order first seen
+        Map<String, Changeset> changesets = new LinkedHashMap<String, Changeset>();
+        int skipped = 0;
+        for(ChangeLogSet<? extends ChangeLogSet.Entry> cls : changeLogSets) {
+            if(cls == null || cls.isEmptySet())
+                continue;
+            if(log.isLoggable(Level.FINE))
+                log.fine("Changeset: " + cls + ", Kind: " + cls.getKind());
+
+            Integer type = getType(cls, mappers);
+            if(type == null) {
+                if(log.isLoggable(Level.FINE))
+                    log.fine("No changeset type for change log of kind " + cls.getKind() + ", skipped.");
+                continue;
+            }
+
+            for(ChangeLogSet.Entry entry : cls) {
+                String commitId = entry.getCommitId();
+                if(commitId == null || changesets.containsKey(commitId))
+                    continue;
+                if(changesets.size() >= max) {
+                    skipped++;
+                    continue;
+                }
+                Changeset cs = new Changeset();
+                cs.setIdentifier(commitId);
+                cs.setType(type);
+                changesets.put(commitId, cs);
+            }
+        }
+
+        if(skipped > 0)
+            log.info("Sending " + max + " changesets, " + skipped + " more changesets were left out. Set TESTLAB_MAX_CHANGESETS to change the limit.");
+
+        return changesets.isEmpty() ? null : new ArrayList<Changeset>(changesets.values());
+    }
+
+    protected static Integer getType(ChangeLogSet<? extends ChangeLogSet.Entry> cls, Iterable<? extends ChangesetTypeMapper> mappers) {
+        for(ChangesetTypeMapper mapper : mappers) {
+            Integer type = mapper.getType(cls);
+            if(type != null)
+                return type;
+        }
+        return null;
+    }
+
+}
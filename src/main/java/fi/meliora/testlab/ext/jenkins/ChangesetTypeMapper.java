@@ -0,0 +1,48 @@
+package fi.meliora.testlab.ext.jenkins;
+
+import fi.meliora.testlab.ext.rest.model.Changeset;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import hudson.scm.ChangeLogSet;
+
+/**
+ * Maps a change log of a build to the type of the Changesets sent to Testlab. Implement
+ * this extension point to send changesets of a SCM which reports a kind not known by
+ * this plugin.
+ *
+ * @author Meliora Ltd
+ */
+public abstract class ChangesetTypeMapper implements ExtensionPoint {
+
+    /**
+     * @param changeLogSet change log of a build
+     * @return Changeset type such as {@link Changeset#TYPE_GIT} or null if the change log is not known by this mapper
+     */
+    public abstract Integer getType(ChangeLogSet<? extends ChangeLogSet.Entry> changeLogSet);
+
+    /**
+     * @return all registered mappers
+     */
+    public static ExtensionList<ChangesetTypeMapper> all() {
+        return ExtensionList.lookup(ChangesetTypeMapper.class);
+    }
+
+    /**
+     * Maps git and mercurial change logs by their kind. Registered with a low ordinal so that
+     * mappers of other plugins are consulted first.
+     */
+    @Extension(ordinal = -100)
+    public static class KindMapper extends ChangesetTypeMapper {
+        @Override
+        public Integer getType(ChangeLogSet<? extends ChangeLogSet.Entry> changeLogSet) {
+            String kind = changeLogSet.getKind();
+            if("git".equals(kind))
+                return Changeset.TYPE_GIT;
+            if("hg".equals(kind) || "mercurial".equals(kind))
+                return Changeset.TYPE_HG;
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,189 @@
+package fi.meliora.testlab.ext.jenkins;
+
+import fi.meliora.testlab.ext.crest.ObjectMapperFactory;
+import fi.meliora.testlab.ext.crest.PayloadEstimator;
+import fi.meliora.testlab.ext.crest.PublishStats;
+import fi.meliora.testlab.ext.rest.model.AddTestResultResponse;
+import fi.meliora.testlab.ext.rest.model.TestCaseResult;
+import fi.meliora.testlab.ext.rest.model.TestResult;
+import hudson.model.Run;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends results too large for a single request to Testlab in chunks.
+ *
+ * The results are split by their estimated size to chunks of about
+ * {@link PayloadEstimator#getChunkBytes()}. The first chunk creates the test run, unless the
+ * results are sent to an existing test run by its id, and the rest of the chunks are sent to
+ * the test run in parallel, at most TESTLAB_PUBLISH_MAX_INFLIGHT at a time. Culprits and
+ * changesets are sent with the first chunk only.
+ *
+ * @author Meliora Ltd
+ */
+public class ChunkedUpload {
+    private final static Logger log = Logger.getLogger(ChunkedUpload.class.getName());
+
+    private final TestResult data;
+    private final List<List<TestCaseResult>> chunks;
+    // estimated size of each chunk
+    private final List<Long> chunkBytes = new ArrayList<Long>();
+
+    /**
+     * @param data results, without robot output
+     * @param estimate estimate of the results, see {@link PayloadEstimator#getEstimate}
+     */
+    public ChunkedUpload(TestResult data, PayloadEstimator.Estimate estimate) {
+        this.data = data;
+        long[] resultBytes = new long[data.getResults().size()];
+        long total = 0;
+        for(int i = 0; i < resultBytes.length; i++) {
+            resultBytes[i] = PayloadEstimator.estimate(data.getResults().get(i));
+            total += resultBytes[i];
+        }
+        this.chunks = split(data.getResults(), resultBytes, PayloadEstimator.getChunkBytes());
+        // each chunk carries the fields of the test run estimated with the results
+        long runBytes = estimate.getBytes() - total;
+        int from = 0;
+        for(List<TestCaseResult> chunk : chunks) {
+            long bytes = runBytes;
+            for(int i = from; i < from + chunk.size(); i++)
+                bytes += resultBytes[i];
+            chunkBytes.add(bytes);
+            from += chunk.size();
+        }
+    }
+
+    /**
+     * @return number of chunks the results are sent in
+     */
+    public int getChunks() {
+        return chunks.size();
+    }
+
+    /**
+     * Splits the results in order to chunks of at most the given estimated size. A result
+     * larger than the size is sent in a chunk of its own.
+     *
+     * @param results results
+     * @param resultBytes estimated size of each result
+     * @param chunkBytes estimated size of a chunk
+     * @return chunks
+     */
+    protected static List<List<TestCaseResult>> split(List<TestCaseResult> results, long[] resultBytes, long chunkBytes) {
+        List<List<TestCaseResult>> chunks = new ArrayList<List<TestCaseResult>>();
+        int from = 0;
+        long bytes = 0;
+        for(int i = 0; i < results.size(); i++) {
+            long size = resultBytes[i];
+            if(i > from && bytes + size > chunkBytes) {
+                chunks.add(results.subList(from, i));
+                from = i;
+                bytes = 0;
+            }
+            bytes += size;
+        }
+        if(from < results.size())
+            chunks.add(results.subList(from, results.size()));
+        return chunks;
+    }
+
+    /**
+     * Sends the chunks.
+     *
+     * @param companyId company id of hosted Testlab
+     * @param onpremiseUrl url of on-premise Testlab, null if hosted
+     * @param apiKey api key
+     * @param build build publishing
+     * @return response to the first chunk
+     */
+    public AddTestResultResponse send(final String companyId, final String onpremiseUrl, final String apiKey, final Run<?, ?> build) {
+        List<TestResult> uploads = new ArrayList<TestResult>();
+        final List<PayloadEstimator.Estimate> estimates = new ArrayList<PayloadEstimator.Estimate>();
+        for(int i = 0; i < chunks.size(); i++) {
+            TestResult upload = copy(chunks.get(i));
+            uploads.add(upload);
+            estimates.add(PayloadEstimator.getEstimate(upload, chunkBytes.get(i)));
+        }
+
+        AddTestResultResponse first = null;
+        int sent = 0;
+        if(data.getTestRunId() == null) {
+            // the test run is created before the rest of the chunks are sent to it
+            first = Sender.post(companyId, onpremiseUrl, apiKey, uploads.get(0), estimates.get(0), build);
+            sent = 1;
+        }
+        for(TestResult upload : uploads.subList(1, uploads.size())) {
+            if(first != null)
+                upload.setTestRunId(first.getTestRunId());
+            upload.setCulprits(null);
+            upload.setChangesets(null);
+        }
+        if(log.isLoggable(Level.FINE))
+            log.fine("Sending " + data.getResults().size() + " results of " + build + " in " + uploads.size() + " chunks.");
+
+        final PublishStats stats = PublishStats.current();
+        int threads = Math.min(PublishScheduler.getMaxInFlight(), uploads.size() - sent);
+        if(threads < 1)
+            return first;
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "Testlab chunk upload for " + build);
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<AddTestResultResponse>> futures = new ArrayList<Future<AddTestResultResponse>>();
+            for(int i = sent; i < uploads.size(); i++) {
+                final TestResult upload = uploads.get(i);
+                final PayloadEstimator.Estimate estimate = estimates.get(i);
+                futures.add(executor.submit(() -> {
+                    PublishStats chunkStats = PublishStats.start();
+                    try {
+                        return Sender.post(companyId, onpremiseUrl, apiKey, upload, estimate, build);
+                    } finally {
+                        PublishStats.stop();
+                        if(stats != null)
+                            stats.add(chunkStats);
+                    }
+                }));
+            }
+            for(Future<AddTestResultResponse> future : futures) {
+                AddTestResultResponse response = future.get();
+                if(first == null)
+                    first = response;
+            }
+            return first;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while publishing results to Testlab.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the data with the results of the chunk
+     */
+    protected TestResult copy(List<TestCaseResult> chunk) {
+        List<TestCaseResult> results = data.getResults();
+        data.setResults(null);
+        try {
+            TestResult upload = ObjectMapperFactory.getInstance().getMapper().convertValue(data, TestResult.class);
+            upload.setResults(chunk);
+            return upload;
+        } finally {
+            data.setResults(results);
+        }
+    }
+
+}
@@ -0,0 +1,202 @@
+package fi.meliora.testlab.ext.jenkins;
+
+import hudson.Extension;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.User;
+import hudson.model.listeners.RunListener;
+import hudson.scm.ChangeLogSet;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.scm.RunWithSCM;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resolves the culprits of a build sent to Testlab. The mode is set with the
+ * TESTLAB_CULPRITS_MODE system property:
+ *
+ * <ul>
+ *     <li>sync (default): culprits are calculated by Jenkins on the executor thread as before.</li>
+ *     <li>async: culprits are calculated by Jenkins on a background thread. If the calculation
+ *     does not complete in TESTLAB_CULPRITS_TIMEOUT milliseconds (defaults to 10000) the results
+ *     are published without culprits.</li>
+ *     <li>cached: culprits are derived from the authors of the build's changes and the cached
+ *     culprits of the previous build of the job, maintained as builds complete. If the previous
+ *     build is not cached (such as after a restart) falls back to async.</li>
+ * </ul>
+ *
+ * As with Jenkins, the culprits of a build are the authors of its changes plus the culprits
+ * of the previous build if the previous build was not successful.
+ *
+ * @author Meliora Ltd
+ */
+public class CulpritResolver {
+    private final static Logger log = Logger.getLogger(CulpritResolver.class.getName());
+
+    public enum Mode {
+        SYNC,
+        ASYNC,
+        CACHED
+    }
+
+    public static final long DEFAULT_TIMEOUT = 10000;
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(
+            new NamingThreadFactory(new DaemonThreadFactory(), "Testlab culprits"));
+
+    // job full name -> culprits of the latest completed build
+    private static final ConcurrentMap<String, CachedCulprits> cache = new ConcurrentHashMap<String, CachedCulprits>();
+
+    /**
+     * @return culprits mode set by configuration
+     */
+    public static Mode getMode() {
+        String mode = System.getProperty("TESTLAB_CULPRITS_MODE");
+        if(mode != null) {
+            try {
+                return Mode.valueOf(mode.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                log.warning("Unknown TESTLAB_CULPRITS_MODE " + mode + ", using sync.");
+            }
+        }
+        return Mode.SYNC;
+    }
+
+    /**
+     * @return milliseconds to wait for the culprits in async mode
+     */
+    public static long getTimeout() {
+        return Long.getLong("TESTLAB_CULPRITS_TIMEOUT", DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Resolves the culprits of the build with the configured mode.
+     *
+     * @param runWithSCM build
+     * @param listener listener of the build
+     * @return user ids of the culprits, null if not resolved
+     */
+    public static Set<String> getCulprits(RunWithSCM<?, ?> runWithSCM, TaskListener listener) throws InterruptedException {
+        Mode mode = getMode();
+        if(mode == Mode.CACHED) {
+            Set<String> culprits = getCachedCulprits((Run<?, ?>) runWithSCM);
+            if(culprits != null)
+                return culprits;
+            if(log.isLoggable(Level.FINE))
+                log.fine("No cached culprits for previous build of " + runWithSCM + ", calculating asynchronously.");
+            mode = Mode.ASYNC;
+        }
+        if(mode == Mode.ASYNC)
+            return calculateAsync(runWithSCM, listener);
+        return calculate(runWithSCM);
+    }
+
+    protected static Set<String> calculate(RunWithSCM<?, ?> runWithSCM) {
+        if(runWithSCM.shouldCalculateCulprits())
+            runWithSCM.calculateCulprits();
+        return runWithSCM.getCulpritIds();
+    }
+
+    protected static Set<String> calculateAsync(final RunWithSCM<?, ?> runWithSCM, TaskListener listener) throws InterruptedException {
+        long timeout = getTimeout();
+        Future<Set<String>> future = executor.submit(() -> calculate(runWithSCM));
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // let the calculation complete in the background, Jenkins persists the culprits to the build
+            listener.getLogger().println("Culprits were not calculated in " + timeout + " ms, publishing the results without culprits.");
+        } catch (ExecutionException e) {
+            log.log(Level.WARNING, "Could not calculate culprits for " + runWithSCM, e.getCause());
+        }
+        return null;
+    }
+
+    /**
+     * @param run build
+     * @return culprits derived from the cache, null if the previous build is not cached
+     */
+    protected static Set<String> getCachedCulprits(Run<?, ?> run) {
+        Run<?, ?> previous = run.getPreviousBuild();
+        Set<String> previousCulprits = Collections.emptySet();
+        if(previous != null) {
+            CachedCulprits cached = cache.get(run.getParent().getFullName());
+            if(cached == null || cached.number != previous.getNumber())
+                return null;
+            previousCulprits = cached.culprits;
+        }
+        return deriveCulprits(run, previous, previousCulprits);
+    }
+
+    protected static Set<String> deriveCulprits(Run<?, ?> run, Run<?, ?> previous, Set<String> previousCulprits) {
+        Set<String> culprits = new TreeSet<String>(getAuthors(run));
+        Result previousResult = previous != null ? previous.getResult() : null;
+        if(previousResult != null && previousResult.isWorseThan(Result.SUCCESS))
+            culprits.addAll(previousCulprits);
+        return culprits;
+    }
+
+    protected static Set<String> getAuthors(Run<?, ?> run) {
+        Set<String> authors = new HashSet<String>();
+        if(run instanceof RunWithSCM) {
+            for(ChangeLogSet<? extends ChangeLogSet.Entry> cls : ((RunWithSCM<?, ?>) run).getChangeSets()) {
+                for(ChangeLogSet.Entry entry : cls) {
+                    User author = entry.getAuthor();
+                    if(author != null)
+                        authors.add(author.getId());
+                }
+            }
+        }
+        return authors;
+    }
+
+    /**
+     * Clears the cached culprits of all jobs.
+     */
+    public static void clearCache() {
+        cache.clear();
+    }
+
+    private static final class CachedCulprits {
+        final int number;
+        final Set<String> culprits;
+
+        CachedCulprits(int number, Set<String> culprits) {
+            this.number = number;
+            this.culprits = culprits;
+        }
+    }
+
+    /**
+     * Maintains the culprits cache incrementally as builds complete.
+     */
+    @Extension
+    public static class CacheListener extends RunListener<Run<?, ?>> {
+        @Override
+        public void onCompleted(Run<?, ?> run, TaskListener listener) {
+            if(!(run instanceof RunWithSCM) || getMode() != Mode.CACHED)
+                return;
+            Set<String> culprits = getCachedCulprits(run);
+            if(culprits == null) {
+                // previous build not cached, take the culprits of this build as calculated by Jenkins
+                culprits = new TreeSet<String>(((RunWithSCM<?, ?>) run).getCulpritIds());
+            }
+            String job = run.getParent().getFullName();
+            CachedCulprits entry = new CachedCulprits(run.getNumber(), Collections.unmodifiableSet(culprits));
+            // builds may complete out of order, keep the latest
+            cache.merge(job, entry, (a, b) -> b.number > a.number ? b : a);
+        }
+
+        @Override
+        public void onDeleted(Run<?, ?> run) {
+            CachedCulprits cached = cache.get(run.getParent().getFullName());
+            if(cached != null && cached.number == run.getNumber())
+                cache.remove(run.getParent().getFullName(), cached);
+        }
+    }
+
+}
@@ -0,0 +1,287 @@
+package fi.meliora.testlab.ext.jenkins;
+
+import fi.meliora.testlab.ext.rest.model.AddTestResultResponse;
+import fi.meliora.testlab.ext.rest.model.TestCaseResult;
+import fi.meliora.testlab.ext.rest.model.TestResult;
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publishes the results of a build to a single Testlab test run in parts, such as from the
+ * parallel branches of a Pipeline each publishing as soon as the branch has its results.
+ *
+ * The parts of a build publishing to the same project and test run title share a session.
+ * Each part sends only the results of the build not sent by an earlier part. The first
+ * upload creates the test run (or the id of an existing test run is given) and the rest of
+ * the parts append to the test run by its id. The session keeps the already sent results
+ * under a lock so that parts publishing at the same time do not send the same results twice.
+ *
+ * If the number of parts is known, the last part finalizes the test run: it waits for the
+ * other parts to complete, sends its results with the culprits and changesets of the build
+ * and closes the session. Sessions are dropped when the build completes.
+ *
+ * @author Meliora Ltd
+ */
+public class IncrementalPublisher {
+    private final static Logger log = Logger.getLogger(IncrementalPublisher.class.getName());
+
+    private static IncrementalPublisher instance = new IncrementalPublisher();
+
+    public static IncrementalPublisher getInstance() {
+        return instance;
+    }
+
+    // build full name#build number -> session key -> session
+    private final ConcurrentMap<String, ConcurrentMap<String, Session>> builds = new ConcurrentHashMap<String, ConcurrentMap<String, Session>>();
+
+    private IncrementalPublisher() {
+    }
+
+    /**
+     * Sends the data to Testlab.
+     */
+    public interface Upload {
+        AddTestResultResponse send(TestResult data);
+    }
+
+    /**
+     * Options of an incremental upload.
+     */
+    public static final class Options implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final Long testRunId;
+        private final int parts;
+
+        /**
+         * @param testRunId id of an existing test run to append to, null to create one with the first upload
+         * @param parts number of parts publishing to the test run, 0 if not known
+         */
+        public Options(Long testRunId, int parts) {
+            this.testRunId = testRunId;
+            this.parts = parts;
+        }
+
+        public Long getTestRunId() {
+            return testRunId;
+        }
+
+        public int getParts() {
+            return parts;
+        }
+
+        @Override
+        public String toString() {
+            return "Options{" +
+                    "testRunId=" + testRunId +
+                    ", parts=" + parts +
+                    '}';
+        }
+    }
+
+    /**
+     * Publishes a part of the results of the build.
+     *
+     * @param build build
+     * @param options options
+     * @param projectKey project key
+     * @param testRunTitle test run title
+     * @param data all results of the build, null if the build has none
+     * @param upload sends the data
+     * @param listener listener of the build
+     * @return response of the upload, null if nothing was sent
+     */
+    public AddTestResultResponse publish(Run<?, ?> build, Options options, String projectKey, String testRunTitle,
+                                         TestResult data, Upload upload, TaskListener listener) throws InterruptedException {
+        ConcurrentMap<String, Session> sessions = builds.computeIfAbsent(getBuildKey(build), k -> new ConcurrentHashMap<String, Session>());
+        String key = projectKey + "#" + (testRunTitle != null ? testRunTitle : "");
+        Session session = sessions.computeIfAbsent(key, k -> new Session());
+
+        Part part = session.begin(options, data);
+        boolean sent = false;
+        try {
+            AddTestResultResponse response = null;
+            if(part.data != null) {
+                listener.getLogger().println("Publishing " + part.size() + " new test results" + (part.last ? " (last part)" : "")
+                        + " to Testlab test run: " + (part.data.getTestRunId() != null ? "" + part.data.getTestRunId() : testRunTitle));
+                response = upload.send(part.data);
+            } else {
+                listener.getLogger().println("No new test results to publish to Testlab.");
+            }
+            sent = true;
+            Long testRunId = session.complete(part, response);
+            if(part.last) {
+                sessions.remove(key, session);
+                listener.getLogger().println("Finalized Testlab test run " + (testRunId != null ? "" + testRunId : testRunTitle)
+                        + " published in " + part.completed + " parts.");
+            }
+            return response;
+        } finally {
+            if(!sent)
+                session.abort(part);
+        }
+    }
+
+    /**
+     * Drops the sessions of the build.
+     *
+     * @param build build
+     */
+    public void discard(Run<?, ?> build) {
+        Map<String, Session> sessions = builds.remove(getBuildKey(build));
+        if(sessions != null && log.isLoggable(Level.FINE)) {
+            for(Map.Entry<String, Session> e : sessions.entrySet()) {
+                Session s = e.getValue();
+                if(s.expected > 0)
+                    log.fine("Build " + build + " completed with " + s.completed + " of " + s.expected + " parts published to " + e.getKey() + ".");
+            }
+        }
+    }
+
+    private static String getBuildKey(Run<?, ?> build) {
+        return build.getParent().getFullName() + "#" + build.getNumber();
+    }
+
+    /**
+     * Claims the results not sent by the earlier parts.
+     */
+    protected static List<TestCaseResult> claim(List<TestCaseResult> results, Map<String, Integer> published) {
+        List<TestCaseResult> claimed = new ArrayList<TestCaseResult>();
+        if(results == null)
+            return claimed;
+        // the results of the build only grow, the first n results of a test case have been sent
+        Map<String, Integer> seen = new HashMap<String, Integer>();
+        for(TestCaseResult result : results) {
+            String id = getId(result);
+            int n = seen.merge(id, 1, Integer::sum);
+            if(n > published.getOrDefault(id, 0)) {
+                claimed.add(result);
+                published.put(id, n);
+            }
+        }
+        return claimed;
+    }
+
+    private static String getId(TestCaseResult result) {
+        return result.getMappingId() != null ? result.getMappingId() : "#" + result.getTestCaseId();
+    }
+
+    /**
+     * A part being published.
+     */
+    private static final class Part {
+        TestResult data;
+        List<TestCaseResult> claimed;
+        boolean last;
+        int completed;
+        // holds the session lock until the test run is created
+        boolean creating;
+
+        int size() {
+            return claimed != null ? claimed.size() : 0;
+        }
+    }
+
+    /**
+     * Parts of a build publishing to a single test run.
+     */
+    private static final class Session {
+        Long testRunId;
+        // mapping id -> number of results sent
+        final Map<String, Integer> published = new HashMap<String, Integer>();
+        int expected = 0;
+        int started = 0;
+        int completed = 0;
+        int inFlight = 0;
+        boolean creating = false;
+
+        synchronized Part begin(Options options, TestResult data) throws InterruptedException {
+            // only a single part creates the test run, the others wait for its id
+            while(creating)
+                wait();
+            if(options.testRunId != null && testRunId == null)
+                testRunId = options.testRunId;
+            if(options.parts > 0 && expected == 0)
+                expected = options.parts;
+
+            Part part = new Part();
+            started++;
+            part.last = expected > 0 && started >= expected;
+            if(part.last) {
+                // finalize after the other parts have completed
+                while(inFlight > 0)
+                    wait();
+            }
+            if(data != null) {
+                part.claimed = claim(data.getResults(), published);
+                if(!part.claimed.isEmpty() || data.getXml() != null) {
+                    data.setResults(part.claimed.isEmpty() ? null : part.claimed);
+                    data.setTestRunId(testRunId);
+                    if(testRunId != null && !part.last) {
+                        // sent with the upload creating the test run and with the last part
+                        data.setCulprits(null);
+                        data.setChangesets(null);
+                    }
+                    part.data = data;
+                }
+            }
+            if(part.data != null && testRunId == null) {
+                creating = true;
+                part.creating = true;
+            }
+            inFlight++;
+            return part;
+        }
+
+        synchronized Long complete(Part part, AddTestResultResponse response) {
+            if(testRunId == null && response != null)
+                testRunId = response.getTestRunId();
+            part.completed = ++completed;
+            end(part);
+            return testRunId;
+        }
+
+        synchronized void abort(Part part) {
+            // let a later part send the results again
+            if(part.claimed != null) {
+                for(TestCaseResult result : part.claimed)
+                    published.computeIfPresent(getId(result), (id, n) -> n > 1 ? n - 1 : null);
+            }
+            started--;
+            end(part);
+        }
+
+        private void end(Part part) {
+            inFlight--;
+            if(part.creating)
+                creating = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Drops the sessions when the build completes.
+     */
+    @Extension
+    public static class BuildListener extends RunListener<Run<?, ?>> {
+        @Override
+        public void onCompleted(Run<?, ?> run, TaskListener listener) {
+            getInstance().discard(run);
+        }
+
+        @Override
+        public void onDeleted(Run<?, ?> run) {
+            getInstance().discard(run);
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+package fi.meliora.testlab.ext.jenkins;
+
+import java.util.*;
+
+/**
+ * A read-only view over layers of variables. Lookups go through the layers from the topmost
+ * (last added) layer down without copying any of the variables: a variable in an upper
+ * layer shadows the same variable in the layers below.
+ *
+ * For example, the variables for a build are layered as EnvVars of the build and on top
+ * of them the additional keys set by this plugin (BUILD_FULL_DISPLAY_NAME, BUILD_STATUS, ...).
+ * More sources can be stacked on top with {@link #withLayer(Map)}.
+ *
+ * @author Meliora Ltd
+ */
+public class LayeredVariables extends AbstractMap<String, String> {
+
+    // bottom layer first
+    private final Map<String, String>[] layers;
+
+    private transient Set<Map.Entry<String, String>> entrySet;
+
+    /**
+     * @param layers layers of variables, the bottom layer first, null layers are skipped
+     */
+    @SafeVarargs
+    @SuppressWarnings("unchecked")
+    public LayeredVariables(Map<String, String>... layers) {
+        List<Map<String, String>> l = new ArrayList<Map<String, String>>(layers.length);
+        for(Map<String, String> layer : layers) {
+            if(layer != null)
+                l.add(layer);
+        }
+        this.layers = l.toArray(new Map[0]);
+    }
+
+    /**
+     * @param layer variables to put on top of the current layers
+     * @return a new view with the layer added on top
+     */
+    @SuppressWarnings("unchecked")
+    public LayeredVariables withLayer(Map<String, String> layer) {
+        Map<String, String>[] l = Arrays.copyOf(layers, layers.length + 1);
+        l[layers.length] = layer;
+        return new LayeredVariables(l);
+    }
+
+    /**
+     * @return the layers of this view, the bottom layer first
+     */
+    public List<Map<String, String>> getLayers() {
+        return Collections.unmodifiableList(Arrays.asList(layers));
+    }
+
+    @Override
+    public String get(Object key) {
+        for(int i = layers.length - 1; i >= 0; i--) {
+            String value = layers[i].get(key);
+            if(value != null)
+                return value;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    /**
+     * The entries are resolved lazily when iterated, the topmost value of each variable once.
+     */
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        Set<Map.Entry<String, String>> es = entrySet;
+        if(es == null) {
+            es = new AbstractSet<Map.Entry<String, String>>() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    int size = 0;
+                    for(Iterator<Map.Entry<String, String>> i = iterator(); i.hasNext(); i.next())
+                        size++;
+                    return size;
+                }
+            };
+            entrySet = es;
+        }
+        return es;
+    }
+
+    /**
+     * Iterates the layers from top to bottom and skips the entries shadowed by upper layers.
+     */
+    private class EntryIterator implements Iterator<Map.Entry<String, String>> {
+        private int layer = layers.length - 1;
+        private Iterator<Map.Entry<String, String>> current;
+        private Map.Entry<String, String> next;
+
+        @Override
+        public boolean hasNext() {
+            while(next == null) {
+                if(current == null || !current.hasNext()) {
+                    if(layer < 0)
+                        return false;
+                    current = layers[layer--].entrySet().iterator();
+                    continue;
+                }
+                Map.Entry<String, String> e = current.next();
+                if(e.getValue() != null && !isShadowed(e.getKey(), layer + 1))
+                    next = e;
+            }
+            return true;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if(!hasNext())
+                throw new NoSuchElementException();
+            Map.Entry<String, String> e = new SimpleImmutableEntry<String, String>(next);
+            next = null;
+            return e;
+        }
+
+        private boolean isShadowed(String key, int ofLayer) {
+            for(int i = layers.length - 1; i > ofLayer; i--) {
+                if(layers[i].get(key) != null)
+                    return true;
+            }
+            return false;
+        }
+    }
+
+}
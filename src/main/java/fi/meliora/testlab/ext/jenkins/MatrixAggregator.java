@@ -0,0 +1,314 @@
+package fi.meliora.testlab.ext.jenkins;
+
+import fi.meliora.testlab.ext.crest.PayloadEstimator;
+import fi.meliora.testlab.ext.crest.PublishStats;
+import fi.meliora.testlab.ext.rest.model.AddTestResultResponse;
+import fi.meliora.testlab.ext.rest.model.Changeset;
+import fi.meliora.testlab.ext.rest.model.KeyValuePair;
+import fi.meliora.testlab.ext.rest.model.TestCaseResult;
+import fi.meliora.testlab.ext.rest.model.TestResult;
+import hudson.Extension;
+import hudson.model.ItemGroup;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.InvisibleAction;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces the results of the configurations of a multi-configuration (matrix) build into
+ * a single test run. When the aggregation is enabled for a job the configuration runs hand
+ * their parsed results over to this class instead of sending them. When the parent build
+ * completes the results of all configurations are sent at once.
+ *
+ * Testlab takes the test case parameters per upload, not per result, so the results of
+ * configurations are sent with {@link Sender#send} of their own for each distinct set of
+ * parameters: the axes of the configuration and the test case parameters of the configuration
+ * run. This keeps the results of a test case in different configurations apart. Configurations
+ * with the same parameters, such as configurations without axes, are merged to a single upload.
+ * The results of a parameter set are sent in a single request, streamed or in chunks by their
+ * size as any results, see {@link PayloadEstimator}. The first upload creates the test run and
+ * the rest are sent to it by its id. The matrix classes are not referred to: a run is a
+ * configuration run if its job is a child of another job, and the axes are parsed from the name
+ * of the configuration such as "jdk=11,os=linux".
+ *
+ * The results collected are held in memory until the parent build completes. The number
+ * of configurations handed over is recorded to the parent build so that results lost, such
+ * as on a restart of Jenkins, are reported in the log of the parent build.
+ *
+ * @author Meliora Ltd
+ */
+public class MatrixAggregator {
+    private final static Logger log = Logger.getLogger(MatrixAggregator.class.getName());
+
+    private static MatrixAggregator instance = new MatrixAggregator();
+
+    public static MatrixAggregator getInstance() {
+        return instance;
+    }
+
+    // parent job full name#build number -> results collected
+    private final ConcurrentMap<String, Aggregate> pending = new ConcurrentHashMap<String, Aggregate>();
+
+    private MatrixAggregator() {
+    }
+
+    /**
+     * @param run build
+     * @return the parent build if the run is a configuration run of a multi-configuration build, otherwise null
+     */
+    public static Run<?, ?> getParentRun(Run<?, ?> run) {
+        ItemGroup<?> parent = run.getParent().getParent();
+        if(parent instanceof Job) {
+            // configuration runs share the build number with the parent build
+            return ((Job<?, ?>) parent).getBuildByNumber(run.getNumber());
+        }
+        return null;
+    }
+
+    /**
+     * Parses the axes from a name of a configuration, such as "jdk=11,os=linux".
+     *
+     * @param name name of a configuration
+     * @return axes as key value pairs in order
+     */
+    public static List<KeyValuePair> parseAxes(String name) {
+        List<KeyValuePair> axes = new ArrayList<KeyValuePair>();
+        if(name == null)
+            return axes;
+        for(String axis : name.split(",")) {
+            int eq = axis.indexOf('=');
+            if(eq <= 0)
+                continue;
+            KeyValuePair kvp = new KeyValuePair();
+            kvp.setKey(axis.substring(0, eq));
+            kvp.setValue(axis.substring(eq + 1));
+            axes.add(kvp);
+        }
+        return axes;
+    }
+
+    /**
+     * Hands the results of a configuration run over to be sent with the parent build.
+     *
+     * @param run configuration run
+     * @param parent parent build
+     * @param data results of the configuration run
+     * @param companyId company id of hosted Testlab
+     * @param onpremiseUrl url of on-premise Testlab, null if hosted
+     * @param apiKey api key
+     */
+    public void add(Run<?, ?> run, Run<?, ?> parent, TestResult data, String companyId, String onpremiseUrl, String apiKey) {
+        List<KeyValuePair> parameters = new ArrayList<KeyValuePair>(parseAxes(run.getParent().getName()));
+        if(data.getParameters() != null)
+            parameters.addAll(data.getParameters());
+
+        Aggregate aggregate = pending.computeIfAbsent(getKey(parent),
+                k -> new Aggregate(data, companyId, onpremiseUrl, apiKey));
+        aggregate.add(run.getParent().getName(), parameters, data);
+        HandedOver.increment(parent);
+
+        if(log.isLoggable(Level.FINE))
+            log.fine("Aggregated " + (data.getResults() != null ? data.getResults().size() : 0) + " results of " + run + " to " + parent);
+    }
+
+    /**
+     * Sends the results collected for the parent build, if any.
+     *
+     * @param parent parent build
+     * @param listener listener of the parent build
+     */
+    public void publish(Run<?, ?> parent, TaskListener listener) {
+        Aggregate aggregate = pending.remove(getKey(parent));
+        HandedOver handedOver = parent.getAction(HandedOver.class);
+        if(aggregate == null) {
+            if(handedOver != null) {
+                String message = "Results of " + handedOver.configurations + " configurations were handed over to be published with "
+                        + parent.getFullDisplayName() + " but are no longer available, probably because Jenkins was restarted. "
+                        + "The results were not published to Testlab.";
+                log.warning(message);
+                listener.error(message);
+            }
+            return;
+        }
+
+        TestResult data = aggregate.template;
+        data.setCulprits(aggregate.culprits.isEmpty() ? null : new ArrayList<String>(aggregate.culprits));
+        data.setChangesets(aggregate.changesets.isEmpty() ? null : new ArrayList<Changeset>(aggregate.changesets.values()));
+        String rootUrl = Jenkins.get().getRootUrl();
+        if(rootUrl != null)
+            data.setResultName(rootUrl + parent.getUrl());
+
+        listener.getLogger().println("Publishing " + aggregate.size() + " test results of " + aggregate.configurations
+                + " configurations with " + aggregate.parameterSets.size() + " parameter sets to Testlab project: " + data.getProjectKey());
+
+        PublishStats stats = PublishStats.start();
+        long started = System.nanoTime();
+        try {
+            Long testRunId = null;
+            for(ParameterSet c : aggregate.parameterSets.values()) {
+                // parameter sets are sent one after another so the same data can be reused for each
+                data.setParameters(c.parameters.isEmpty() ? null : c.parameters);
+                data.setResults(c.results);
+                data.setTestRunId(testRunId);
+                AddTestResultResponse response = Sender.send(aggregate.companyId, aggregate.onpremiseUrl != null, aggregate.onpremiseUrl,
+                        aggregate.apiKey, data, parent, listener);
+                if(response != null)
+                    testRunId = response.getTestRunId();
+                // sent with the upload creating the test run
+                data.setCulprits(null);
+                data.setChangesets(null);
+                if(log.isLoggable(Level.FINE))
+                    log.fine("Sent aggregated results of " + c.names + " of " + parent + ".");
+            }
+            if(handedOver != null)
+                parent.removeAction(handedOver);
+        } finally {
+            PublishStats.stop();
+            PublishMetrics.getInstance().record(stats, (System.nanoTime() - started) / 1000000L);
+            TestlabPublishAction.record(parent, stats);
+        }
+    }
+
+    /**
+     * Forgets the results collected for the parent build.
+     *
+     * @param parent parent build
+     */
+    public void discard(Run<?, ?> parent) {
+        pending.remove(getKey(parent));
+    }
+
+    private static String getKey(Run<?, ?> parent) {
+        return parent.getParent().getFullName() + "#" + parent.getNumber();
+    }
+
+    /**
+     * Results collected for a parent build.
+     */
+    private static final class Aggregate {
+        // settings of the first configuration run
+        final TestResult template;
+        final String companyId;
+        final String onpremiseUrl;
+        final String apiKey;
+
+        // parameters as "key=value,..." -> results of the configurations with the parameters
+        final Map<String, ParameterSet> parameterSets = new LinkedHashMap<String, ParameterSet>();
+        int configurations = 0;
+        final Set<String> culprits = new TreeSet<String>();
+        final Map<String, Changeset> changesets = new LinkedHashMap<String, Changeset>();
+
+        Aggregate(TestResult template, String companyId, String onpremiseUrl, String apiKey) {
+            this.template = template;
+            this.companyId = companyId;
+            this.onpremiseUrl = onpremiseUrl;
+            this.apiKey = apiKey;
+        }
+
+        synchronized void add(String name, List<KeyValuePair> parameters, TestResult data) {
+            configurations++;
+            if(data.getResults() != null && !data.getResults().isEmpty())
+                parameterSets.computeIfAbsent(getKey(parameters), k -> new ParameterSet(parameters)).add(name, data.getResults());
+            if(data.getCulprits() != null)
+                culprits.addAll(data.getCulprits());
+            if(data.getChangesets() != null) {
+                for(Changeset cs : data.getChangesets())
+                    changesets.putIfAbsent(cs.getIdentifier(), cs);
+            }
+        }
+
+        synchronized int size() {
+            int size = 0;
+            for(ParameterSet c : parameterSets.values())
+                size += c.results.size();
+            return size;
+        }
+
+        private static String getKey(List<KeyValuePair> parameters) {
+            StringBuilder key = new StringBuilder();
+            for(KeyValuePair kvp : parameters)
+                key.append(kvp.getKey()).append('=').append(kvp.getValue()).append(',');
+            return key.toString();
+        }
+    }
+
+    /**
+     * Results of the configuration runs with the same parameters, sent in an upload.
+     */
+    private static final class ParameterSet {
+        // axes and test case parameters of the configurations
+        final List<KeyValuePair> parameters;
+        final List<String> names = new ArrayList<String>();
+        final List<TestCaseResult> results = new ArrayList<TestCaseResult>();
+
+        ParameterSet(List<KeyValuePair> parameters) {
+            this.parameters = parameters;
+        }
+
+        void add(String name, List<TestCaseResult> results) {
+            names.add(name);
+            this.results.addAll(results);
+        }
+    }
+
+    /**
+     * Number of configurations which have handed their results over, saved with the parent
+     * build to tell if the results held in memory were lost before they were published.
+     */
+    public static class HandedOver extends InvisibleAction {
+        private int configurations;
+
+        public int getConfigurations() {
+            return configurations;
+        }
+
+        public static void increment(Run<?, ?> parent) {
+            synchronized(parent) {
+                HandedOver action = parent.getAction(HandedOver.class);
+                if(action == null) {
+                    action = new HandedOver();
+                    parent.addAction(action);
+                }
+                action.configurations++;
+                try {
+                    parent.save();
+                } catch (IOException e) {
+                    log.log(Level.FINE, "Could not save " + parent + ".", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the aggregated results when the parent build completes.
+     */
+    @Extension
+    public static class ParentListener extends RunListener<Run<?, ?>> {
+        @Override
+        public void onCompleted(Run<?, ?> run, TaskListener listener) {
+            if(!(run.getParent() instanceof ItemGroup))
+                return;
+            try {
+                getInstance().publish(run, listener);
+            } catch (Exception e) {
+                log.log(Level.SEVERE, "Could not publish aggregated results of " + run + " to Testlab.", e);
+                listener.error("Could not publish aggregated results to Testlab: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void onDeleted(Run<?, ?> run) {
+            getInstance().discard(run);
+        }
+    }
+
+}
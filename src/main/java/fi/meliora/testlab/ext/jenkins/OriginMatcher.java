@@ -0,0 +1,164 @@
+package fi.meliora.testlab.ext.jenkins;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * Matches CORS Origins against wildcard patterns such as 'https://*.melioratestlab.com'.
+ *
+ * The patterns are compiled to a trie of the reversed parts after the wildcard so that an
+ * Origin is matched by walking its characters once from the end. Each pattern may have a
+ * single wildcard which matches one or more characters of the host (not '/', ':' or '@').
+ * Matching is case-insensitive and does not allocate.
+ *
+ * @author Meliora Ltd
+ */
+public final class OriginMatcher {
+    private final static Logger log = Logger.getLogger(OriginMatcher.class.getName());
+
+    private static final char WILDCARD = '*';
+
+    private final Node root;
+    private final int size;
+
+    private OriginMatcher(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * @param origin configured origin
+     * @return true if the origin is a wildcard pattern (but not the single '*' allowing all)
+     */
+    public static boolean isPattern(String origin) {
+        return origin != null && origin.length() > 1 && origin.indexOf(WILDCARD) >= 0;
+    }
+
+    /**
+     * Compiles the wildcard patterns of the origins. Origins without a wildcard are skipped.
+     *
+     * @param origins configured origins
+     * @return matcher, null if there are no patterns to match
+     */
+    public static OriginMatcher compile(Collection<String> origins) {
+        if(origins == null)
+            return null;
+        Node root = new Node();
+        int size = 0;
+        for(String origin : origins) {
+            if(!isPattern(origin))
+                continue;
+            String pattern = origin.toLowerCase(Locale.ROOT);
+            int wildcard = pattern.indexOf(WILDCARD);
+            if(pattern.indexOf(WILDCARD, wildcard + 1) >= 0) {
+                log.warning("Origin pattern '" + origin + "' has more than one wildcard and is ignored.");
+                continue;
+            }
+            Node n = root;
+            for(int i = pattern.length() - 1; i > wildcard; i--)
+                n = n.getOrAddChild(pattern.charAt(i));
+            n.addPrefix(pattern.substring(0, wildcard));
+            size++;
+        }
+        return size > 0 ? new OriginMatcher(root, size) : null;
+    }
+
+    /**
+     * @param origin Origin of the request
+     * @return true if some pattern matches the origin
+     */
+    public boolean matches(String origin) {
+        if(origin == null)
+            return false;
+        Node n = root;
+        for(int i = origin.length(); ; i--) {
+            // the part after index i matches the part after the wildcard of the patterns ending at n
+            if(n.prefixes != null) {
+                for(String prefix : n.prefixes) {
+                    if(matchesHead(origin, i, prefix))
+                        return true;
+                }
+            }
+            if(i == 0)
+                return false;
+            n = n.getChild(Character.toLowerCase(origin.charAt(i - 1)));
+            if(n == null)
+                return false;
+        }
+    }
+
+    /**
+     * @return true if origin[0, end) is the prefix followed by one or more wildcard characters
+     */
+    private static boolean matchesHead(String origin, int end, String prefix) {
+        int p = prefix.length();
+        if(end <= p || !origin.regionMatches(true, 0, prefix, 0, p))
+            return false;
+        for(int i = p; i < end; i++) {
+            char c = origin.charAt(i);
+            if(c == '/' || c == ':' || c == '@')
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return number of patterns compiled
+     */
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "OriginMatcher{" +
+                "patterns=" + size +
+                '}';
+    }
+
+    /**
+     * Node of the trie, children are kept in arrays sorted by the character.
+     */
+    private static final class Node {
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        // prefixes before the wildcard of the patterns ending at this node
+        private String[] prefixes;
+
+        Node getChild(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            return i >= 0 ? children[i] : null;
+        }
+
+        Node getOrAddChild(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            if(i >= 0)
+                return children[i];
+            i = -(i + 1);
+            char[] k = new char[keys.length + 1];
+            Node[] ch = new Node[children.length + 1];
+            System.arraycopy(keys, 0, k, 0, i);
+            System.arraycopy(children, 0, ch, 0, i);
+            System.arraycopy(keys, i, k, i + 1, keys.length - i);
+            System.arraycopy(children, i, ch, i + 1, children.length - i);
+            Node child = new Node();
+            k[i] = c;
+            ch[i] = child;
+            keys = k;
+            children = ch;
+            return child;
+        }
+
+        void addPrefix(String prefix) {
+            if(prefixes == null) {
+                prefixes = new String[] { prefix };
+            } else if(!Arrays.asList(prefixes).contains(prefix)) {
+                prefixes = Arrays.copyOf(prefixes, prefixes.length + 1);
+                prefixes[prefixes.length - 1] = prefix;
+            }
+        }
+    }
+
+}
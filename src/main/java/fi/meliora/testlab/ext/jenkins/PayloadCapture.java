@@ -0,0 +1,322 @@
+package fi.meliora.testlab.ext.jenkins;
+
+import fi.meliora.testlab.ext.crest.CrestEndpointFactory;
+import fi.meliora.testlab.ext.crest.ObjectMapperFactory;
+import fi.meliora.testlab.ext.crest.RequestTap;
+import fi.meliora.testlab.ext.crest.WireFormatNegotiator;
+import fi.meliora.testlab.ext.rest.model.AddTestResultResponse;
+import fi.meliora.testlab.ext.rest.model.TestResult;
+import hudson.model.Run;
+import org.apache.commons.io.IOUtils;
+import org.codegist.crest.serializer.jackson.SmileEntityWriter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Captures the request bodies sent to Testlab to the directory of the build so that a
+ * publish can be reproduced and replayed later, see {@link PayloadReplayer}.
+ *
+ * Capturing is set with the TESTLAB_SENDER_CAPTURE system property: 'true' captures the
+ * bodies as is, 'gzip' compresses them and 'false' disables capturing. When sending is
+ * skipped with TESTLAB_SENDER_SKIP_SEND, the payloads are captured by default.
+ *
+ * The bodies are copied as they are written to the requests by the transports, see
+ * {@link RequestTap}, so each request sent is captured, including chunks, resends and
+ * requests which failed, with the content type and idempotency key it was sent with. Each
+ * payload is written to testlab-capture/payload-NNNN.json (or .smile, with .gz if compressed)
+ * with its metadata in payload-NNNN.properties. The api key is never captured.
+ *
+ * @author Meliora Ltd
+ */
+public class PayloadCapture {
+    private final static Logger log = Logger.getLogger(PayloadCapture.class.getName());
+
+    public static final String DIR = "testlab-capture";
+
+    public enum Mode {
+        NONE,
+        PLAIN,
+        GZIP
+    }
+
+    private PayloadCapture() {
+    }
+
+    /**
+     * @return capture mode configured
+     */
+    public static Mode getMode() {
+        String mode = System.getProperty("TESTLAB_SENDER_CAPTURE");
+        if(mode == null || mode.trim().length() == 0)
+            return Sender.isSkipSend() ? Mode.PLAIN : Mode.NONE;
+        if("gzip".equalsIgnoreCase(mode))
+            return Mode.GZIP;
+        return "true".equalsIgnoreCase(mode) ? Mode.PLAIN : Mode.NONE;
+    }
+
+    /**
+     * Returns a tap capturing the requests sent for the results, if capturing is enabled.
+     *
+     * @param build build publishing
+     * @param companyId company id of hosted Testlab
+     * @param onpremiseUrl url of on-premise Testlab, null if hosted
+     * @param data results sent
+     * @return tap, null if capturing is disabled
+     */
+    public static RequestTap tap(Run<?, ?> build, String companyId, String onpremiseUrl, TestResult data) {
+        Mode mode = getMode();
+        if(mode == Mode.NONE)
+            return null;
+        final Properties meta = new Properties();
+        boolean onpremise = onpremiseUrl != null && onpremiseUrl.trim().length() > 0;
+        meta.setProperty("user", onpremise ? "company" : companyId);
+        meta.setProperty("compression", mode == Mode.GZIP ? "gzip" : "none");
+        meta.setProperty("results", String.valueOf(data.getResults() != null ? data.getResults().size() : 0));
+        meta.setProperty("projectKey", String.valueOf(data.getProjectKey()));
+        meta.setProperty("testRunTitle", String.valueOf(data.getTestRunTitle()));
+        if(data.getTestRunId() != null)
+            meta.setProperty("testRunId", String.valueOf(data.getTestRunId()));
+        meta.setProperty("build", build.getFullDisplayName());
+        final File dir = new File(build.getRootDir(), DIR);
+        return new RequestTap() {
+            @Override
+            public Request open(String url, String contentType, String idempotencyKey) {
+                Properties m = new Properties();
+                m.putAll(meta);
+                m.setProperty("url", url);
+                m.setProperty("contentType", contentType);
+                if(idempotencyKey != null)
+                    m.setProperty("idempotencyKey", idempotencyKey);
+                try {
+                    return new CapturedRequest(dir, mode, m);
+                } catch (IOException e) {
+                    log.log(Level.WARNING, "Could not capture the payload of " + build, e);
+                    return null;
+                }
+            }
+        };
+    }
+
+    /**
+     * Captures the payload of a request not sent as sending is skipped with TESTLAB_SENDER_SKIP_SEND.
+     * The results are encoded as they would be sent, with the wire format negotiated for Testlab.
+     * Failing to capture is only logged.
+     *
+     * @param build build publishing
+     * @param companyId company id of hosted Testlab
+     * @param onpremiseUrl url of on-premise Testlab, null if hosted
+     * @param data results not sent
+     */
+    public static void captureUnsent(Run<?, ?> build, String companyId, String onpremiseUrl, TestResult data) {
+        RequestTap tap = tap(build, companyId, onpremiseUrl, data);
+        if(tap == null)
+            return;
+        String url = CrestEndpointFactory.getInstance().getTestlabUrl(companyId, onpremiseUrl);
+        boolean smile = WireFormatNegotiator.getInstance().getFormat(url) == WireFormatNegotiator.WireFormat.SMILE;
+        RequestTap.Request request = tap.open(url, smile ? SmileEntityWriter.CONTENT_TYPE : "application/json", null);
+        if(request == null)
+            return;
+        try (OutputStream out = request.openBody()) {
+            (smile ? ObjectMapperFactory.getInstance().getSmileTestResultWriter() : ObjectMapperFactory.getInstance().getTestResultWriter())
+                    .writeValue(out, data);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Could not capture the payload of " + build, e);
+        }
+        request.completed(null, null);
+    }
+
+    /**
+     * Reserves the name of the payload by writing its metadata.
+     *
+     * @return name of the payload
+     */
+    private static synchronized String reserve(File dir, Properties meta) throws IOException {
+        if(!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Could not create " + dir);
+        String name = String.format("payload-%04d", list(dir).size() + 1);
+        store(new File(dir, name + ".properties"), meta);
+        return name;
+    }
+
+    private static void store(File file, Properties meta) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            meta.store(out, "Payload sent to Testlab");
+        }
+    }
+
+    /**
+     * @param build build
+     * @return payloads captured for the build in the order sent
+     */
+    public static List<Captured> list(Run<?, ?> build) throws IOException {
+        return list(new File(build.getRootDir(), DIR));
+    }
+
+    protected static List<Captured> list(File dir) throws IOException {
+        List<Captured> captured = new ArrayList<Captured>();
+        File[] files = dir.listFiles((d, name) -> name.startsWith("payload-") && name.endsWith(".properties"));
+        if(files == null)
+            return captured;
+        Arrays.sort(files);
+        for(File f : files)
+            captured.add(new Captured(dir, f));
+        return captured;
+    }
+
+    /**
+     * A request captured, the body is written to the file as it is sent and the metadata
+     * is completed with the outcome of the request.
+     */
+    private static final class CapturedRequest implements RequestTap.Request {
+        private final File dir;
+        private final Mode mode;
+        private final Properties meta;
+        private final String name;
+        private final File file;
+        private final AtomicLong bytes = new AtomicLong();
+        private volatile OutputStream body;
+
+        CapturedRequest(File dir, Mode mode, Properties meta) throws IOException {
+            this.dir = dir;
+            this.mode = mode;
+            this.meta = meta;
+            meta.setProperty("sent", "false");
+            meta.setProperty("captured", Instant.now().toString());
+            this.name = reserve(dir, meta);
+            boolean smile = SmileEntityWriter.CONTENT_TYPE.equals(meta.getProperty("contentType"));
+            this.file = new File(dir, name + "." + (smile ? "smile" : "json") + (mode == Mode.GZIP ? ".gz" : ""));
+        }
+
+        @Override
+        public synchronized OutputStream openBody() throws IOException {
+            closeBody();
+            bytes.set(0L);
+            OutputStream stream = new FileOutputStream(file);
+            if(mode == Mode.GZIP)
+                stream = new GZIPOutputStream(stream);
+            body = new FilterOutputStream(stream) {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    bytes.incrementAndGet();
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    bytes.addAndGet(len);
+                }
+            };
+            return body;
+        }
+
+        @Override
+        public synchronized void completed(AddTestResultResponse response, Throwable failure) {
+            try {
+                closeBody();
+                meta.setProperty("bytes", String.valueOf(bytes.get()));
+                meta.setProperty("sent", String.valueOf(response != null));
+                if(response != null && response.getTestRunId() != null)
+                    meta.setProperty("testRunId", String.valueOf(response.getTestRunId()));
+                if(failure != null)
+                    meta.setProperty("failure", String.valueOf(failure));
+                store(new File(dir, name + ".properties"), meta);
+                if(log.isLoggable(Level.INFO))
+                    log.info("Captured the payload " + (response != null ? "sent" : failure != null ? "failed to send" : "not sent")
+                            + " to Testlab to " + file);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Could not capture the payload to " + file, e);
+            }
+        }
+
+        // the body is closed by the writer, unless writing failed
+        private void closeBody() throws IOException {
+            OutputStream out = body;
+            body = null;
+            if(out != null)
+                out.close();
+        }
+    }
+
+    /**
+     * A captured payload.
+     */
+    public static class Captured {
+        private final File body;
+        private final Properties meta = new Properties();
+
+        Captured(File dir, File metaFile) throws IOException {
+            try (InputStream in = new FileInputStream(metaFile)) {
+                meta.load(in);
+            }
+            String name = metaFile.getName().substring(0, metaFile.getName().length() - ".properties".length());
+            String extension = SmileEntityWriter.CONTENT_TYPE.equals(getContentType()) ? ".smile" : ".json";
+            this.body = new File(dir, name + extension + (isCompressed() ? ".gz" : ""));
+        }
+
+        public File getFile() {
+            return body;
+        }
+
+        public String getUrl() {
+            return meta.getProperty("url");
+        }
+
+        /**
+         * @return user name the payload was sent with, company id of hosted Testlab
+         */
+        public String getUser() {
+            return meta.getProperty("user");
+        }
+
+        public String getContentType() {
+            return meta.getProperty("contentType");
+        }
+
+        public boolean isCompressed() {
+            return "gzip".equals(meta.getProperty("compression"));
+        }
+
+        public int getResults() {
+            return Integer.parseInt(meta.getProperty("results", "0"));
+        }
+
+        public String getProperty(String key) {
+            return meta.getProperty(key);
+        }
+
+        /**
+         * @return the request body, decompressed
+         */
+        public byte[] readBody() throws IOException {
+            try (InputStream in = isCompressed() ? new GZIPInputStream(new FileInputStream(body)) : new FileInputStream(body)) {
+                return IOUtils.toByteArray(in);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Captured{" +
+                    "file=" + body +
+                    ", meta=" + meta +
+                    '}';
+        }
+    }
+
+}
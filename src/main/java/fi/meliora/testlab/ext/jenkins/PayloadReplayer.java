@@ -0,0 +1,181 @@
+package fi.meliora.testlab.ext.jenkins;
+
+import fi.meliora.testlab.ext.crest.HttpClientTransport;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Re-posts payloads captured with {@link PayloadCapture} to Testlab as they were captured,
+ * for reproducing a publish or for load testing a staging Testlab.
+ *
+ * Uploads are started at most rate times a second (unlimited if not positive) with at most
+ * concurrency uploads in progress at a time. The payloads are sent with the HttpClient shared
+ * with the publishing, see {@link HttpClientTransport}, with the content type they were
+ * captured with. The idempotency key captured is not sent so that Testlab processes each
+ * replayed upload.
+ *
+ * @author Meliora Ltd
+ */
+public class PayloadReplayer {
+    public static final int TIMEOUT = 30000;
+
+    private final String url;
+    private final String user;
+    private final String apiKey;
+    private final double rate;
+    private final int concurrency;
+    private final PrintStream out;
+
+    /**
+     * @param url api url of Testlab to send to, if null the url each payload was captured for
+     * @param user user name, if null the user each payload was captured with
+     * @param apiKey api key
+     * @param rate uploads started per second, unlimited if not positive
+     * @param concurrency maximum number of uploads in progress
+     * @param out stream to report the progress to
+     */
+    public PayloadReplayer(String url, String user, String apiKey, double rate, int concurrency, PrintStream out) {
+        this.url = url;
+        this.user = user;
+        this.apiKey = apiKey;
+        this.rate = rate;
+        this.concurrency = Math.max(1, concurrency);
+        this.out = out;
+    }
+
+    /**
+     * Sends the payloads repeat times over.
+     *
+     * @param payloads payloads
+     * @param repeat times to send each payload
+     * @return summary of the replay
+     * @throws InterruptedException if interrupted, uploads in progress are cancelled
+     */
+    public Summary replay(List<PayloadCapture.Captured> payloads, int repeat) throws InterruptedException {
+        List<PayloadCapture.Captured> queue = new ArrayList<PayloadCapture.Captured>();
+        for(int i = 0; i < repeat; i++)
+            queue.addAll(payloads);
+
+        final Summary summary = new Summary();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        Semaphore slots = new Semaphore(concurrency);
+        long interval = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / rate) : 0L;
+        long started = System.nanoTime();
+        try {
+            for(int i = 0; i < queue.size(); i++) {
+                if(interval > 0) {
+                    long wait = started + i * interval - System.nanoTime();
+                    if(wait > 0)
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                slots.acquire();
+                final PayloadCapture.Captured payload = queue.get(i);
+                executor.submit(() -> {
+                    long s = System.nanoTime();
+                    try {
+                        int status = put(payload);
+                        summary.add(status, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - s));
+                        if(status != 200)
+                            out.println("Replaying " + payload.getFile().getName() + " failed with status " + status + ".");
+                    } catch (Exception e) {
+                        summary.add(-1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - s));
+                        out.println("Replaying " + payload.getFile().getName() + " failed: " + e);
+                    } finally {
+                        slots.release();
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } finally {
+            executor.shutdownNow();
+        }
+        summary.elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        return summary;
+    }
+
+    /**
+     * @param payload payload
+     * @return HTTP status of the response
+     */
+    protected int put(PayloadCapture.Captured payload) throws IOException, InterruptedException {
+        String target = url != null ? url : payload.getUrl();
+        String username = user != null ? user : payload.getUser();
+
+        HttpRequest request = HttpRequest.newBuilder(URI.create(target + (target.endsWith("/") ? "" : "/") + "testresult"))
+                .timeout(Duration.ofMillis(TIMEOUT))
+                .header("Content-Type", payload.getContentType())
+                .header("Accept", "application/json")
+                .header("Authorization", "Basic " + Base64.getEncoder().encodeToString(
+                        (username + ":" + apiKey).getBytes(StandardCharsets.UTF_8)))
+                .PUT(HttpRequest.BodyPublishers.ofByteArray(payload.readBody()))
+                .build();
+        return HttpClientTransport.getClient().send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+    /**
+     * Summary of a replay.
+     */
+    public static class Summary {
+        private final AtomicInteger sent = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final LongAdder totalMillis = new LongAdder();
+        private final AtomicLong maxMillis = new AtomicLong();
+        private volatile long elapsedMillis;
+
+        void add(int status, long millis) {
+            if(status == 200)
+                sent.incrementAndGet();
+            else
+                failed.incrementAndGet();
+            totalMillis.add(millis);
+            maxMillis.accumulateAndGet(millis, Math::max);
+        }
+
+        public int getSent() {
+            return sent.get();
+        }
+
+        public int getFailed() {
+            return failed.get();
+        }
+
+        public long getAverageMillis() {
+            int n = sent.get() + failed.get();
+            return n > 0 ? totalMillis.sum() / n : 0L;
+        }
+
+        public long getMaxMillis() {
+            return maxMillis.get();
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            int n = sent.get() + failed.get();
+            return "Replayed " + n + " payloads in " + elapsedMillis + " ms: " + sent.get() + " sent, " + failed.get() + " failed, "
+                    + "average " + getAverageMillis() + " ms, max " + getMaxMillis() + " ms"
+                    + (elapsedMillis > 0 ? String.format(", %.1f uploads/s", n * 1000d / elapsedMillis) : "") + ".";
+        }
+    }
+
+}
@@ -0,0 +1,122 @@
+package fi.meliora.testlab.ext.jenkins;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.UniformSnapshot;
+import hudson.Extension;
+import jenkins.metrics.api.MetricProvider;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Registers {@link PublishMetrics} to the registry of the Metrics plugin, if installed: the
+ * latencies of the phases in milliseconds and the payload sizes as Histograms reading the
+ * histograms of {@link PublishMetrics}, the other values as gauges.
+ *
+ * @author Meliora Ltd
+ */
+@Extension(optional = true)
+public class PublishMetricProvider extends MetricProvider {
+    // exception types counted as their own metric, others are summed to "other"
+    static final String[] ERROR_TYPES = {
+            "NotFoundException", "ConflictException", "ServiceUnavailableException", "UnauthorizedException",
+            "ValidationException", "UnsupportedMediaTypeException", "TestlabAPIException"
+    };
+
+    @NonNull
+    @Override
+    public MetricSet getMetricSet() {
+        final PublishMetrics m = PublishMetrics.getInstance();
+        final Map<String, Metric> metrics = new HashMap<String, Metric>();
+
+        metrics.put(name("publishes"), gauge(m::getPublishes));
+        metrics.put(name("inflight"), gauge(m::getInFlight));
+        metrics.put(name("queued"), gauge(m::getQueued));
+        metrics.put(name("endpointCache", "hitRate"), gauge(m::getEndpointCacheHitRate));
+        metrics.put(name("duplicatesSkipped"), gauge(m::getDuplicatesSkipped));
+        metrics.put(name("cors", "preflight"), gauge(m::getCorsPreflightRequests));
+        metrics.put(name("cors", "requests"), gauge(m::getCorsRequests));
+        metrics.put(name("cors", "denied"), gauge(m::getCorsDeniedRequests));
+        // endpoints are not known when the metrics are registered: the estimates by endpoint url and the lowest one
+        metrics.put(name("ingestThroughput"), gauge(m::getIngestThroughput));
+        metrics.put(name("ingestThroughput", "min"), gauge(() -> {
+            double min = 0d;
+            for(double throughput : m.getIngestThroughput().values())
+                min = min > 0d ? Math.min(min, throughput) : throughput;
+            return min;
+        }));
+
+        metrics.put(name("duration"), histogram(m.getPublishHistogram()));
+        metrics.put(name("parse"), histogram(m.getParseHistogram()));
+        metrics.put(name("serialize"), histogram(m.getSerializeHistogram()));
+        metrics.put(name("network"), histogram(m.getNetworkHistogram()));
+        metrics.put(name("queueWait"), histogram(m.getQueueWaitHistogram()));
+        metrics.put(name("payloadBytes"), histogram(m.getPayloadHistogram()));
+
+        for(final String type : ERROR_TYPES)
+            metrics.put(name("errors", type), gauge(() -> m.getErrors(type)));
+        metrics.put(name("errors", "other"), gauge(() -> {
+            long other = 0;
+            for(Map.Entry<String, Long> e : m.getErrors().entrySet()) {
+                if(!isErrorType(e.getKey()))
+                    other += e.getValue();
+            }
+            return other;
+        }));
+
+        return () -> metrics;
+    }
+
+    private static boolean isErrorType(String type) {
+        for(String t : ERROR_TYPES) {
+            if(t.equals(type))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param histogram histogram of {@link PublishMetrics}
+     * @return Histogram reading the histogram, values are recorded through {@link PublishMetrics} only
+     */
+    private static Histogram histogram(final PublishMetrics.Histogram histogram) {
+        return new Histogram(new Reservoir() {
+            @Override
+            public int size() {
+                return histogram.getValues().length;
+            }
+
+            @Override
+            public void update(long value) {
+                histogram.update(value);
+            }
+
+            @Override
+            public Snapshot getSnapshot() {
+                return new UniformSnapshot(histogram.getValues());
+            }
+        }) {
+            @Override
+            public long getCount() {
+                return histogram.getCount();
+            }
+        };
+    }
+
+    private static <T> Gauge<T> gauge(Supplier<T> value) {
+        return value::get;
+    }
+
+    private static String name(String... names) {
+        return MetricRegistry.name("testlab.publish", names);
+    }
+
+}
@@ -0,0 +1,383 @@
+package fi.meliora.testlab.ext.jenkins;
+
+import fi.meliora.testlab.ext.crest.AdaptiveTimeouts;
+import fi.meliora.testlab.ext.crest.CrestEndpointFactory;
+import fi.meliora.testlab.ext.crest.PublishStats;
+import fi.meliora.testlab.ext.crest.UploadDeduplicator;
+import fi.meliora.testlab.ext.crest.exception.TestlabAPIException;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.beans.ConstructorParameters;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controller-wide metrics of publishing results to Testlab: latencies of the phases of the
+ * publishes, payload sizes, uploads in progress and waiting, errors by type and the hit rate
+ * of the endpoint cache of {@link CrestEndpointFactory}. The requests handled by
+ * {@link CORSFilter} are exported with them.
+ *
+ * The latencies and sizes are recorded to histograms of JDK types only. Their counts are
+ * totals, the other values are of the last {@link Histogram#SIZE} values recorded. The metrics
+ * are registered to the platform MBean server as {@link #OBJECT_NAME} and, if the Metrics plugin
+ * is installed, to its registry (see {@link PublishMetricProvider}), both views over the same
+ * histograms.
+ *
+ * @author Meliora Ltd
+ */
+public class PublishMetrics implements PublishMetricsMXBean {
+    private final static Logger log = Logger.getLogger(PublishMetrics.class.getName());
+
+    public static final String OBJECT_NAME = "fi.meliora.testlab:type=PublishMetrics";
+
+    private static PublishMetrics instance = new PublishMetrics();
+
+    public static PublishMetrics getInstance() {
+        return instance;
+    }
+
+    private final Histogram publishMillis = new Histogram();
+    private final Histogram parseMillis = new Histogram();
+    private final Histogram serializeMillis = new Histogram();
+    private final Histogram networkMillis = new Histogram();
+    private final Histogram queueWaitMillis = new Histogram();
+    private final Histogram payloadBytes = new Histogram();
+
+    private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<String, LongAdder>();
+
+    private PublishMetrics() {
+    }
+
+    @Initializer(after = InitMilestone.PLUGINS_STARTED)
+    public static void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if(!server.isRegistered(name))
+                server.registerMBean(getInstance(), name);
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Could not register the Testlab publish metrics to JMX.", e);
+        }
+    }
+
+    @Terminator
+    public static void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if(server.isRegistered(name))
+                server.unregisterMBean(name);
+        } catch (Exception e) {
+            log.log(Level.FINE, "Could not unregister the Testlab publish metrics from JMX.", e);
+        }
+    }
+
+    /**
+     * Records a publish.
+     *
+     * @param stats statistics of the publish
+     * @param millis total time of the publish
+     */
+    public void record(PublishStats stats, long millis) {
+        if(stats.getUploads() == 0)
+            return;
+        publishMillis.update(millis);
+        parseMillis.update(stats.getParseMillis());
+        serializeMillis.update(stats.getSerializeMillis());
+        networkMillis.update(stats.getNetworkMillis());
+        payloadBytes.update(stats.getPayloadBytes());
+    }
+
+    /**
+     * Records the time an upload waited for its turn in {@link PublishScheduler}.
+     *
+     * @param millis time waited
+     */
+    public void recordQueueWait(long millis) {
+        queueWaitMillis.update(millis);
+    }
+
+    /**
+     * Counts a failed upload by the type of the exception. A wrapped {@link TestlabAPIException}
+     * is counted by its own type.
+     *
+     * @param e exception
+     */
+    public void recordError(Throwable e) {
+        errors.computeIfAbsent(getErrorType(e), k -> new LongAdder()).increment();
+    }
+
+    protected static String getErrorType(Throwable e) {
+        for(Throwable t = e; t != null; t = t.getCause()) {
+            if(t instanceof TestlabAPIException)
+                return t.getClass().getSimpleName();
+        }
+        Throwable root = e;
+        while(root.getCause() != null && root.getCause() != root)
+            root = root.getCause();
+        return root.getClass().getSimpleName();
+    }
+
+    Histogram getPublishHistogram() {
+        return publishMillis;
+    }
+
+    Histogram getParseHistogram() {
+        return parseMillis;
+    }
+
+    Histogram getSerializeHistogram() {
+        return serializeMillis;
+    }
+
+    Histogram getNetworkHistogram() {
+        return networkMillis;
+    }
+
+    Histogram getQueueWaitHistogram() {
+        return queueWaitMillis;
+    }
+
+    Histogram getPayloadHistogram() {
+        return payloadBytes;
+    }
+
+    @Override
+    public long getPublishes() {
+        return publishMillis.getCount();
+    }
+
+    @Override
+    public int getInFlight() {
+        return PublishScheduler.getInstance().getInFlight();
+    }
+
+    @Override
+    public int getQueued() {
+        return PublishScheduler.getInstance().getQueueDepth();
+    }
+
+    @Override
+    public HistogramSnapshot getPublishMillis() {
+        return publishMillis.snapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getParseMillis() {
+        return parseMillis.snapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getSerializeMillis() {
+        return serializeMillis.snapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getNetworkMillis() {
+        return networkMillis.snapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getQueueWaitMillis() {
+        return queueWaitMillis.snapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getPayloadBytes() {
+        return payloadBytes.snapshot();
+    }
+
+    @Override
+    public Map<String, Long> getErrors() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for(Map.Entry<String, LongAdder> e : errors.entrySet())
+            counts.put(e.getKey(), e.getValue().sum());
+        return counts;
+    }
+
+    /**
+     * @param type simple name of the exception class
+     * @return number of errors of the type
+     */
+    public long getErrors(String type) {
+        LongAdder count = errors.get(type);
+        return count != null ? count.sum() : 0L;
+    }
+
+    @Override
+    public long getEndpointCacheHits() {
+        return CrestEndpointFactory.getInstance().getCacheHits();
+    }
+
+    @Override
+    public long getEndpointCacheMisses() {
+        return CrestEndpointFactory.getInstance().getCacheMisses();
+    }
+
+    @Override
+    public double getEndpointCacheHitRate() {
+        long hits = getEndpointCacheHits();
+        long total = hits + getEndpointCacheMisses();
+        return total > 0 ? (double) hits / total : 0d;
+    }
+
+    @Override
+    public long getDuplicatesSkipped() {
+        return UploadDeduplicator.getInstance().getSkipped();
+    }
+
+    @Override
+    public Map<String, Double> getIngestThroughput() {
+        // bytes per millisecond to kB/s
+        Map<String, Double> throughput = new TreeMap<String, Double>();
+        for(Map.Entry<String, Double> e : AdaptiveTimeouts.getInstance().getThroughputs().entrySet())
+            throughput.put(e.getKey(), e.getValue() * 1000d / 1024d);
+        return throughput;
+    }
+
+    @Override
+    public long getCorsPreflightRequests() {
+        CORSFilter filter = CORSFilter.getInstalled();
+        return filter != null ? filter.getPreflightRequests() : 0L;
+    }
+
+    @Override
+    public long getCorsRequests() {
+        CORSFilter filter = CORSFilter.getInstalled();
+        return filter != null ? filter.getCorsRequests() : 0L;
+    }
+
+    @Override
+    public long getCorsDeniedRequests() {
+        CORSFilter filter = CORSFilter.getInstalled();
+        return filter != null ? filter.getDeniedRequests() : 0L;
+    }
+
+    @Override
+    public void reset() {
+        errors.clear();
+    }
+
+    /**
+     * Counts the values recorded and keeps the last {@link #SIZE} of them for the other values.
+     */
+    public static final class Histogram {
+        public static final int SIZE = 1028;
+
+        private final LongAdder count = new LongAdder();
+        // the last values recorded as a ring, guarded by this
+        private final long[] values = new long[SIZE];
+        private int next = 0;
+        private int size = 0;
+
+        public void update(long value) {
+            count.increment();
+            synchronized(this) {
+                values[next] = Math.max(0, value);
+                next = (next + 1) % SIZE;
+                size = Math.min(size + 1, SIZE);
+            }
+        }
+
+        /**
+         * @return number of values recorded since startup
+         */
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * @return the last values recorded, in no particular order
+         */
+        public synchronized long[] getValues() {
+            return Arrays.copyOf(values, size);
+        }
+
+        public HistogramSnapshot snapshot() {
+            long[] v = getValues();
+            Arrays.sort(v);
+            long sum = 0;
+            for(long value : v)
+                sum += value;
+            return new HistogramSnapshot(getCount(), v.length > 0 ? (double) sum / v.length : 0d, v.length > 0 ? v[v.length - 1] : 0L,
+                    percentile(v, 0.5), percentile(v, 0.95), percentile(v, 0.99));
+        }
+
+        private static long percentile(long[] sorted, double p) {
+            if(sorted.length == 0)
+                return 0;
+            int rank = (int) Math.ceil(p * sorted.length);
+            return sorted[Math.max(0, rank - 1)];
+        }
+    }
+
+    /**
+     * Point in time values of a histogram.
+     */
+    public static final class HistogramSnapshot {
+        private final long count;
+        private final double mean;
+        private final long max;
+        private final long p50;
+        private final long p95;
+        private final long p99;
+
+        @ConstructorParameters({"count", "mean", "max", "p50", "p95", "p99"})
+        public HistogramSnapshot(long count, double mean, long max, long p50, long p95, long p99) {
+            this.count = count;
+            this.mean = mean;
+            this.max = max;
+            this.p50 = p50;
+            this.p95 = p95;
+            this.p99 = p99;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP95() {
+            return p95;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        @Override
+        public String toString() {
+            return "HistogramSnapshot{" +
+                    "count=" + count +
+                    ", mean=" + mean +
+                    ", max=" + max +
+                    ", p50=" + p50 +
+                    ", p95=" + p95 +
+                    ", p99=" + p99 +
+                    '}';
+        }
+    }
+
+}
@@ -0,0 +1,80 @@
+package fi.meliora.testlab.ext.jenkins;
+
+import java.util.Map;
+
+/**
+ * JMX interface of {@link PublishMetrics}. Times are in milliseconds and sizes in bytes.
+ *
+ * @author Meliora Ltd
+ */
+public interface PublishMetricsMXBean {
+
+    /**
+     * @return number of publishes which sent results to Testlab
+     */
+    long getPublishes();
+
+    /**
+     * @return number of uploads in progress
+     */
+    int getInFlight();
+
+    /**
+     * @return number of uploads waiting for their turn
+     */
+    int getQueued();
+
+    PublishMetrics.HistogramSnapshot getPublishMillis();
+
+    PublishMetrics.HistogramSnapshot getParseMillis();
+
+    PublishMetrics.HistogramSnapshot getSerializeMillis();
+
+    PublishMetrics.HistogramSnapshot getNetworkMillis();
+
+    PublishMetrics.HistogramSnapshot getQueueWaitMillis();
+
+    PublishMetrics.HistogramSnapshot getPayloadBytes();
+
+    /**
+     * @return exception type -> number of failed uploads
+     */
+    Map<String, Long> getErrors();
+
+    long getEndpointCacheHits();
+
+    long getEndpointCacheMisses();
+
+    double getEndpointCacheHitRate();
+
+    /**
+     * @return number of uploads not sent as Testlab had already acknowledged identical results
+     */
+    long getDuplicatesSkipped();
+
+    /**
+     * @return endpoint url -> estimated ingest throughput of Testlab in kB/s, used for the read timeouts
+     */
+    Map<String, Double> getIngestThroughput();
+
+    /**
+     * @return number of CORS preflight requests answered by the plugin
+     */
+    long getCorsPreflightRequests();
+
+    /**
+     * @return number of requests from allowed origins
+     */
+    long getCorsRequests();
+
+    /**
+     * @return number of requests from origins not allowed
+     */
+    long getCorsDeniedRequests();
+
+    /**
+     * Clears the error counts. The latencies and sizes are not cleared but are of the last values recorded.
+     */
+    void reset();
+
+}
@@ -0,0 +1,55 @@
+package fi.meliora.testlab.ext.jenkins;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Management page listing the uploads of results to Testlab waiting in PublishScheduler.
+ *
+ * @author Meliora Ltd
+ */
+@Extension
+public class PublishQueueLink extends ManagementLink {
+
+    @Override
+    public String getIconFileName() {
+        return "symbol-analytics";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Testlab publish queue";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Uploads of test results to Meliora Testlab waiting to be sent.";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "testlab-publish-queue";
+    }
+
+    @Override
+    public Category getCategory() {
+        return Category.STATUS;
+    }
+
+    public PublishScheduler getScheduler() {
+        return PublishScheduler.getInstance();
+    }
+
+    /**
+     * @return queued uploads, longest waiting first
+     */
+    public List<PublishScheduler.Ticket> getQueued() {
+        List<PublishScheduler.Ticket> queued = getScheduler().getQueued();
+        queued.sort(Comparator.comparingLong(PublishScheduler.Ticket::getWaitMillis).reversed());
+        return queued;
+    }
+
+}
@@ -0,0 +1,310 @@
+package fi.meliora.testlab.ext.jenkins;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Schedules the uploads of results to Testlab controller-wide. At most
+ * TESTLAB_PUBLISH_MAX_INFLIGHT (system property, defaults to 4) uploads are sent to a
+ * single Testlab endpoint at a time, the rest wait in a queue.
+ *
+ * When a slot frees up the next upload is picked round-robin between the jobs waiting so
+ * that a job publishing lots of results (such as a large matrix) does not starve the other
+ * jobs. Small uploads (at most TESTLAB_PUBLISH_SMALL_PAYLOAD results, defaults to 100) are
+ * picked before larger ones unless a larger upload has waited for more than
+ * TESTLAB_PUBLISH_MAX_PRIORITY_WAIT milliseconds (defaults to 10000).
+ *
+ * The uploads run on the threads of the publishing builds, the scheduler only decides
+ * when each may proceed.
+ *
+ * @author Meliora Ltd
+ */
+public class PublishScheduler {
+    private final static Logger log = Logger.getLogger(PublishScheduler.class.getName());
+
+    public static final int DEFAULT_MAX_INFLIGHT = 4;
+    public static final int DEFAULT_SMALL_PAYLOAD = 100;
+    public static final long DEFAULT_MAX_PRIORITY_WAIT = 10000;
+
+    private static PublishScheduler instance = new PublishScheduler();
+
+    public static PublishScheduler getInstance() {
+        return instance;
+    }
+
+    private final ConcurrentMap<String, EndpointQueue> endpoints = new ConcurrentHashMap<String, EndpointQueue>();
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder totalWaitMillis = new LongAdder();
+    private final AtomicLong maxWaitMillis = new AtomicLong();
+
+    private PublishScheduler() {
+    }
+
+    public static int getMaxInFlight() {
+        return Math.max(1, Integer.getInteger("TESTLAB_PUBLISH_MAX_INFLIGHT", DEFAULT_MAX_INFLIGHT));
+    }
+
+    public static int getSmallPayload() {
+        return Integer.getInteger("TESTLAB_PUBLISH_SMALL_PAYLOAD", DEFAULT_SMALL_PAYLOAD);
+    }
+
+    public static long getMaxPriorityWait() {
+        return Long.getLong("TESTLAB_PUBLISH_MAX_PRIORITY_WAIT", DEFAULT_MAX_PRIORITY_WAIT);
+    }
+
+    /**
+     * Waits for a slot for the endpoint and runs the upload.
+     *
+     * @param endpoint url of the Testlab endpoint
+     * @param job name of the job publishing, uploads are fair between jobs
+     * @param build display name of the build publishing
+     * @param size size of the upload as number of results
+     * @param upload the upload
+     * @return result of the upload
+     * @throws InterruptedException if interrupted while waiting, upload is not run
+     * @throws Exception exception thrown by the upload
+     */
+    public <T> T submit(String endpoint, String job, String build, int size, Callable<T> upload) throws Exception {
+        EndpointQueue queue = endpoints.computeIfAbsent(endpoint, EndpointQueue::new);
+        Ticket ticket = new Ticket(endpoint, job, build, size, size <= getSmallPayload());
+        queue.await(ticket);
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - ticket.enqueued);
+        totalWaitMillis.add(waited);
+        maxWaitMillis.accumulateAndGet(waited, Math::max);
+        PublishMetrics.getInstance().recordQueueWait(waited);
+        if(log.isLoggable(Level.FINE))
+            log.fine("Publishing " + build + " to " + endpoint + " after waiting " + waited + " ms.");
+        try {
+            return upload.call();
+        } finally {
+            published.increment();
+            queue.release();
+        }
+    }
+
+    /**
+     * @return uploads waiting for a slot, in no particular order
+     */
+    public List<Ticket> getQueued() {
+        List<Ticket> queued = new ArrayList<Ticket>();
+        for(EndpointQueue queue : endpoints.values())
+            queue.addQueued(queued);
+        return queued;
+    }
+
+    /**
+     * @return number of uploads waiting for a slot
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for(EndpointQueue queue : endpoints.values())
+            depth += queue.getQueueDepth();
+        return depth;
+    }
+
+    /**
+     * @return number of uploads in progress
+     */
+    public int getInFlight() {
+        int inFlight = 0;
+        for(EndpointQueue queue : endpoints.values())
+            inFlight += queue.getInFlight();
+        return inFlight;
+    }
+
+    /**
+     * @return endpoint url -> number of uploads in progress
+     */
+    public Map<String, Integer> getInFlightByEndpoint() {
+        Map<String, Integer> inFlight = new TreeMap<String, Integer>();
+        for(EndpointQueue queue : endpoints.values())
+            inFlight.put(queue.endpoint, queue.getInFlight());
+        return inFlight;
+    }
+
+    /**
+     * @return number of uploads run since startup
+     */
+    public long getPublished() {
+        return published.sum();
+    }
+
+    /**
+     * @return average time in milliseconds uploads have waited for a slot
+     */
+    public long getAverageWaitMillis() {
+        long count = published.sum();
+        return count > 0 ? totalWaitMillis.sum() / count : 0;
+    }
+
+    /**
+     * @return longest time in milliseconds an upload has waited for a slot
+     */
+    public long getMaxWaitMillis() {
+        return maxWaitMillis.get();
+    }
+
+    /**
+     * An upload waiting for or holding a slot.
+     */
+    public static final class Ticket {
+        private final String endpoint;
+        private final String job;
+        private final String build;
+        private final int size;
+        private final boolean small;
+        private final long enqueued = System.nanoTime();
+        private final CountDownLatch granted = new CountDownLatch(1);
+
+        Ticket(String endpoint, String job, String build, int size, boolean small) {
+            this.endpoint = endpoint;
+            this.job = job;
+            this.build = build;
+            this.size = size;
+            this.small = small;
+        }
+
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        public String getJob() {
+            return job;
+        }
+
+        public String getBuild() {
+            return build;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public long getWaitMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - enqueued);
+        }
+
+        @Override
+        public String toString() {
+            return "Ticket{" +
+                    "endpoint='" + endpoint + '\'' +
+                    ", build='" + build + '\'' +
+                    ", size=" + size +
+                    '}';
+        }
+    }
+
+    /**
+     * Slots and waiting uploads of a single endpoint.
+     */
+    private static final class EndpointQueue {
+        private final String endpoint;
+        private int inFlight = 0;
+        // job -> waiting uploads, jobs in round-robin order
+        private final LinkedHashMap<String, ArrayDeque<Ticket>> small = new LinkedHashMap<String, ArrayDeque<Ticket>>();
+        private final LinkedHashMap<String, ArrayDeque<Ticket>> large = new LinkedHashMap<String, ArrayDeque<Ticket>>();
+        private int queued = 0;
+
+        EndpointQueue(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        void await(Ticket ticket) throws InterruptedException {
+            synchronized (this) {
+                if(queued == 0 && inFlight < getMaxInFlight()) {
+                    inFlight++;
+                    return;
+                }
+                (ticket.small ? small : large).computeIfAbsent(ticket.job, j -> new ArrayDeque<Ticket>()).add(ticket);
+                queued++;
+            }
+            try {
+                ticket.granted.await();
+            } catch (InterruptedException e) {
+                synchronized (this) {
+                    if(remove(ticket)) {
+                        queued--;
+                        throw e;
+                    }
+                }
+                // granted while interrupted, pass the slot on
+                release();
+                throw e;
+            }
+        }
+
+        synchronized void release() {
+            inFlight--;
+            while(queued > 0 && inFlight < getMaxInFlight()) {
+                Ticket next = next();
+                queued--;
+                inFlight++;
+                next.granted.countDown();
+            }
+        }
+
+        private Ticket next() {
+            if(!large.isEmpty() && (small.isEmpty() || getLongestLargeWait() > getMaxPriorityWait()))
+                return poll(large);
+            return poll(small);
+        }
+
+        /**
+         * @return longest wait of the large uploads, the job taking its turn next may not have waited longest
+         */
+        private long getLongestLargeWait() {
+            long longest = 0;
+            for(ArrayDeque<Ticket> tickets : large.values())
+                longest = Math.max(longest, tickets.peek().getWaitMillis());
+            return longest;
+        }
+
+        /**
+         * Takes the next upload of the first job and moves the job last.
+         */
+        private static Ticket poll(LinkedHashMap<String, ArrayDeque<Ticket>> jobs) {
+            Iterator<Map.Entry<String, ArrayDeque<Ticket>>> i = jobs.entrySet().iterator();
+            Map.Entry<String, ArrayDeque<Ticket>> first = i.next();
+            Ticket ticket = first.getValue().poll();
+            i.remove();
+            if(!first.getValue().isEmpty())
+                jobs.put(first.getKey(), first.getValue());
+            return ticket;
+        }
+
+        private boolean remove(Ticket ticket) {
+            LinkedHashMap<String, ArrayDeque<Ticket>> jobs = ticket.small ? small : large;
+            ArrayDeque<Ticket> tickets = jobs.get(ticket.job);
+            if(tickets == null || !tickets.remove(ticket))
+                return false;
+            if(tickets.isEmpty())
+                jobs.remove(ticket.job);
+            return true;
+        }
+
+        synchronized void addQueued(List<Ticket> to) {
+            for(ArrayDeque<Ticket> tickets : small.values())
+                to.addAll(tickets);
+            for(ArrayDeque<Ticket> tickets : large.values())
+                to.addAll(tickets);
+        }
+
+        synchronized int getQueueDepth() {
+            return queued;
+        }
+
+        synchronized int getInFlight() {
+            return inFlight;
+        }
+    }
+
+}
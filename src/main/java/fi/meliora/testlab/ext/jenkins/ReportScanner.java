@@ -0,0 +1,259 @@
+package fi.meliora.testlab.ext.jenkins;
+
+import fi.meliora.testlab.ext.rest.model.TestCaseResult;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.types.FileSet;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.*;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Scans the JUnit report files of a workspace on the agent for test results not seen yet.
+ *
+ * The scanner keeps no state: the signatures (length and last modified time) of the files
+ * already read and of the files waiting to settle are passed to each scan and the updated
+ * signatures returned with the results. A new or changed file is read only when it has kept
+ * its signature since the previous scan (or when flushing) so that files still being written
+ * are not read. A file which cannot be parsed is retried on the next scan.
+ *
+ * @author Meliora Ltd
+ */
+public class ReportScanner extends MasterToSlaveFileCallable<ReportScanner.Scan> {
+    private final static Logger log = Logger.getLogger(ReportScanner.class.getName());
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String DEFAULT_REPORTS = "**/TEST-*.xml";
+
+    private final String includes;
+    private final Map<String, String> read;
+    private final Map<String, String> pending;
+    private final boolean flush;
+
+    /**
+     * @param includes Ant style pattern of the report files relative to the workspace
+     * @param read path -> signature of the files already read
+     * @param pending path -> signature of the files seen but not yet read
+     * @param flush if set, reads the changed files without waiting for them to settle
+     */
+    public ReportScanner(String includes, Map<String, String> read, Map<String, String> pending, boolean flush) {
+        this.includes = includes;
+        this.read = read;
+        this.pending = pending;
+        this.flush = flush;
+    }
+
+    @Override
+    public Scan invoke(File ws, VirtualChannel channel) throws IOException, InterruptedException {
+        Scan scan = new Scan(new HashMap<String, String>(read));
+        if(!ws.isDirectory())
+            return scan;
+        FileSet fs = Util.createFileSet(ws, includes);
+        DirectoryScanner ds = fs.getDirectoryScanner();
+        for(String path : ds.getIncludedFiles()) {
+            File file = new File(ds.getBasedir(), path);
+            String signature = file.length() + ":" + file.lastModified();
+            if(signature.equals(read.get(path)))
+                continue;
+            if(!flush && !signature.equals(pending.get(path))) {
+                // changed since the previous scan, might still be written
+                scan.pending.put(path, signature);
+                continue;
+            }
+            try {
+                List<Case> cases = parse(file);
+                scan.cases.addAll(cases);
+                scan.read.put(path, signature);
+            } catch (XMLStreamException e) {
+                if(log.isLoggable(Level.FINE))
+                    log.fine("Could not parse report " + file + ", retrying later: " + e.getMessage());
+                scan.pending.put(path, signature);
+            }
+        }
+        return scan;
+    }
+
+    /**
+     * Parses the test cases of a JUnit report file.
+     *
+     * @param file report file
+     * @return test cases of the report
+     */
+    public static List<Case> parse(File file) throws IOException, XMLStreamException {
+        try(InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            return parse(in);
+        }
+    }
+
+    /**
+     * Parses the test cases of a JUnit report.
+     *
+     * @param in report
+     * @return test cases of the report
+     */
+    public static List<Case> parse(InputStream in) throws XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        XMLStreamReader r = factory.createXMLStreamReader(in);
+        List<Case> cases = new ArrayList<Case>();
+        Deque<String> suites = new ArrayDeque<String>();
+        Case current = null;
+        try {
+            while(r.hasNext()) {
+                int event = r.next();
+                if(event == XMLStreamConstants.START_ELEMENT) {
+                    String name = r.getLocalName();
+                    if("testsuite".equals(name)) {
+                        suites.push(value(r.getAttributeValue(null, "name")));
+                    } else if("testcase".equals(name)) {
+                        String className = r.getAttributeValue(null, "classname");
+                        if(className == null || className.isEmpty())
+                            className = suites.isEmpty() ? "" : suites.peek();
+                        current = new Case(className, value(r.getAttributeValue(null, "name")), parseTime(r.getAttributeValue(null, "time")));
+                    } else if(current != null && ("failure".equals(name) || "error".equals(name))) {
+                        current.result = TestCaseResult.RESULT_FAIL;
+                        current.message = r.getAttributeValue(null, "message");
+                        current.stacktrace = r.getElementText();
+                    } else if(current != null && "skipped".equals(name)) {
+                        if(current.result != TestCaseResult.RESULT_FAIL) {
+                            current.result = TestCaseResult.RESULT_SKIP;
+                            current.message = r.getAttributeValue(null, "message");
+                        }
+                    }
+                } else if(event == XMLStreamConstants.END_ELEMENT) {
+                    String name = r.getLocalName();
+                    if("testsuite".equals(name) && !suites.isEmpty()) {
+                        suites.pop();
+                    } else if("testcase".equals(name) && current != null) {
+                        cases.add(current);
+                        current = null;
+                    }
+                }
+            }
+        } finally {
+            r.close();
+        }
+        return cases;
+    }
+
+    private static String value(String s) {
+        return s != null ? s : "";
+    }
+
+    private static float parseTime(String time) {
+        if(time == null)
+            return 0f;
+        try {
+            // some tools format the time with grouping separators
+            return Float.parseFloat(time.replace(",", ""));
+        } catch (NumberFormatException e) {
+            return 0f;
+        }
+    }
+
+    /**
+     * Results of a scan.
+     */
+    public static final class Scan implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final Map<String, String> read;
+        private final Map<String, String> pending = new HashMap<String, String>();
+        private final List<Case> cases = new ArrayList<Case>();
+
+        Scan(Map<String, String> read) {
+            this.read = read;
+        }
+
+        /**
+         * @return path -> signature of the files read
+         */
+        public Map<String, String> getRead() {
+            return read;
+        }
+
+        /**
+         * @return path -> signature of the files to read when they settle
+         */
+        public Map<String, String> getPending() {
+            return pending;
+        }
+
+        /**
+         * @return test cases of the files read by this scan
+         */
+        public List<Case> getCases() {
+            return cases;
+        }
+    }
+
+    /**
+     * A test case of a report.
+     */
+    public static final class Case implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String className;
+        private final String name;
+        private final float duration;
+        private int result = TestCaseResult.RESULT_PASS;
+        private String message;
+        private String stacktrace;
+
+        Case(String className, String name, float duration) {
+            this.className = className;
+            this.name = name;
+            this.duration = duration;
+        }
+
+        /**
+         * @return identifier of the test case, same as for the results read from the build
+         */
+        public String getId() {
+            return className + "." + name;
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public float getDuration() {
+            return duration;
+        }
+
+        public int getResult() {
+            return result;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public String getStacktrace() {
+            return stacktrace;
+        }
+
+        @Override
+        public String toString() {
+            return "Case{" +
+                    "id='" + getId() + '\'' +
+                    ", result=" + result +
+                    '}';
+        }
+    }
+
+}
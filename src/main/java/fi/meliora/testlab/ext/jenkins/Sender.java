@@ -1,13 +1,24 @@
 package fi.meliora.testlab.ext.jenkins;
 
 import fi.meliora.testlab.ext.crest.CrestEndpointFactory;
-import fi.meliora.testlab.ext.crest.TestResultResource;
+import fi.meliora.testlab.ext.crest.ObjectMapperFactory;
+import fi.meliora.testlab.ext.crest.PayloadEstimator;
+import fi.meliora.testlab.ext.crest.PublishStats;
+import fi.meliora.testlab.ext.crest.RequestTap;
+import fi.meliora.testlab.ext.crest.UploadDeduplicator;
+import fi.meliora.testlab.ext.crest.WireFormatNegotiator;
+import fi.meliora.testlab.ext.crest.exception.TestlabAPIException;
 import fi.meliora.testlab.ext.rest.model.*;
 import hudson.AbortException;
 import hudson.FilePath;
 import hudson.Util;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
 import hudson.model.Action;
+import hudson.model.ItemGroup;
+import hudson.model.Job;
 import hudson.model.Run;
+import hudson.model.TaskListener;
 import hudson.remoting.VirtualChannel;
 import hudson.tasks.junit.CaseResult;
 import hudson.tasks.junit.SuiteResult;
@@ -20,6 +31,8 @@ import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.tools.ant.DirectoryScanner;
 import org.apache.tools.ant.types.FileSet;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
 
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
@@ -60,6 +73,15 @@ public class Sender {
         );
     }
 
+    /**
+     * Resolves jackson serializers for the Testlab model eagerly at plugin start so that
+     * the first publish does not pay for a cold ObjectMapper.
+     */
+    @Initializer(after = InitMilestone.PLUGINS_STARTED)
+    public static void warmUpSerializers() {
+        ObjectMapperFactory.getInstance().warmUp();
+    }
+
     /**
      * Does the actual sending of results to Testlab. Called from appropriate Jenkins extension point.
      * @param tapTestsAsSteps,
@@ -109,6 +131,117 @@ public class Sender {
                     + ", " + publishRobot + ", " + robotOutput + ", " + robotCatenateParentKeywords + ", " + automationSource
             );
 
+        fi.meliora.testlab.ext.rest.model.TestResult data = createTestResult(workspace, projectKey, ruleset, milestone,
+                testRunTitle, description, testTargetTitle, testEnvironmentTitle, tags,
+                parameters, addIssueStrategy, reopenExisting, assignToUser,
+                publishTap, tapTestsAsSteps, tapFileNameInIdentifier, tapTestNumberInIdentifier, tapMappingPrefix,
+                publishRobot, robotOutput, robotCatenateParentKeywords,
+                automationSource, resultName, culprits, changesets, build);
+
+        if(data != null)
+            send(companyId, usingonpremise, onpremiseurl, apiKey, data, build);
+    }
+
+    /**
+     * Sends the results created with {@link #createTestResult} to Testlab.
+     *
+     * @param companyId company id of hosted Testlab
+     * @param usingonpremise true if on-premise Testlab is used
+     * @param onpremiseurl url of on-premise Testlab
+     * @param apiKey api key
+     * @param data results
+     * @param build build publishing
+     * @return response, null if sending is skipped
+     */
+    public static AddTestResultResponse send(String companyId, boolean usingonpremise, String onpremiseurl, String apiKey,
+                                             fi.meliora.testlab.ext.rest.model.TestResult data, Run<?, ?> build) {
+        return send(companyId, usingonpremise, onpremiseurl, apiKey, data, build, null);
+    }
+
+    /**
+     * Sends the results created with {@link #createTestResult} to Testlab. The size of the
+     * request is estimated from the results before they are serialized to pick the strategy
+     * to send them with, see {@link PayloadEstimator}. Results estimated larger than
+     * TESTLAB_SENDER_CHUNKED_THRESHOLD are sent in chunks, see {@link ChunkedUpload}.
+     *
+     * @param companyId company id of hosted Testlab
+     * @param usingonpremise true if on-premise Testlab is used
+     * @param onpremiseurl url of on-premise Testlab
+     * @param apiKey api key
+     * @param data results
+     * @param build build publishing
+     * @param listener listener of the build the strategy is logged to, null if not logged
+     * @return response, null if sending is skipped
+     */
+    public static AddTestResultResponse send(String companyId, boolean usingonpremise, String onpremiseurl, String apiKey,
+                                             fi.meliora.testlab.ext.rest.model.TestResult data, Run<?, ?> build, TaskListener listener) {
+        // send results to testlab
+        String onpremiseUrl = usingonpremise ? onpremiseurl : null;
+
+        // estimated once, passed on to the transport
+        PayloadEstimator.Estimate estimate = PayloadEstimator.getEstimate(data);
+        ChunkedUpload chunked = estimate.getStrategy() == PayloadEstimator.Strategy.CHUNKED ? new ChunkedUpload(data, estimate) : null;
+        String message = "Estimated size of the results is " + (estimate.getBytes() / 1024) + " kB, sending "
+                + (chunked != null ? "in " + chunked.getChunks() + " chunks in parallel"
+                : estimate.getStrategy() == PayloadEstimator.Strategy.STREAMING ? "streamed" : "in a single request") + ".";
+        if(listener != null)
+            listener.getLogger().println(message);
+        if(log.isLoggable(Level.FINE))
+            log.fine(message + " " + build);
+
+        AddTestResultResponse response = chunked != null
+                ? chunked.send(companyId, onpremiseUrl, apiKey, build)
+                : post(companyId, onpremiseUrl, apiKey, data, estimate, build);
+        PublishStats stats = PublishStats.current();
+        if(stats != null) {
+            stats.addResults(data);
+            if(response != null)
+                stats.setTestRunId(response.getTestRunId());
+        }
+
+        if(log.isLoggable(Level.INFO))
+            log.info("Posted results successfully to testlab test run: " + (response != null ? "" + response.getTestRunId() : "TESTLAB_SENDER_SKIP_SEND"));
+        return response;
+    }
+
+    /**
+     * Parses the test results of the build to the data sent to Testlab.
+     *
+     * @return data to send, null if the build has no results to send
+     */
+    public static fi.meliora.testlab.ext.rest.model.TestResult createTestResult(final FilePath workspace, String projectKey, String ruleset, String milestone,
+                                   String testRunTitle, String description, String testTargetTitle, String testEnvironmentTitle, String tags,
+                                   Map<String, String> parameters, fi.meliora.testlab.ext.rest.model.TestResult.AddIssueStrategy addIssueStrategy, Boolean reopenExisting, String assignToUser,
+                                   boolean publishTap, boolean tapTestsAsSteps, boolean tapFileNameInIdentifier, boolean tapTestNumberInIdentifier, String tapMappingPrefix,
+                                   boolean publishRobot, String robotOutput, Boolean robotCatenateParentKeywords,
+                                   String automationSource, String resultName, List<String> culprits, List<Changeset> changesets, Run<?, ?> build) {
+        return createTestResult(workspace, projectKey, ruleset, milestone, testRunTitle, description, testTargetTitle, testEnvironmentTitle, tags,
+                parameters, addIssueStrategy, reopenExisting, assignToUser, publishTap, tapTestsAsSteps, tapFileNameInIdentifier, tapTestNumberInIdentifier, tapMappingPrefix,
+                publishRobot, robotOutput, robotCatenateParentKeywords, automationSource, resultName, culprits, changesets, build, null);
+    }
+
+    /**
+     * Creates the data sent to Testlab.
+     *
+     * @param scannedCases if set, the results are read from these test cases scanned from the report files
+     *                     of the workspace instead of the test results of the build, see {@link ReportScanner}
+     * @return data to send, null if there are no results to send
+     */
+    public static fi.meliora.testlab.ext.rest.model.TestResult createTestResult(final FilePath workspace, String projectKey, String ruleset, String milestone,
+                                   String testRunTitle, String description, String testTargetTitle, String testEnvironmentTitle, String tags,
+                                   Map<String, String> parameters, fi.meliora.testlab.ext.rest.model.TestResult.AddIssueStrategy addIssueStrategy, Boolean reopenExisting, String assignToUser,
+                                   boolean publishTap, boolean tapTestsAsSteps, boolean tapFileNameInIdentifier, boolean tapTestNumberInIdentifier, String tapMappingPrefix,
+                                   boolean publishRobot, String robotOutput, Boolean robotCatenateParentKeywords,
+                                   String automationSource, String resultName, List<String> culprits, List<Changeset> changesets, Run<?, ?> build,
+                                   List<ReportScanner.Case> scannedCases) {
+        if(scannedCases != null) {
+            if(scannedCases.isEmpty())
+                return null;
+            // the scanned results are sent as they are available, other results are published later
+            publishTap = false;
+            publishRobot = false;
+        }
+
         if(log.isLoggable(Level.FINE))
             log.fine("tap-plugin installed ? : " + (hasTAPSupport() ? "Yes, we have TAP support." : "No, no TAP support available."));
 
@@ -116,13 +249,15 @@ public class Sender {
 
         boolean hasTAPSupport = hasTAPSupport();
         List<Object> ras = new ArrayList<Object>();
-        for(Action a : build.getAllActions()) {
-            if(log.isLoggable(Level.FINE))
-                log.fine("Action: " + a);
-            if (hasTAPSupport && a instanceof org.tap4j.plugin.TapTestResultAction) {
-                ras.add(a);
-            } else if (a instanceof AbstractTestResultAction) {
-                ras.add(a);
+        if(scannedCases == null) {
+            for(Action a : build.getAllActions()) {
+                if(log.isLoggable(Level.FINE))
+                    log.fine("Action: " + a);
+                if (hasTAPSupport && a instanceof org.tap4j.plugin.TapTestResultAction) {
+                    ras.add(a);
+                } else if (a instanceof AbstractTestResultAction) {
+                    ras.add(a);
+                }
             }
         }
         
@@ -142,123 +277,281 @@ public class Sender {
 
         if(ras.isEmpty() && (publishRobot && robotXml == null)) {
             log.warning("We have no results to publish. Please make sure your job is configured to publish some test results to make them available to this plugin.");
-        } else {
-            String user = "Jenkins job: " + build.getParent().getDisplayName();
-
-            fi.meliora.testlab.ext.rest.model.TestResult data = new fi.meliora.testlab.ext.rest.model.TestResult();
-            data.setProjectKey(projectKey);
-            data.setRuleset(ruleset);
-            data.setAutomationSourceTitle(automationSource);
-            data.setTestRunTitle(testRunTitle);
-            // note: we send the set milestone in both fields as backend logic tries first with identifier and fallbacks to title
-            data.setMilestoneIdentifier(milestone);
-            data.setMilestoneTitle(milestone);
-            data.setAddIssueStrategy(addIssueStrategy);
-            data.setReopenExistingIssues(reopenExisting);
-            data.setAssignIssuesToUser(assignToUser);
-            data.setUser(user);
-            data.setDescription(description);
-            data.setResultName(resultName);
-            data.setCulprits(culprits);
-            data.setChangesets(changesets);
-
-            if(parameters != null && !parameters.isEmpty()) {
-                List<KeyValuePair> parameterValues = new ArrayList<KeyValuePair>();
-                for(Map.Entry<String, String> entry : parameters.entrySet()) {
-                    KeyValuePair kvp = new KeyValuePair();
-                    kvp.setKey(entry.getKey());
-                    kvp.setValue(entry.getValue());
-                    parameterValues.add(kvp);
-                    if(log.isLoggable(Level.FINE))
-                        log.fine("Sending test case parameter " + entry.getKey() + " with value " + kvp.getValue());
-                }
-                data.setParameters(parameterValues);
-            }
+            return null;
+        }
 
-            if(!TestlabNotifier.isBlank(testTargetTitle))
-                data.setTestTargetTitle(testTargetTitle);
+        String user = "Jenkins job: " + build.getParent().getDisplayName();
+
+        fi.meliora.testlab.ext.rest.model.TestResult data = new fi.meliora.testlab.ext.rest.model.TestResult();
+        data.setProjectKey(projectKey);
+        data.setRuleset(ruleset);
+        data.setAutomationSourceTitle(automationSource);
+        data.setTestRunTitle(testRunTitle);
+        // note: we send the set milestone in both fields as backend logic tries first with identifier and fallbacks to title
+        data.setMilestoneIdentifier(milestone);
+        data.setMilestoneTitle(milestone);
+        data.setAddIssueStrategy(addIssueStrategy);
+        data.setReopenExistingIssues(reopenExisting);
+        data.setAssignIssuesToUser(assignToUser);
+        data.setUser(user);
+        data.setDescription(description);
+        data.setResultName(resultName);
+        data.setCulprits(culprits);
+        data.setChangesets(changesets);
+
+        if(parameters != null && !parameters.isEmpty()) {
+            List<KeyValuePair> parameterValues = new ArrayList<KeyValuePair>();
+            for(Map.Entry<String, String> entry : parameters.entrySet()) {
+                KeyValuePair kvp = new KeyValuePair();
+                kvp.setKey(entry.getKey());
+                kvp.setValue(entry.getValue());
+                parameterValues.add(kvp);
+                if(log.isLoggable(Level.FINE))
+                    log.fine("Sending test case parameter " + entry.getKey() + " with value " + kvp.getValue());
+            }
+            data.setParameters(parameterValues);
+        }
 
-            if(!TestlabNotifier.isBlank(testEnvironmentTitle))
-                data.setTestEnvironmentTitle(testEnvironmentTitle);
+        if(!TestlabNotifier.isBlank(testTargetTitle))
+            data.setTestTargetTitle(testTargetTitle);
 
-            if(!TestlabNotifier.isBlank(tags)) {
-                data.setTags(tags);
-            }
+        if(!TestlabNotifier.isBlank(testEnvironmentTitle))
+            data.setTestEnvironmentTitle(testEnvironmentTitle);
 
-            boolean hadResults = false;
-            List<TestCaseResult> results = new ArrayList<TestCaseResult>();
+        if(!TestlabNotifier.isBlank(tags)) {
+            data.setTags(tags);
+        }
 
-            for(Object ra : ras) {
-                Object resultObject = null;
-                if(hasTAPSupport && ra instanceof org.tap4j.plugin.TapTestResultAction) {
-                    try {
-                        // due to 2.1 change in tap plugin, try to keep compatibility to tap plugin < 2.1
-                        Method m = ra.getClass().getMethod("getResult");
-                        resultObject = m.invoke(ra);
-                    } catch (Exception e) {
-                        log.fine("Could not resolve TapTestResultAction result: " + e.getMessage());
-                    }
-                } else if(ra instanceof AbstractTestResultAction) {
-                    resultObject = ((AbstractTestResultAction<?>)ra).getResult();
+        boolean hadResults = false;
+        List<TestCaseResult> results = new ArrayList<TestCaseResult>();
+
+        for(Object ra : ras) {
+            Object resultObject = null;
+            if(hasTAPSupport && ra instanceof org.tap4j.plugin.TapTestResultAction) {
+                try {
+                    // due to 2.1 change in tap plugin, try to keep compatibility to tap plugin < 2.1
+                    Method m = ra.getClass().getMethod("getResult");
+                    resultObject = m.invoke(ra);
+                } catch (Exception e) {
+                    log.fine("Could not resolve TapTestResultAction result: " + e.getMessage());
                 }
-                if(resultObject != null) {
-                    if (resultObject instanceof List) {
-                        List childReports = (List) resultObject;
-                        for (Object childReport : childReports) {
-                            if (childReport instanceof AggregatedTestResultAction.ChildReport) {
-                                Object childResultObject = ((AggregatedTestResultAction.ChildReport) childReport).result;
-                                if (log.isLoggable(Level.FINE))
-                                    log.fine("Have child results: " + childResultObject);
-                                parseResult(build, childResultObject, results, user, publishTap, tapTestsAsSteps, tapFileNameInIdentifier, tapTestNumberInIdentifier, tapMappingPrefix);
-                            }
+            } else if(ra instanceof AbstractTestResultAction) {
+                resultObject = ((AbstractTestResultAction<?>)ra).getResult();
+            }
+            if(resultObject != null) {
+                if (resultObject instanceof List) {
+                    List childReports = (List) resultObject;
+                    for (Object childReport : childReports) {
+                        if (childReport instanceof AggregatedTestResultAction.ChildReport) {
+                            Object childResultObject = ((AggregatedTestResultAction.ChildReport) childReport).result;
+                            if (log.isLoggable(Level.FINE))
+                                log.fine("Have child results: " + childResultObject);
+                            parseResult(build, childResultObject, results, user, publishTap, tapTestsAsSteps, tapFileNameInIdentifier, tapTestNumberInIdentifier, tapMappingPrefix);
                         }
-                    } else {
-                        parseResult(build, resultObject, results, user, publishTap, tapTestsAsSteps, tapFileNameInIdentifier, tapTestNumberInIdentifier, tapMappingPrefix);
                     }
+                } else {
+                    parseResult(build, resultObject, results, user, publishTap, tapTestsAsSteps, tapFileNameInIdentifier, tapTestNumberInIdentifier, tapMappingPrefix);
                 }
             }
+        }
 
-            if (!results.isEmpty()) {
-                if (log.isLoggable(Level.FINE))
-                    log.fine("Sending " + results.size() + " test results to Testlab.");
-                data.setResults(results);
+        if(scannedCases != null) {
+            for(ReportScanner.Case c : scannedCases)
+                results.add(getTestCaseResult(build, c.getId(), c.getResult(), c.getMessage(), c.getStacktrace(), user, c.getDuration()));
+        }
 
-                hadResults = true;
-            }
+        if (!results.isEmpty()) {
+            if (log.isLoggable(Level.FINE))
+                log.fine("Sending " + results.size() + " test results to Testlab.");
+            data.setResults(results);
 
-            if(publishRobot && robotXml != null) {
-                data.setRobotCatenateParentKeywords(robotCatenateParentKeywords);
-                data.setXmlFormat(fi.meliora.testlab.ext.rest.model.TestResult.FORMAT_ROBOTFRAMEWORK);
-                data.setXml(robotXml);
+            hadResults = true;
+        }
 
-                if(log.isLoggable(Level.FINE))
-                    log.fine("Including robot framework test results to be sent to Testlab.");
+        if(publishRobot && robotXml != null) {
+            data.setRobotCatenateParentKeywords(robotCatenateParentKeywords);
+            data.setXmlFormat(fi.meliora.testlab.ext.rest.model.TestResult.FORMAT_ROBOTFRAMEWORK);
+            data.setXml(robotXml);
 
-                hadResults = true;
-            }
+            if(log.isLoggable(Level.FINE))
+                log.fine("Including robot framework test results to be sent to Testlab.");
 
-            if(hadResults) {
-                // send results to testlab
-                String onpremiseUrl = usingonpremise ? onpremiseurl : null;
+            hadResults = true;
+        }
+
+        if(hadResults)
+            return data;
+
+        if(log.isLoggable(Level.INFO))
+            log.info("No test results resolved to send to Testlab. Skipping.");
+        return null;
+    }
 
-                AddTestResultResponse response = null;
-                if(!"true".equalsIgnoreCase(System.getProperty("TESTLAB_SENDER_SKIP_SEND"))) {
-                    response = CrestEndpointFactory.getInstance().getTestlabEndpoint(
-                            companyId, onpremiseUrl, apiKey, TestResultResource.class
-                    ).addTestResult(data);
+    /**
+     * @return true if sending is disabled with TESTLAB_SENDER_SKIP_SEND system property, the payloads are then captured, see {@link PayloadCapture}
+     */
+    public static boolean isSkipSend() {
+        return "true".equalsIgnoreCase(System.getProperty("TESTLAB_SENDER_SKIP_SEND"));
+    }
+
+    /**
+     * Posts the results to Testlab when PublishScheduler lets the upload proceed. If Testlab
+     * has already acknowledged an identical request body for the build, the results are not
+     * sent again and the response to the earlier upload is returned. Only results sent in a
+     * single request are checked, see {@link UploadDeduplicator}.
+     *
+     * Failed uploads are retried TESTLAB_SENDER_RETRIES times (default 0) if Testlab was
+     * unavailable or could not be reached, see {@link #getRetryDelay(Throwable, int)}. The
+     * upload is sent with the same idempotency key on each attempt.
+     *
+     * Each request sent is captured if capturing is enabled, see {@link PayloadCapture}. If
+     * sending is skipped with TESTLAB_SENDER_SKIP_SEND, the results are only captured.
+     *
+     * @param companyId company id of hosted Testlab
+     * @param onpremiseUrl url of on-premise Testlab, null if hosted
+     * @param apiKey api key
+     * @param data results
+     * @param estimate estimate of the results, see {@link PayloadEstimator#getEstimate}
+     * @param build build publishing
+     * @return response, null if sending is skipped
+     */
+    protected static AddTestResultResponse post(final String companyId, final String onpremiseUrl, final String apiKey,
+                                                final fi.meliora.testlab.ext.rest.model.TestResult data,
+                                                final PayloadEstimator.Estimate estimate, Run<?, ?> build) {
+        if(isSkipSend()) {
+            PayloadCapture.captureUnsent(build, companyId, onpremiseUrl, data);
+            return null;
+        }
+        final CrestEndpointFactory ef = CrestEndpointFactory.getInstance();
+        final String url = ef.getTestlabUrl(companyId, onpremiseUrl);
+        final UploadDeduplicator dedupe = UploadDeduplicator.getInstance();
+        // small results are encoded once, for the key and the request
+        final WireFormatNegotiator.Encoded encoded = UploadDeduplicator.getSize() > 0
+                && estimate.getStrategy() == PayloadEstimator.Strategy.SINGLE
+                ? WireFormatNegotiator.getInstance().encode(url, data)
+                : null;
+        // streamed results are not serialized before the key is sent and not checked for duplicates
+        final String key = encoded != null
+                ? dedupe.getKey(build.getParent().getFullName(), build.getNumber(), encoded.getBytes())
+                : UploadDeduplicator.newKey();
+        int retries = getRetries();
+        RequestTap previous = RequestTap.bind(PayloadCapture.tap(build, companyId, onpremiseUrl, data));
+        try {
+            for(int attempt = 0; ; attempt++) {
+                try {
+                    return PublishScheduler.getInstance().submit(url, getJobName(build), build.getFullDisplayName(), getSize(data),
+                            () -> {
+                                // checked when the upload gets its turn to catch duplicates queued meanwhile
+                                AddTestResultResponse acknowledged = encoded != null ? dedupe.getAcknowledged(url, key) : null;
+                                if(acknowledged != null)
+                                    return acknowledged;
+                                AddTestResultResponse response;
+                                try {
+                                    response = WireFormatNegotiator.getInstance().addTestResult(
+                                            url,
+                                            ef.getTestlabTransport(companyId, onpremiseUrl, apiKey),
+                                            data,
+                                            encoded,
+                                            estimate,
+                                            key
+                                    );
+                                } catch (RuntimeException e) {
+                                    // interrupted while sending, handled as while waiting, see TestlabTransport
+                                    if(e.getCause() instanceof InterruptedException)
+                                        throw (InterruptedException) e.getCause();
+                                    throw e;
+                                }
+                                if(encoded != null)
+                                    dedupe.acknowledge(url, key, response);
+                                return response;
+                            });
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while publishing results to Testlab.", e);
+                } catch (Exception e) {
+                    PublishMetrics.getInstance().recordError(e);
+                    long delay = attempt < retries ? getRetryDelay(e, attempt) : -1L;
+                    if(delay < 0)
+                        throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+
+                    if(log.isLoggable(Level.WARNING))
+                        log.warning("Publishing to " + url + " failed (" + e.getMessage() + "), retrying in " + delay + " ms, attempt "
+                                + (attempt + 1) + " of " + retries + ".");
+                    PublishStats stats = PublishStats.current();
+                    if(stats != null)
+                        stats.addRetry();
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException("Interrupted while waiting to retry publishing results to Testlab.", e);
+                    }
                 }
+            }
+        } finally {
+            RequestTap.bind(previous);
+        }
+    }
 
-                if(log.isLoggable(Level.INFO))
-                    log.info("Posted results successfully to testlab test run: " + (response != null ? "" + response.getTestRunId() : "TESTLAB_SENDER_SKIP_SEND"));
-            } else {
-                if(log.isLoggable(Level.INFO))
-                    log.info("No test results resolved to send to Testlab. Skipping.");
+    /**
+     * @return times a failed upload is retried, set with TESTLAB_SENDER_RETRIES system property
+     */
+    public static int getRetries() {
+        return Math.max(0, Integer.getInteger("TESTLAB_SENDER_RETRIES", 0));
+    }
+
+    /**
+     * Returns the delay before retrying a failed upload. An upload is retried if Testlab
+     * responded with a status worth retrying or hinted to retry with Retry-After, or if
+     * Testlab could not be reached. Testlab's hint is followed if it is at most
+     * TESTLAB_SENDER_MAX_RETRY_DELAY milliseconds (default 60000). Without a hint or with a
+     * longer one, the delay is doubled from a second on each attempt, capped at the maximum.
+     *
+     * @param e failure
+     * @param attempt number of the failed attempt, from 0
+     * @return milliseconds to wait before retrying, -1 if the upload should not be retried
+     */
+    protected static long getRetryDelay(Throwable e, int attempt) {
+        long maxDelay = Long.getLong("TESTLAB_SENDER_MAX_RETRY_DELAY", 60000L);
+        long backoff = Math.min(maxDelay, 1000L << Math.min(attempt, 16));
+        for(Throwable t = e; t != null; t = t.getCause()) {
+            if(t instanceof TestlabAPIException) {
+                TestlabAPIException ae = (TestlabAPIException) t;
+                if(!ae.isRetryable())
+                    return -1L;
+                Long retryAfter = ae.getRetryAfterMillis();
+                if(retryAfter == null)
+                    return backoff;
+                return retryAfter <= maxDelay ? retryAfter : backoff;
             }
+            if(t instanceof IOException)
+                return backoff;
         }
+        return -1L;
+    }
+
+    /**
+     * @return name of the job for fair scheduling, the parent job for configurations of a multi-configuration job
+     */
+    protected static String getJobName(Run<?, ?> build) {
+        Job<?, ?> job = build.getParent();
+        ItemGroup<?> parent = job.getParent();
+        return parent instanceof Job ? ((Job<?, ?>) parent).getFullName() : job.getFullName();
+    }
+
+    /**
+     * @return size of the upload for scheduling as number of results, robot xml is counted by kilobytes
+     */
+    protected static int getSize(fi.meliora.testlab.ext.rest.model.TestResult data) {
+        int size = data.getResults() != null ? data.getResults().size() : 0;
+        if(data.getXml() != null)
+            size += data.getXml().length() / 1024;
+        return size;
     }
 
-    protected static void parseResult(Run<?, ?> build, Object resultObject, final List<TestCaseResult> results, String user,
-                                      boolean publishTap, boolean tapTestsAsSteps, boolean tapFileNameInIdentifier, boolean tapTestNumberInIdentifier, String tapMappingPrefix) {
+    @Restricted(NoExternalUse.class) // public for the benchmarks
+    public static void parseResult(Run<?, ?> build, Object resultObject, final List<TestCaseResult> results, String user,
+                                   boolean publishTap, boolean tapTestsAsSteps, boolean tapFileNameInIdentifier, boolean tapTestNumberInIdentifier, String tapMappingPrefix) {
         if(resultObject instanceof hudson.tasks.test.TestResult) {
             TestResult result = (TestResult)resultObject;
             if(log.isLoggable(Level.FINE))
@@ -457,7 +750,8 @@ public class Sender {
         }
     }
 
-    protected static TestCaseResult getTestCaseResult(Run<?, ?> build, String id, int result, String msg, String stacktrace, String user, float duration) {
+    @Restricted(NoExternalUse.class) // public for the benchmarks
+    public static TestCaseResult getTestCaseResult(Run<?, ?> build, String id, int result, String msg, String stacktrace, String user, float duration) {
         TestCaseResult r = new TestCaseResult();
         r.setMappingId(id);
         r.setResult(result);
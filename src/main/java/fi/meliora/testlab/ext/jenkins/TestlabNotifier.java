@@ -1,12 +1,13 @@
 package fi.meliora.testlab.ext.jenkins;
 
+import fi.meliora.testlab.ext.crest.PublishStats;
+import fi.meliora.testlab.ext.rest.model.AddTestResultResponse;
 import fi.meliora.testlab.ext.rest.model.Changeset;
 import hudson.*;
 import hudson.model.*;
 import hudson.scm.ChangeLogSet;
 import hudson.tasks.*;
 import hudson.util.ListBoxModel;
-import hudson.util.PluginServletFilter;
 import hudson.util.Secret;
 import jenkins.scm.RunWithSCM;
 import jenkins.tasks.SimpleBuildStep;
@@ -23,6 +24,7 @@ import edu.umd.cs.findbugs.annotations.NonNull;
 import javax.servlet.ServletException;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -107,6 +109,9 @@ public class TestlabNotifier extends Notifier implements SimpleBuildStep {
 
     public static final String DEFAULT_AUTOMATIONSOURCE = "${JOB_NAME}";
 
+    private static final VariableTemplate RESULT_NAME_TEMPLATE = VariableTemplate.compile("${BUILD_URL}");
+    private static final VariableTemplate NULL_TEMPLATE = VariableTemplate.compile(null);
+
     /**
      * Note: All optional parameters need a setter annotated with @DataBoundSetter
      */
@@ -133,6 +138,7 @@ public class TestlabNotifier extends Notifier implements SimpleBuildStep {
     @DataBoundSetter
     public void setRuleset(String ruleset) {
         this.ruleset = ruleset;
+        invalidateTemplates();
     }
 
     // overridden ruleset settings
@@ -145,6 +151,7 @@ public class TestlabNotifier extends Notifier implements SimpleBuildStep {
     @DataBoundSetter
     public void setRulesetSettings(RulesetSettings rulesetSettings) {
         this.rulesetSettings = rulesetSettings;
+        invalidateTemplates();
     }
 
     private String automationSource;
@@ -156,6 +163,7 @@ public class TestlabNotifier extends Notifier implements SimpleBuildStep {
     @DataBoundSetter
     public void setAutomationSource(String automationSource) {
         this.automationSource = automationSource;
+        invalidateTemplates();
     }
 
     // description of the test run to create or update at Testlab side
@@ -168,6 +176,7 @@ public class TestlabNotifier extends Notifier implements SimpleBuildStep {
     @DataBoundSetter
     public void setDescription(String description) {
         this.description = description;
+        invalidateTemplates();
     }
 
     // test case parameters to send from environmental variables
@@ -180,6 +189,7 @@ public class TestlabNotifier extends Notifier implements SimpleBuildStep {
     @DataBoundSetter
     public void setParameters(String parameters) {
         this.parameters = parameters;
+        invalidateTemplates();
     }
 
     // If set, publish Robot Framework results
@@ -192,6 +202,7 @@ public class TestlabNotifier extends Notifier implements SimpleBuildStep {
     @DataBoundSetter
     public void setPublishRobot(PublishRobot publishRobot) {
         this.publishRobot = publishRobot;
+        invalidateTemplates();
     }
 
     // if set, publish TAP results
@@ -204,6 +215,19 @@ public class TestlabNotifier extends Notifier implements SimpleBuildStep {
     @DataBoundSetter
     public void setPublishTap(PublishTap publishTap) {
         this.publishTap = publishTap;
+        invalidateTemplates();
+    }
+
+    // if set, configuration runs of a multi-configuration job hand their results to the parent build to be sent at once
+    private boolean aggregateMatrixResults;
+
+    public boolean isAggregateMatrixResults() {
+        return aggregateMatrixResults;
+    }
+
+    @DataBoundSetter
+    public void setAggregateMatrixResults(boolean aggregateMatrixResults) {
+        this.aggregateMatrixResults = aggregateMatrixResults;
     }
 
     // holder for optional advanced settings
@@ -216,6 +240,7 @@ public class TestlabNotifier extends Notifier implements SimpleBuildStep {
     @DataBoundSetter
     public void setAdvancedSettings(AdvancedSettings advancedSettings) {
         this.advancedSettings = advancedSettings;
+        invalidateTemplates();
     }
 
     /* pre-ruleset configuration, see readResolve */
@@ -229,6 +254,45 @@ public class TestlabNotifier extends Notifier implements SimpleBuildStep {
     private transient String comment;
     /* /pre-ruleset configuration */
 
+    // compiled templates of the configuration values keyed by the template source, see getTemplate
+    private transient volatile Map<String, VariableTemplate> templates;
+
+    private static final int MAX_CACHED_TEMPLATES = 64;
+
+    /**
+     * Returns a compiled template for a configuration value. The configuration of a job stays
+     * the same between builds so the templates are compiled once and cached on this instance.
+     *
+     * @param source configuration value
+     * @return compiled template
+     */
+    protected VariableTemplate getTemplate(String source) {
+        if(source == null)
+            return NULL_TEMPLATE;
+        Map<String, VariableTemplate> t = templates;
+        if(t == null) {
+            t = new ConcurrentHashMap<String, VariableTemplate>();
+            templates = t;
+        }
+        VariableTemplate template = t.get(source);
+        if(template == null) {
+            if(t.size() >= MAX_CACHED_TEMPLATES) {
+                // nested settings have been changed a lot, start over
+                t.clear();
+            }
+            template = VariableTemplate.compile(source);
+            t.put(source, template);
+        }
+        return template;
+    }
+
+    /**
+     * Drops the compiled templates, called when the configuration changes.
+     */
+    protected void invalidateTemplates() {
+        templates = null;
+    }
+
     protected Object readResolve() {
         //// migrate "pre-ruleset" configuration, if any
         //
@@ -321,6 +385,8 @@ public class TestlabNotifier extends Notifier implements SimpleBuildStep {
 
         log.severe("Configuration resolved: " + this);
 
+        invalidateTemplates();
+
         return this;
     }
 
@@ -396,6 +462,69 @@ public class TestlabNotifier extends Notifier implements SimpleBuildStep {
      * Should throw AbortException for graceful and polite errors.
      */
     protected boolean doPerform(Run<?, ?> build, FilePath workspace, TaskListener listener) throws IOException, InterruptedException {
+        if(workspace == null) {
+            String abortError = "The provided build has no workspace.";
+            log.severe("Aborting with configuration: " + toString());
+            listener.error(abortError);
+            throw new AbortException(abortError);
+        }
+        publish(build, workspace, listener);
+        return true;
+    }
+
+    /**
+     * Publishes the results of the build to Testlab.
+     *
+     * Should throw AbortException for graceful and polite errors.
+     *
+     * @param build build
+     * @param workspace workspace of the build, may be null if Robot Framework results are not published
+     * @param listener listener of the build
+     * @return response of Testlab, null if nothing was sent
+     */
+    protected AddTestResultResponse publish(Run<?, ?> build, FilePath workspace, TaskListener listener) throws IOException, InterruptedException {
+        return publish(build, workspace, listener, null);
+    }
+
+    /**
+     * Publishes the results of the build to Testlab.
+     *
+     * @param build build
+     * @param workspace workspace of the build, may be null if Robot Framework results are not published
+     * @param listener listener of the build
+     * @param incremental if set, publishes the results not yet published by the build to a shared test run, see {@link IncrementalPublisher}
+     * @return response of Testlab, null if nothing was sent
+     */
+    protected AddTestResultResponse publish(Run<?, ?> build, FilePath workspace, TaskListener listener, IncrementalPublisher.Options incremental) throws IOException, InterruptedException {
+        return publish(build, workspace, listener, incremental, null);
+    }
+
+    /**
+     * Publishes the results of the build to Testlab.
+     *
+     * @param build build
+     * @param workspace workspace of the build, may be null if Robot Framework results are not published
+     * @param listener listener of the build
+     * @param incremental if set, publishes the results not yet published by the build to a shared test run, see {@link IncrementalPublisher}
+     * @param scannedCases if set, publishes these test cases scanned from the workspace instead of the test results of the build
+     * @return response of Testlab, null if nothing was sent
+     */
+    protected AddTestResultResponse publish(Run<?, ?> build, FilePath workspace, TaskListener listener, IncrementalPublisher.Options incremental,
+                                            List<ReportScanner.Case> scannedCases) throws IOException, InterruptedException {
+        // statistics of the publish are collected on this thread and recorded to the build
+        PublishStats stats = PublishStats.start();
+        long started = System.nanoTime();
+        try {
+            return doPublish(build, workspace, listener, incremental, scannedCases);
+        } finally {
+            PublishStats.stop();
+            PublishMetrics.getInstance().record(stats, (System.nanoTime() - started) / 1000000L);
+            TestlabPublishAction.record(build, stats);
+        }
+    }
+
+    private AddTestResultResponse doPublish(Run<?, ?> build, FilePath workspace, TaskListener listener, IncrementalPublisher.Options incremental,
+                                            List<ReportScanner.Case> scannedCases) throws IOException, InterruptedException {
         listener.getLogger().println("Publishing test results to Testlab project: " + projectKey);
 
         DescriptorImpl d = getDescriptor();
@@ -450,24 +579,24 @@ public class TestlabNotifier extends Notifier implements SimpleBuildStep {
 
         if(log.isLoggable(Level.FINE)) {
             log.fine("Environment variables:");
-            for(String key : vr.getVars().keySet()) {
-                log.fine(" " + key + "=" + vr.getVars().get(key));
+            for(Map.Entry<String, String> e : vr.getVars().entrySet()) {
+                log.fine(" " + e.getKey() + "=" + e.getValue());
             }
         }
 
-        String runProjectKey = vr.replace(projectKey);
-        String runAutomationSource = vr.replace(isBlank(automationSource) ? DEFAULT_AUTOMATIONSOURCE : automationSource);
-        String runMilestone = vr.replace(rulesetSettings != null ? rulesetSettings.milestone : null);
-        String runTestRunTitle = vr.replace(rulesetSettings != null ? rulesetSettings.testRunTitle : null);
-        String runDescription = vr.replace(isBlank(description) ? DEFAULT_DESCRIPTION_TEMPLATE : description);
-        String runTestTargetTitle = vr.replace(rulesetSettings != null ? rulesetSettings.testTargetTitle : null);
-        String runTestEnvironmentTitle = vr.replace(rulesetSettings != null ? rulesetSettings.testEnvironmentTitle : null);
-        String runTags = vr.replace(rulesetSettings != null ? rulesetSettings.tags : null);
-        String runAssignToUser = vr.replace(rulesetSettings != null ? rulesetSettings.assignToUser : null);
-        String runRuleset = vr.replace(ruleset);
-        String resultName = vr.replace("${BUILD_URL}");
+        String runProjectKey = vr.replace(getTemplate(projectKey));
+        String runAutomationSource = vr.replace(getTemplate(isBlank(automationSource) ? DEFAULT_AUTOMATIONSOURCE : automationSource));
+        String runMilestone = vr.replace(getTemplate(rulesetSettings != null ? rulesetSettings.milestone : null));
+        String runTestRunTitle = vr.replace(getTemplate(rulesetSettings != null ? rulesetSettings.testRunTitle : null));
+        String runDescription = vr.replace(getTemplate(isBlank(description) ? DEFAULT_DESCRIPTION_TEMPLATE : description));
+        String runTestTargetTitle = vr.replace(getTemplate(rulesetSettings != null ? rulesetSettings.testTargetTitle : null));
+        String runTestEnvironmentTitle = vr.replace(getTemplate(rulesetSettings != null ? rulesetSettings.testEnvironmentTitle : null));
+        String runTags = vr.replace(getTemplate(rulesetSettings != null ? rulesetSettings.tags : null));
+        String runAssignToUser = vr.replace(getTemplate(rulesetSettings != null ? rulesetSettings.assignToUser : null));
+        String runRuleset = vr.replace(getTemplate(ruleset));
+        String resultName = vr.replace(RESULT_NAME_TEMPLATE);
 
-        String runParameterVariables = vr.replace(parameters);
+        String runParameterVariables = vr.replace(getTemplate(parameters));
         Map<String, String> runParameters = null;
         if(runParameterVariables != null && runParameterVariables.trim().length() > 0) {
             String[] pars = runParameterVariables.split(",");
@@ -485,10 +614,10 @@ public class TestlabNotifier extends Notifier implements SimpleBuildStep {
             }
         }
 
-        String runTapMappingPrefix = vr.replace(publishTap != null ? publishTap.tapMappingPrefix : null);       // nop on null
+        String runTapMappingPrefix = vr.replace(getTemplate(publishTap != null ? publishTap.tapMappingPrefix : null));       // nop on null
 
         String abortError = null;
-        if(workspace == null) {
+        if(workspace == null && publishRobot != null) {
             abortError = "The provided build has no workspace.";
         }
 
@@ -521,50 +650,13 @@ public class TestlabNotifier extends Notifier implements SimpleBuildStep {
             RunWithSCM<?, ?> runWithSCM = (RunWithSCM<?, ?>)build;
             List<ChangeLogSet<? extends ChangeLogSet.Entry>> jenkinsChangeSets = runWithSCM.getChangeSets();
 
-            if(runWithSCM.shouldCalculateCulprits())
-                runWithSCM.calculateCulprits();
-            Set<String> culpritIds = runWithSCM.getCulpritIds();
+            Set<String> culpritIds = CulpritResolver.getCulprits(runWithSCM, listener);
             if(culpritIds != null)
                 culprits = new ArrayList(culpritIds);
 
             log.fine("RunWithSCM, culprits: " + culpritIds + ", changesets: " + jenkinsChangeSets);
 
-            if(jenkinsChangeSets.size() > 0) {
-                for(ChangeLogSet<? extends ChangeLogSet.Entry> cls : jenkinsChangeSets) {
-                    log.fine("Changeset: " + cls + ", Kind: " + cls.getKind());
-                    if(cls.getItems() != null) {
-                        if("git".equals(cls.getKind())) {
-                            hudson.plugins.git.GitChangeSetList gcsl = (hudson.plugins.git.GitChangeSetList)cls;
-                            List<hudson.plugins.git.GitChangeSet> sets = gcsl.getLogs();
-                            if(sets != null) {
-                                for(hudson.plugins.git.GitChangeSet set : sets) {
-                                    String commitId = set.getCommitId();
-                                    if(changesets == null)
-                                        changesets = new ArrayList<Changeset>();
-                                    Changeset cs = new Changeset();
-                                    cs.setIdentifier(commitId);
-                                    cs.setType(Changeset.TYPE_GIT);
-                                    changesets.add(cs);
-                                }
-                            }
-                        } else if("hg".equals(cls.getKind()) || "mercurial".equals(cls.getKind())) {
-                            hudson.plugins.mercurial.MercurialChangeSetList mcsl = (hudson.plugins.mercurial.MercurialChangeSetList)cls;
-                            List<hudson.plugins.mercurial.MercurialChangeSet> sets = mcsl.getLogs();
-                            if(sets != null) {
-                                for(hudson.plugins.mercurial.MercurialChangeSet set : sets) {
-                                    String commitId = set.getCommitId();
-                                    if(changesets == null)
-                                        changesets = new ArrayList<Changeset>();
-                                    Changeset cs = new Changeset();
-                                    cs.setIdentifier(commitId);
-                                    cs.setType(Changeset.TYPE_HG);
-                                    changesets.add(cs);
-                                }
-                            }
-                        }
-                    }
-                }
-            }
+            changesets = ChangesetExtractor.extract(jenkinsChangeSets);
             log.fine("RunWithSCM, sending changesets: " + changesets);
         }
 
@@ -572,12 +664,9 @@ public class TestlabNotifier extends Notifier implements SimpleBuildStep {
         if(AddIssueStrategy.RULESET_DEFAULT.equals(addIssueStrategy))
             addIssueStrategy = null;
 
-        Sender.sendResults(
+        long parseStarted = System.nanoTime();
+        fi.meliora.testlab.ext.rest.model.TestResult data = Sender.createTestResult(
                 workspace,
-                runCompanyId,
-                runUsingonpremise,
-                runOnpremiseurl,
-                runApiKey,
                 runProjectKey,
                 runRuleset,
                 runMilestone,
@@ -602,9 +691,32 @@ public class TestlabNotifier extends Notifier implements SimpleBuildStep {
                 resultName,
                 culprits,
                 changesets,
-                build);
+                build,
+                scannedCases);
+        PublishStats stats = PublishStats.current();
+        if(stats != null)
+            stats.addParseMillis((System.nanoTime() - parseStarted) / 1000000L);
+
+        if(incremental != null) {
+            final String companyId = runCompanyId, onpremiseurl = runOnpremiseurl, apiKey = runApiKey;
+            final boolean usingonpremise = runUsingonpremise;
+            return IncrementalPublisher.getInstance().publish(build, incremental, runProjectKey, runTestRunTitle, data,
+                    part -> Sender.send(companyId, usingonpremise, onpremiseurl, apiKey, part, build, listener), listener);
+        }
+
+        if(data != null) {
+            Run<?, ?> parentRun = aggregateMatrixResults ? MatrixAggregator.getParentRun(build) : null;
+            if(parentRun != null && data.getXml() == null) {
+                MatrixAggregator.getInstance().add(build, parentRun, data, runCompanyId, runUsingonpremise ? runOnpremiseurl : null, runApiKey);
+                listener.getLogger().println("Test results will be published to Testlab with " + parentRun.getFullDisplayName() + ".");
+            } else {
+                if(aggregateMatrixResults && parentRun != null)
+                    log.fine("Robot Framework results are not aggregated, publishing the results of " + build + " separately.");
+                return Sender.send(runCompanyId, runUsingonpremise, runOnpremiseurl, runApiKey, data, build, listener);
+            }
+        }
 
-        return true;
+        return null;
     }
 
 
@@ -637,7 +749,7 @@ public class TestlabNotifier extends Notifier implements SimpleBuildStep {
             // let's inject our CORSFilter as we're at it
             try {
                 CORSFilter = new CORSFilter();
-                PluginServletFilter.addFilter(CORSFilter);
+                CORSFilter.install();
                 log.info("CORSFilter injected.");
             } catch (ServletException se) {
                 log.warning("Could not inject CORSFilter.");
@@ -679,6 +791,14 @@ public class TestlabNotifier extends Notifier implements SimpleBuildStep {
             JSONObject c = json.getJSONObject("cors");
             if(c != null && !c.isNullObject() && !c.isEmpty()) {
                 cors = new Cors(c.getString("origin"));
+                String maxAge = c.optString("maxAge", null);
+                if(!isBlank(maxAge)) {
+                    try {
+                        cors.setMaxAge(Integer.valueOf(maxAge.trim()));
+                    } catch (NumberFormatException nfe) {
+                        throw new Descriptor.FormException("Max age must be a number of seconds.", "maxAge");
+                    }
+                }
             } else {
                 cors = null;
             }
@@ -693,18 +813,19 @@ public class TestlabNotifier extends Notifier implements SimpleBuildStep {
         }
 
         protected void configureCORS() {
-            CORSFilter.setEnabled(cors != null && !isBlank(cors.origin));
+            List<String> origins = null;
             if(cors != null && cors.origin != null) {
                 //
                 // parse a comma separated list to a list of allowed origins
                 //
                 String[] spl = cors.origin.split(",");
-                List<String> origins = new ArrayList<String>();
+                origins = new ArrayList<String>();
                 for(String o : spl) {
                     origins.add(o.trim());
                 }
-                CORSFilter.setOrigins(origins);
             }
+            // swap the settings of the filter atomically
+            CORSFilter.configure(cors != null && !isBlank(cors.origin), origins, cors != null ? cors.getEffectiveMaxAge() : CORSFilter.DEFAULT_MAX_AGE);
         }
 
         public String getDefaultDescriptionTemplate() {
@@ -1088,6 +1209,8 @@ public class TestlabNotifier extends Notifier implements SimpleBuildStep {
     public static final class Cors {
         // allow origin
         private String origin;
+        // seconds the browsers may cache preflight responses, if not set the default of CORSFilter is used
+        private Integer maxAge;
 
         public String getOrigin() {
             return origin;
@@ -1098,6 +1221,19 @@ public class TestlabNotifier extends Notifier implements SimpleBuildStep {
             this.origin = origin;
         }
 
+        public Integer getMaxAge() {
+            return maxAge;
+        }
+
+        @DataBoundSetter
+        public void setMaxAge(Integer maxAge) {
+            this.maxAge = maxAge;
+        }
+
+        public int getEffectiveMaxAge() {
+            return maxAge != null ? maxAge : CORSFilter.DEFAULT_MAX_AGE;
+        }
+
         @DataBoundConstructor
         public Cors(String origin) {
             this.origin = origin;
@@ -1107,6 +1243,7 @@ public class TestlabNotifier extends Notifier implements SimpleBuildStep {
         public String toString() {
             return "Cors{" +
                     "origin='" + origin + '\'' +
+                    ", maxAge=" + maxAge +
                     '}';
         }
     }
@@ -1265,6 +1402,7 @@ public class TestlabNotifier extends Notifier implements SimpleBuildStep {
                 ", parameters='" + parameters + '\'' +
                 ", publishRobot=" + publishRobot +
                 ", publishTap=" + publishTap +
+                ", aggregateMatrixResults=" + aggregateMatrixResults +
                 ", advancedSettings=" + advancedSettings +
                 ", testRunTitle(pre)='" + testRunTitle + '\'' +
                 ", milestone(pre)='" + milestone + '\'' +
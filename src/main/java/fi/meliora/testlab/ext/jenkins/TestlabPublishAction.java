@@ -0,0 +1,105 @@
+package fi.meliora.testlab.ext.jenkins;
+
+import fi.meliora.testlab.ext.crest.PublishStats;
+import hudson.model.Action;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+import jenkins.tasks.SimpleBuildStep;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Statistics of publishing the results of a build to Testlab, shown on the build page.
+ * If the build publishes more than once (such as in parts) the statistics are summed up.
+ * The job of the build shows the trend of the statistics, see {@link TestlabPublishTrendAction}.
+ *
+ * @author Meliora Ltd
+ */
+public class TestlabPublishAction implements RunAction2, SimpleBuildStep.LastBuildAction {
+    private final static Logger log = Logger.getLogger(TestlabPublishAction.class.getName());
+
+    private final PublishStats stats = new PublishStats();
+    private int publishes;
+
+    private transient Run<?, ?> run;
+
+    /**
+     * Adds the statistics of a publish to the build.
+     *
+     * @param build build
+     * @param stats statistics of the publish
+     */
+    public static void record(Run<?, ?> build, PublishStats stats) {
+        if(stats.getTotal() == 0 && stats.getUploads() == 0)
+            return;
+        TestlabPublishAction action;
+        synchronized (build) {
+            action = build.getAction(TestlabPublishAction.class);
+            if(action == null) {
+                action = new TestlabPublishAction();
+                build.addAction(action);
+            }
+        }
+        action.add(stats);
+        try {
+            build.save();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Could not save the Testlab publish statistics of " + build, e);
+        }
+    }
+
+    protected synchronized void add(PublishStats s) {
+        stats.add(s);
+        publishes++;
+    }
+
+    public PublishStats getStats() {
+        return stats;
+    }
+
+    /**
+     * @return number of publishes of the build
+     */
+    public int getPublishes() {
+        return publishes;
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public Collection<? extends Action> getProjectActions() {
+        return run != null ? Collections.singleton(new TestlabPublishTrendAction(run.getParent())) : Collections.<Action>emptySet();
+    }
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Testlab publish statistics";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "testlabPublish";
+    }
+
+}
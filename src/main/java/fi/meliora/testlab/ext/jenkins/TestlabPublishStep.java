@@ -0,0 +1,376 @@
+package fi.meliora.testlab.ext.jenkins;
+
+import fi.meliora.testlab.ext.rest.model.AddTestResultResponse;
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.ListBoxModel;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A Pipeline step to publish test results to Meliora Testlab without blocking the Pipeline:
+ *
+ * <pre>
+ *     def testRunId = testlabPublish(projectKey: 'PRJX', ruleset: 'ruleset to use for mapping')
+ * </pre>
+ *
+ * The step accepts the same settings as the melioraTestlab step. The upload is run on a
+ * background thread and the Pipeline resumes when the upload completes with the id of the
+ * Testlab test run as the return value of the step (null if nothing was sent). The settings
+ * of a running upload are persisted with the Pipeline, and if the controller is restarted
+ * before the upload completes, the upload is run again when the Pipeline resumes.
+ *
+ * With incremental (or testRunId or parts) set, the step publishes only the results not yet
+ * published by the build, appending to a single test run. This way the parallel branches of
+ * a Pipeline can each publish their results as soon as they have them, see
+ * {@link IncrementalPublisher}.
+ *
+ * @author Meliora Ltd
+ */
+public class TestlabPublishStep extends Step {
+    private final static Logger log = Logger.getLogger(TestlabPublishStep.class.getName());
+
+    static final ExecutorService executor = Executors.newCachedThreadPool(
+            new NamingThreadFactory(new DaemonThreadFactory(), "Testlab publish"));
+
+    private final String projectKey;
+    private String ruleset;
+    private TestlabNotifier.RulesetSettings rulesetSettings;
+    private String automationSource;
+    private String description;
+    private String parameters;
+    private TestlabNotifier.PublishRobot publishRobot;
+    private TestlabNotifier.PublishTap publishTap;
+    private TestlabNotifier.AdvancedSettings advancedSettings;
+    private boolean incremental;
+    private Long testRunId;
+    private int parts;
+
+    @DataBoundConstructor
+    public TestlabPublishStep(String projectKey) {
+        this.projectKey = projectKey;
+    }
+
+    public String getProjectKey() {
+        return projectKey;
+    }
+
+    public String getRuleset() {
+        return ruleset;
+    }
+
+    @DataBoundSetter
+    public void setRuleset(String ruleset) {
+        this.ruleset = ruleset;
+    }
+
+    public TestlabNotifier.RulesetSettings getRulesetSettings() {
+        return rulesetSettings;
+    }
+
+    @DataBoundSetter
+    public void setRulesetSettings(TestlabNotifier.RulesetSettings rulesetSettings) {
+        this.rulesetSettings = rulesetSettings;
+    }
+
+    public String getAutomationSource() {
+        return automationSource;
+    }
+
+    @DataBoundSetter
+    public void setAutomationSource(String automationSource) {
+        this.automationSource = automationSource;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    @DataBoundSetter
+    public void setDescription(String description) {
+        this.description = description;
+    }
+
+    public String getParameters() {
+        return parameters;
+    }
+
+    @DataBoundSetter
+    public void setParameters(String parameters) {
+        this.parameters = parameters;
+    }
+
+    public TestlabNotifier.PublishRobot getPublishRobot() {
+        return publishRobot;
+    }
+
+    @DataBoundSetter
+    public void setPublishRobot(TestlabNotifier.PublishRobot publishRobot) {
+        this.publishRobot = publishRobot;
+    }
+
+    public TestlabNotifier.PublishTap getPublishTap() {
+        return publishTap;
+    }
+
+    @DataBoundSetter
+    public void setPublishTap(TestlabNotifier.PublishTap publishTap) {
+        this.publishTap = publishTap;
+    }
+
+    public TestlabNotifier.AdvancedSettings getAdvancedSettings() {
+        return advancedSettings;
+    }
+
+    @DataBoundSetter
+    public void setAdvancedSettings(TestlabNotifier.AdvancedSettings advancedSettings) {
+        this.advancedSettings = advancedSettings;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    @DataBoundSetter
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public Long getTestRunId() {
+        return testRunId;
+    }
+
+    @DataBoundSetter
+    public void setTestRunId(Long testRunId) {
+        this.testRunId = testRunId;
+    }
+
+    public int getParts() {
+        return parts;
+    }
+
+    @DataBoundSetter
+    public void setParts(int parts) {
+        this.parts = parts;
+    }
+
+    /**
+     * @return options of incremental publishing, null if the results are published at once
+     */
+    protected IncrementalPublisher.Options getIncrementalOptions() {
+        if(!incremental && testRunId == null && parts <= 0)
+            return null;
+        return new IncrementalPublisher.Options(testRunId, Math.max(0, parts));
+    }
+
+    /**
+     * @return the publisher with the settings of this step
+     */
+    protected TestlabNotifier toNotifier() {
+        TestlabNotifier notifier = new TestlabNotifier(projectKey, ruleset, rulesetSettings, description, parameters,
+                publishRobot, publishTap, advancedSettings);
+        notifier.setAutomationSource(automationSource);
+        return notifier;
+    }
+
+    @Override
+    public StepExecution start(StepContext context) throws Exception {
+        return new Execution(context, Jenkins.XSTREAM2.toXML(toNotifier()), getIncrementalOptions());
+    }
+
+    @Override
+    public String toString() {
+        return "TestlabPublishStep{" +
+                "projectKey='" + projectKey + '\'' +
+                ", ruleset='" + ruleset + '\'' +
+                ", rulesetSettings=" + rulesetSettings +
+                ", automationSource='" + automationSource + '\'' +
+                ", description='" + description + '\'' +
+                ", parameters='" + parameters + '\'' +
+                ", publishRobot=" + publishRobot +
+                ", publishTap=" + publishTap +
+                ", advancedSettings=" + advancedSettings +
+                ", incremental=" + incremental +
+                ", testRunId=" + testRunId +
+                ", parts=" + parts +
+                '}';
+    }
+
+    /**
+     * Runs the upload on a background thread. The settings are kept as XML so that the
+     * execution can be persisted with the Pipeline (the api key is kept encrypted).
+     */
+    public static class Execution extends StepExecution {
+        private static final long serialVersionUID = 1L;
+
+        private final String notifierXml;
+        private final IncrementalPublisher.Options incremental;
+
+        private transient volatile Future<?> task;
+        // the context is completed once, by the upload or by stop
+        private transient AtomicBoolean completed;
+
+        Execution(StepContext context, String notifierXml, IncrementalPublisher.Options incremental) {
+            super(context);
+            this.notifierXml = notifierXml;
+            this.incremental = incremental;
+        }
+
+        @Override
+        public boolean start() throws Exception {
+            submit();
+            // completes asynchronously
+            return false;
+        }
+
+        @Override
+        public void onResume() {
+            // the upload did not complete before the controller was restarted
+            log.info("Resuming the publishing of test results to Testlab for " + getContext());
+            submit();
+        }
+
+        @Override
+        public void stop(@NonNull Throwable cause) throws Exception {
+            if(complete())
+                getContext().onFailure(cause);
+            Future<?> t = task;
+            if(t != null)
+                t.cancel(true);
+        }
+
+        /**
+         * @return true if the context is not yet completed and should be completed by the caller
+         */
+        protected boolean complete() {
+            synchronized(this) {
+                if(completed == null)
+                    completed = new AtomicBoolean();
+            }
+            return completed.compareAndSet(false, true);
+        }
+
+        @Override
+        public String getStatus() {
+            Future<?> t = task;
+            return t == null ? "not started" : t.isDone() ? "completed" : "publishing";
+        }
+
+        protected void submit() {
+            task = executor.submit(this::run);
+        }
+
+        protected void run() {
+            StepContext context = getContext();
+            try {
+                Run<?, ?> run = context.get(Run.class);
+                TaskListener listener = context.get(TaskListener.class);
+                TestlabNotifier notifier = (TestlabNotifier) Jenkins.XSTREAM2.fromXML(notifierXml);
+                AddTestResultResponse response = notifier.publish(run, getWorkspace(), listener, incremental);
+                Long testRunId = response != null ? response.getTestRunId() : null;
+                if(testRunId != null)
+                    listener.getLogger().println("Published test results to Testlab test run: " + testRunId);
+                if(complete())
+                    context.onSuccess(testRunId);
+            } catch (AbortException e) {
+                if(complete())
+                    context.onFailure(e);
+            } catch (Throwable t) {
+                if(complete()) {
+                    log.log(Level.WARNING, "Could not publish test results to Testlab.", t);
+                    context.onFailure(t);
+                }
+            }
+        }
+
+        /**
+         * @return workspace if the step is run inside a node block, otherwise null
+         */
+        protected FilePath getWorkspace() {
+            try {
+                return getContext().get(FilePath.class);
+            } catch (Exception e) {
+                // the agent may be gone
+                log.log(Level.FINE, "Workspace not available.", e);
+                return null;
+            }
+        }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends StepDescriptor {
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return Set.of(Run.class, TaskListener.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "testlabPublish";
+        }
+
+        @NonNull
+        @Override
+        public String getDisplayName() {
+            return "Publish test results to Meliora Testlab";
+        }
+
+        public String getDefaultDescriptionTemplate() {
+            return TestlabNotifier.DEFAULT_DESCRIPTION_TEMPLATE;
+        }
+
+        public String getDefaultAutomationSource() {
+            return TestlabNotifier.DEFAULT_AUTOMATIONSOURCE;
+        }
+
+        protected TestlabNotifier.DescriptorImpl getNotifierDescriptor() {
+            return Jenkins.get().getDescriptorByType(TestlabNotifier.DescriptorImpl.class);
+        }
+
+        @Override
+        public String getHelpFile(String fieldName) {
+            // the form is shared with the publisher
+            return getNotifierDescriptor().getHelpFile(fieldName);
+        }
+
+        @SuppressWarnings("unused")
+        @Restricted(NoExternalUse.class)
+        public ListBoxModel doFillAddIssueStrategyItems() {
+            return getNotifierDescriptor().doFillAddIssueStrategyItems();
+        }
+
+        @SuppressWarnings("unused")
+        @Restricted(NoExternalUse.class)
+        public ListBoxModel doFillReopenExistingItems() {
+            return getNotifierDescriptor().doFillReopenExistingItems();
+        }
+
+        @SuppressWarnings("unused")
+        @Restricted(NoExternalUse.class)
+        public ListBoxModel doFillRobotCatenateParentKeywordsItems() {
+            return getNotifierDescriptor().doFillRobotCatenateParentKeywordsItems();
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+package fi.meliora.testlab.ext.jenkins;
+
+import fi.meliora.testlab.ext.crest.PublishStats;
+import hudson.model.Action;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.util.ChartUtil;
+import hudson.util.DataSetBuilder;
+import hudson.util.Graph;
+import hudson.util.ShiftedCategoryAxis;
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.CategoryAxis;
+import org.jfree.chart.axis.CategoryLabelPositions;
+import org.jfree.chart.axis.NumberAxis;
+import org.jfree.chart.plot.CategoryPlot;
+import org.jfree.chart.plot.PlotOrientation;
+import org.jfree.data.category.CategoryDataset;
+
+import java.awt.Color;
+
+/**
+ * Trend of the Testlab publish statistics of the recent builds of a job.
+ *
+ * @author Meliora Ltd
+ */
+public class TestlabPublishTrendAction implements Action {
+    // number of recent builds in the trend
+    public static final int BUILDS = 30;
+
+    private final Job<?, ?> job;
+
+    public TestlabPublishTrendAction(Job<?, ?> job) {
+        this.job = job;
+    }
+
+    public Job<?, ?> getJob() {
+        return job;
+    }
+
+    /**
+     * @return graph of the time spent publishing in milliseconds
+     */
+    public Graph getTimeGraph() {
+        return new TrendGraph("Time (ms)", true) {
+            @Override
+            protected void add(DataSetBuilder<String, ChartUtil.NumberOnlyBuildLabel> dsb, PublishStats s, ChartUtil.NumberOnlyBuildLabel label) {
+                dsb.add(s.getParseMillis(), "Parse", label);
+                dsb.add(s.getSerializeMillis(), "Serialize", label);
+                dsb.add(s.getNetworkMillis(), "Network", label);
+            }
+        };
+    }
+
+    /**
+     * @return graph of the kilobytes of the payloads
+     */
+    public Graph getSizeGraph() {
+        return new TrendGraph("Payload (kB)", false) {
+            @Override
+            protected void add(DataSetBuilder<String, ChartUtil.NumberOnlyBuildLabel> dsb, PublishStats s, ChartUtil.NumberOnlyBuildLabel label) {
+                dsb.add(s.getPayloadBytes() / 1024, "Payload", label);
+            }
+        };
+    }
+
+    /**
+     * @return true if some recent build has publish statistics
+     */
+    public boolean hasStats() {
+        for(Run<?, ?> run : job.getBuilds().limit(BUILDS)) {
+            if(run.getAction(TestlabPublishAction.class) != null)
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Testlab publish trend";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "testlabPublishTrend";
+    }
+
+    /**
+     * Graph of a statistic over the recent builds.
+     */
+    private abstract class TrendGraph extends Graph {
+        private final String axisLabel;
+        private final boolean stacked;
+
+        TrendGraph(String axisLabel, boolean stacked) {
+            super(getTimestamp(job), 500, 200);
+            this.axisLabel = axisLabel;
+            this.stacked = stacked;
+        }
+
+        protected abstract void add(DataSetBuilder<String, ChartUtil.NumberOnlyBuildLabel> dsb, PublishStats s, ChartUtil.NumberOnlyBuildLabel label);
+
+        @Override
+        protected JFreeChart createGraph() {
+            DataSetBuilder<String, ChartUtil.NumberOnlyBuildLabel> dsb = new DataSetBuilder<String, ChartUtil.NumberOnlyBuildLabel>();
+            for(Run<?, ?> run : job.getBuilds().limit(BUILDS)) {
+                TestlabPublishAction action = run.getAction(TestlabPublishAction.class);
+                if(action != null)
+                    add(dsb, action.getStats(), new ChartUtil.NumberOnlyBuildLabel(run));
+            }
+            CategoryDataset dataset = dsb.build();
+            JFreeChart chart = stacked
+                    ? ChartFactory.createStackedAreaChart(null, null, axisLabel, dataset, PlotOrientation.VERTICAL, true, true, false)
+                    : ChartFactory.createLineChart(null, null, axisLabel, dataset, PlotOrientation.VERTICAL, true, true, false);
+            chart.setBackgroundPaint(Color.white);
+
+            CategoryPlot plot = chart.getCategoryPlot();
+            plot.setBackgroundPaint(Color.WHITE);
+            plot.setOutlinePaint(null);
+            plot.setRangeGridlinesVisible(true);
+            plot.setRangeGridlinePaint(Color.black);
+
+            CategoryAxis domainAxis = new ShiftedCategoryAxis(null);
+            plot.setDomainAxis(domainAxis);
+            domainAxis.setCategoryLabelPositions(CategoryLabelPositions.UP_90);
+            domainAxis.setLowerMargin(0.0);
+            domainAxis.setUpperMargin(0.0);
+            domainAxis.setCategoryMargin(0.0);
+
+            NumberAxis rangeAxis = (NumberAxis) plot.getRangeAxis();
+            rangeAxis.setStandardTickUnits(NumberAxis.createIntegerTickUnits());
+            return chart;
+        }
+    }
+
+    private static long getTimestamp(Job<?, ?> job) {
+        Run<?, ?> last = job.getLastCompletedBuild();
+        return last != null ? last.getTimeInMillis() : 0L;
+    }
+
+}
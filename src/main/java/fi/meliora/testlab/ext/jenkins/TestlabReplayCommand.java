@@ -0,0 +1,77 @@
+package fi.meliora.testlab.ext.jenkins;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.cli.CLICommand;
+import hudson.model.Job;
+import hudson.model.Run;
+import jenkins.model.Jenkins;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+
+import java.util.List;
+
+/**
+ * CLI command re-posting the payloads captured for a build to Testlab:
+ *
+ * <pre>
+ *     java -jar jenkins-cli.jar testlab-replay my-job 42 -apikey KEY -url https://staging.example.com/api -rate 5 -concurrency 4 -repeat 100
+ * </pre>
+ *
+ * See {@link PayloadCapture} and {@link PayloadReplayer}.
+ *
+ * @author Meliora Ltd
+ */
+@Extension
+public class TestlabReplayCommand extends CLICommand {
+
+    @Argument(metaVar = "JOB", usage = "Full name of the job.", index = 0, required = true)
+    public String job;
+
+    @Argument(metaVar = "BUILD", usage = "Number of the build whose payloads are replayed.", index = 1, required = true)
+    public int build;
+
+    @Option(name = "-apikey", usage = "Api key of Testlab.", required = true)
+    public String apiKey;
+
+    @Option(name = "-url", usage = "Api url of Testlab to send to, such as https://staging.example.com/api. Defaults to the url the payloads were captured for.")
+    public String url;
+
+    @Option(name = "-user", usage = "User name to send with, the company id of hosted Testlab. Defaults to the one the payloads were captured with.")
+    public String user;
+
+    @Option(name = "-rate", usage = "Uploads started per second. Unlimited by default.")
+    public double rate = 0;
+
+    @Option(name = "-concurrency", usage = "Maximum number of uploads in progress. Defaults to 1.")
+    public int concurrency = 1;
+
+    @Option(name = "-repeat", usage = "Times to send each payload. Defaults to 1.")
+    public int repeat = 1;
+
+    @Override
+    public String getShortDescription() {
+        return "Re-posts the payloads captured for a build to Meliora Testlab.";
+    }
+
+    @Override
+    protected int run() throws Exception {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+
+        Job<?, ?> j = Jenkins.get().getItemByFullName(job, Job.class);
+        if(j == null)
+            throw new AbortException("No such job: " + job);
+        Run<?, ?> r = j.getBuildByNumber(build);
+        if(r == null)
+            throw new AbortException("No such build: " + job + " #" + build);
+        List<PayloadCapture.Captured> payloads = PayloadCapture.list(r);
+        if(payloads.isEmpty())
+            throw new AbortException("No payloads captured for " + r.getFullDisplayName() + ". Set TESTLAB_SENDER_CAPTURE to capture them.");
+
+        stdout.println("Replaying " + payloads.size() + " payloads of " + r.getFullDisplayName() + " " + repeat + " times.");
+        PayloadReplayer.Summary summary = new PayloadReplayer(url, user, apiKey, rate, concurrency, stdout).replay(payloads, repeat);
+        stdout.println(summary);
+        return summary.getFailed() > 0 ? 1 : 0;
+    }
+
+}
@@ -0,0 +1,344 @@
+package fi.meliora.testlab.ext.jenkins;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import jenkins.util.ClassLoaderSanityThreadFactory;
+import org.jenkinsci.plugins.workflow.steps.BodyExecutionCallback;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A Pipeline block step streaming the results of long running tests to Testlab while the
+ * tests run:
+ *
+ * <pre>
+ *     testlabWatch(projectKey: 'PRJX', reports: '**&#47;TEST-*.xml', interval: 30) {
+ *         sh './run-e2e-tests.sh'
+ *     }
+ * </pre>
+ *
+ * While the body runs, the JUnit report files of the workspace are scanned on the agent
+ * every interval seconds (see {@link ReportScanner}) and the test cases of the new report
+ * files are published to a single test run in batches of at most
+ * TESTLAB_WATCH_BATCH_SIZE (system property, defaults to 500) results, see
+ * {@link IncrementalPublisher}. When the body completes the reports are scanned once more.
+ *
+ * The shared Timer of Jenkins only ticks the scans: the scans and the uploads, which may
+ * wait for their turn or to retry, run on a pool of TESTLAB_WATCH_THREADS (system property,
+ * defaults to 4) threads shared by the watch blocks. A scan is skipped if the previous scan
+ * of the block is still running.
+ *
+ * TAP and Robot Framework results are not streamed: a Robot Framework output is complete only
+ * when the tests have run and TAP results are identified by the TAP plugin. Publish them
+ * after the block with testlabPublish(incremental: true, ...), which skips the results the
+ * block has already sent.
+ *
+ * @author Meliora Ltd
+ */
+public class TestlabWatchStep extends TestlabPublishStep {
+    private final static Logger log = Logger.getLogger(TestlabWatchStep.class.getName());
+
+    public static final int DEFAULT_INTERVAL = 30;
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final int DEFAULT_THREADS = 4;
+
+    static final ExecutorService scanners = createScanners();
+
+    private String reports = ReportScanner.DEFAULT_REPORTS;
+    private int interval = DEFAULT_INTERVAL;
+
+    @DataBoundConstructor
+    public TestlabWatchStep(String projectKey) {
+        super(projectKey);
+    }
+
+    public String getReports() {
+        return reports;
+    }
+
+    @DataBoundSetter
+    public void setReports(String reports) {
+        this.reports = TestlabNotifier.isBlank(reports) ? ReportScanner.DEFAULT_REPORTS : reports;
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    @DataBoundSetter
+    public void setInterval(int interval) {
+        this.interval = interval > 0 ? interval : DEFAULT_INTERVAL;
+    }
+
+    public static int getBatchSize() {
+        return Math.max(1, Integer.getInteger("TESTLAB_WATCH_BATCH_SIZE", DEFAULT_BATCH_SIZE));
+    }
+
+    public static int getThreads() {
+        return Math.max(1, Integer.getInteger("TESTLAB_WATCH_THREADS", DEFAULT_THREADS));
+    }
+
+    private static ExecutorService createScanners() {
+        int threads = getThreads();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamingThreadFactory(new ClassLoaderSanityThreadFactory(new DaemonThreadFactory()), "Testlab watch"));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    @Override
+    public StepExecution start(StepContext context) throws Exception {
+        // the streamed batches do not count as parts finalizing the test run
+        IncrementalPublisher.Options options = new IncrementalPublisher.Options(getTestRunId(), 0);
+        return new Execution(context, Jenkins.XSTREAM2.toXML(toNotifier()), options, reports, interval);
+    }
+
+    @Override
+    public String toString() {
+        return "TestlabWatchStep{" +
+                "reports='" + reports + '\'' +
+                ", interval=" + interval +
+                ", " + super.toString() +
+                '}';
+    }
+
+    /**
+     * Runs the body and scans the reports periodically until the body completes.
+     */
+    public static class Execution extends StepExecution {
+        private static final long serialVersionUID = 1L;
+
+        private final String notifierXml;
+        private final IncrementalPublisher.Options options;
+        private final String reports;
+        private final int interval;
+
+        // persisted with the Pipeline so that the results are not sent again after a restart,
+        // replaced as a whole by the scanner thread so that the Pipeline is saved consistent
+        private volatile Progress progress = new Progress(Collections.<String, String>emptyMap(), Collections.<String, String>emptyMap());
+
+        private transient volatile ScheduledFuture<?> poller;
+        private transient volatile Future<?> scanning;
+        // the context is completed once, by the body callback or by stop
+        private transient AtomicBoolean completed;
+
+        Execution(StepContext context, String notifierXml, IncrementalPublisher.Options options, String reports, int interval) {
+            super(context);
+            this.notifierXml = notifierXml;
+            this.options = options;
+            this.reports = reports;
+            this.interval = interval;
+        }
+
+        @Override
+        public boolean start() throws Exception {
+            getContext().get(TaskListener.class).getLogger().println(
+                    "Streaming test results matching " + reports + " to Testlab every " + interval + " seconds.");
+            getContext().newBodyInvoker().withCallback(new Callback(this)).start();
+            schedule();
+            return false;
+        }
+
+        @Override
+        public void onResume() {
+            schedule();
+        }
+
+        @Override
+        public void stop(@NonNull Throwable cause) throws Exception {
+            cancel();
+            // stops the body, its callback then finds the context completed
+            if(complete())
+                super.stop(cause);
+        }
+
+        /**
+         * @return true if the context is not yet completed and should be completed by the caller
+         */
+        protected boolean complete() {
+            return getCompleted().compareAndSet(false, true);
+        }
+
+        private synchronized AtomicBoolean getCompleted() {
+            if(completed == null)
+                completed = new AtomicBoolean();
+            return completed;
+        }
+
+        @Override
+        public String getStatus() {
+            return "streaming " + reports;
+        }
+
+        protected void schedule() {
+            poller = Timer.get().scheduleWithFixedDelay(this::tick, interval, interval, TimeUnit.SECONDS);
+        }
+
+        /**
+         * Runs a scan on the scanner pool unless the previous one is still running.
+         */
+        protected void tick() {
+            Future<?> s = scanning;
+            if(s != null && !s.isDone())
+                return;
+            scanning = scanners.submit(() -> {
+                try {
+                    scan(false);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Throwable t) {
+                    // keep streaming, the next scan retries
+                    log.log(Level.WARNING, "Could not stream test results to Testlab.", t);
+                }
+            });
+        }
+
+        protected void cancel() {
+            ScheduledFuture<?> p = poller;
+            if(p != null)
+                p.cancel(false);
+        }
+
+        /**
+         * Scans the reports and publishes the new test cases.
+         *
+         * @param flush if set, reads the changed reports without waiting for them to settle
+         */
+        protected synchronized void scan(boolean flush) throws Exception {
+            StepContext context = getContext();
+            FilePath workspace = context.get(FilePath.class);
+            if(workspace == null)
+                return;
+            Progress p = progress;
+            ReportScanner.Scan scan = workspace.act(new ReportScanner(reports,
+                    new HashMap<String, String>(p.read), new HashMap<String, String>(p.pending), flush));
+
+            List<ReportScanner.Case> cases = scan.getCases();
+            if(!cases.isEmpty()) {
+                Run<?, ?> run = context.get(Run.class);
+                TaskListener listener = context.get(TaskListener.class);
+                TestlabNotifier notifier = (TestlabNotifier) Jenkins.XSTREAM2.fromXML(notifierXml);
+                int batchSize = getBatchSize();
+                for(int i = 0; i < cases.size(); i += batchSize)
+                    notifier.publish(run, workspace, listener, options, cases.subList(i, Math.min(cases.size(), i + batchSize)));
+            }
+            // the reports are marked read once their results have been published
+            progress = new Progress(scan.getRead(), scan.getPending());
+        }
+
+        /**
+         * Scans the reports one more time off the CPS thread and completes the step.
+         */
+        protected void finish(final StepContext context, final Object result, final Throwable failure) {
+            cancel();
+            if(getCompleted().get())
+                return;
+            scanners.submit(() -> {
+                Throwable scanFailure = null;
+                try {
+                    scan(true);
+                } catch (Throwable t) {
+                    log.log(Level.WARNING, "Could not publish the last test results to Testlab.", t);
+                    scanFailure = t;
+                }
+                if(!complete())
+                    return;
+                if(failure != null)
+                    context.onFailure(failure);
+                else if(scanFailure != null)
+                    context.onFailure(scanFailure);
+                else
+                    context.onSuccess(result);
+            });
+        }
+    }
+
+    /**
+     * Completes the step when the body completes.
+     */
+    /**
+     * Reports read and pending of an execution, not modified once created.
+     */
+    private static final class Progress implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        // path -> signature of the report, see ReportScanner.Scan
+        final Map<String, String> read;
+        final Map<String, String> pending;
+
+        Progress(Map<String, String> read, Map<String, String> pending) {
+            this.read = Collections.unmodifiableMap(new HashMap<String, String>(read));
+            this.pending = Collections.unmodifiableMap(new HashMap<String, String>(pending));
+        }
+    }
+
+    private static final class Callback extends BodyExecutionCallback {
+        private static final long serialVersionUID = 1L;
+
+        private final Execution execution;
+
+        Callback(Execution execution) {
+            this.execution = execution;
+        }
+
+        @Override
+        public void onSuccess(StepContext context, Object result) {
+            execution.finish(context, result, null);
+        }
+
+        @Override
+        public void onFailure(StepContext context, Throwable t) {
+            execution.finish(context, null, t);
+        }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends TestlabPublishStep.DescriptorImpl {
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return Set.of(Run.class, TaskListener.class, FilePath.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "testlabWatch";
+        }
+
+        @Override
+        public boolean takesImplicitBlockArgument() {
+            return true;
+        }
+
+        @NonNull
+        @Override
+        public String getDisplayName() {
+            return "Stream test results to Meliora Testlab while the tests run";
+        }
+    }
+
+}
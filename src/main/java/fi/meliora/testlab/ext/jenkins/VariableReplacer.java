@@ -1,6 +1,5 @@
 package fi.meliora.testlab.ext.jenkins;
 
-import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -16,20 +15,18 @@ public class VariableReplacer {
     protected Map<String, String> vars = null;
 
     /**
-     * Creates a new variable replacer by combining key-value maps provided.
+     * Creates a new variable replacer by layering the key-value maps provided. The maps are
+     * not copied: a value in a latter map overrides the value of the same key in the former.
      *
      * @param vars variables
      */
-    @SuppressWarnings("unchecked")
+    @SafeVarargs
     public VariableReplacer(Map<String, String>... vars) {
         if(vars != null) {
             if(vars.length == 1) {
                 this.vars = vars[0];
             } else {
-                this.vars = new HashMap<>();
-                for(Map<String, String> v : vars) {
-                    this.vars.putAll(v);
-                }
+                this.vars = new LayeredVariables(vars);
             }
         }
     }
@@ -45,13 +42,21 @@ public class VariableReplacer {
         if(vars == null || src == null || src.isEmpty())
             return src;
 
-        String result = src;
-        for(Map.Entry<String, String> e : vars.entrySet()) {
-            String key = e.getKey();
-            String value = e.getValue();
-            String tag = "\\$\\{" + key + "\\}";
-            result = result.replaceAll(tag, value);
-        }
+        return replace(VariableTemplate.compile(src));
+    }
+
+    /**
+     * Renders a compiled template with the variables of this replacer.
+     *
+     * @param template template
+     * @return String with variables replaced
+     */
+    public String replace(VariableTemplate template) {
+        String src = template.getSource();
+        if(vars == null || !template.hasVariables())
+            return src;
+
+        String result = template.render(vars);
 
         if(log.isLoggable(Level.FINE) && !result.equals(src)) {
             log.fine("'" + src + "' replaced as '" + result + "'");
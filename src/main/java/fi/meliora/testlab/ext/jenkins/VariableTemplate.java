@@ -0,0 +1,121 @@
+package fi.meliora.testlab.ext.jenkins;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A String with ${VARIABLE} tags compiled to literal segments and variable names. Compile
+ * once and render with direct map lookups in a single pass.
+ *
+ * Values are inserted as they are: a '$' or '\' in a value has no special meaning and
+ * tags inside values are not expanded further. If a variable is missing the tag is left as it is.
+ *
+ * @author Meliora Ltd
+ */
+public final class VariableTemplate {
+
+    private static final String[] EMPTY = new String[0];
+
+    private final String source;
+    // literals.length == keys.length + 1, literal i is rendered before variable i
+    private final String[] literals;
+    private final String[] keys;
+
+    private VariableTemplate(String source, String[] literals, String[] keys) {
+        this.source = source;
+        this.literals = literals;
+        this.keys = keys;
+    }
+
+    /**
+     * Tokenizes the source String to a template.
+     *
+     * @param source source String, may be null
+     * @return template
+     */
+    public static VariableTemplate compile(String source) {
+        if(source == null || source.indexOf("${") < 0)
+            return new VariableTemplate(source, new String[] { source }, EMPTY);
+
+        List<String> literals = new ArrayList<String>();
+        List<String> keys = new ArrayList<String>();
+        int pos = 0;
+        int len = source.length();
+        StringBuilder literal = new StringBuilder();
+        while(pos < len) {
+            int start = source.indexOf("${", pos);
+            int end = start < 0 ? -1 : source.indexOf('}', start + 2);
+            if(start < 0 || end < 0) {
+                // no more complete tags
+                literal.append(source, pos, len);
+                break;
+            }
+            // use the innermost tag before the closing brace: "${A${B}" has a tag ${B}
+            start = source.lastIndexOf("${", end - 2);
+            literal.append(source, pos, start);
+            literals.add(literal.toString());
+            literal.setLength(0);
+            keys.add(source.substring(start + 2, end));
+            pos = end + 1;
+        }
+        literals.add(literal.toString());
+
+        return new VariableTemplate(source, literals.toArray(EMPTY), keys.toArray(EMPTY));
+    }
+
+    /**
+     * Renders the template with the values of the variables.
+     *
+     * @param vars variables, may be null
+     * @return rendered String, null if the source was null
+     */
+    public String render(Map<String, String> vars) {
+        if(keys.length == 0 || vars == null)
+            return source;
+
+        StringBuilder sb = new StringBuilder(source.length() + 16 * keys.length);
+        for(int i = 0; i < keys.length; i++) {
+            sb.append(literals[i]);
+            String value = vars.get(keys[i]);
+            if(value != null) {
+                sb.append(value);
+            } else {
+                sb.append("${").append(keys[i]).append('}');
+            }
+        }
+        sb.append(literals[keys.length]);
+        return sb.toString();
+    }
+
+    /**
+     * @return the source String the template was compiled from
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @return true if the template has variable tags
+     */
+    public boolean hasVariables() {
+        return keys.length > 0;
+    }
+
+    /**
+     * @return names of the variables referenced, in order of appearance
+     */
+    public List<String> getVariableNames() {
+        return Collections.unmodifiableList(Arrays.asList(keys));
+    }
+
+    @Override
+    public String toString() {
+        return "VariableTemplate{" +
+                "source='" + source + '\'' +
+                ", variables=" + Arrays.toString(keys) +
+                '}';
+    }
+}
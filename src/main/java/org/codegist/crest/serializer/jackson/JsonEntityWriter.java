@@ -1,11 +1,16 @@
 package org.codegist.crest.serializer.jackson;
 
+import fi.meliora.testlab.ext.crest.ObjectMapperFactory;
+import fi.meliora.testlab.ext.crest.PublishStats;
+import fi.meliora.testlab.ext.crest.RequestTap;
+import fi.meliora.testlab.ext.rest.model.TestResult;
 import org.codegist.crest.CRestConfig;
 import org.codegist.crest.entity.EntityWriter;
 import org.codegist.crest.io.Request;
 import org.codegist.crest.param.Param;
 import org.codegist.crest.serializer.Serializer;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,11 +38,17 @@ public class JsonEntityWriter implements EntityWriter {
             Serializer<List<Param>> {
 
         private final ObjectMapper jackson;
-
+        private final ObjectWriter testResultWriter;
+
+        /**
+         * Note: the mapper is shared process-wide (see ObjectMapperFactory) so that the
+         * serializer caches of jackson stay warm between calls.
+         *
+         * @param crestConfig crest config
+         */
         public JsonEncodedFormJacksonSerializer(CRestConfig crestConfig) {
-            this.jackson = JacksonFactory.createObjectMapper(
-                    crestConfig, getClass()
-            );
+            this.jackson = ObjectMapperFactory.getInstance().getMapper();
+            this.testResultWriter = ObjectMapperFactory.getInstance().getTestResultWriter();
         }
 
         public void serialize(List<Param> value, Charset charset, OutputStream out)
@@ -50,7 +61,11 @@ public class JsonEntityWriter implements EntityWriter {
                     }
                 }
 
-                jackson.writeValue(out, list[0]);
+                if(list[0] instanceof TestResult) {
+                    testResultWriter.writeValue(out, list[0]);
+                } else {
+                    jackson.writeValue(out, list[0]);
+                }
             } else {
                 if(log.isDebugEnabled())
                     log.debug("Not serializing, value is empty.");
@@ -76,6 +91,10 @@ public class JsonEntityWriter implements EntityWriter {
     }
 
     public void writeTo(Request request, OutputStream outputStream) throws Exception {
+        PublishStats stats = PublishStats.current();
+        if(stats != null)
+            outputStream = stats.record(outputStream);
+        outputStream = RequestTap.tee(outputStream, RequestTap.currentRequest());
         serializer.serialize(request.getParams(FORM), request.getMethodConfig().getCharset(), outputStream);
     }
 
@@ -0,0 +1,70 @@
+package org.codegist.crest.serializer.jackson;
+
+import fi.meliora.testlab.ext.crest.ObjectMapperFactory;
+import fi.meliora.testlab.ext.crest.PublishStats;
+import fi.meliora.testlab.ext.crest.RequestTap;
+import fi.meliora.testlab.ext.rest.model.TestResult;
+import org.codegist.crest.CRestConfig;
+import org.codegist.crest.entity.EntityWriter;
+import org.codegist.crest.io.Request;
+import org.codegist.crest.param.Param;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.OutputStream;
+import java.util.List;
+
+import static org.codegist.crest.config.ParamType.FORM;
+
+/**
+ * Entity writer to send the
+ *
+ * SomePOJO doSomething(SomePOJO pojo)
+ *
+ * .. entity encoded in jackson's binary Smile format. See JsonEntityWriter.
+ *
+ * @author Meliora Ltd
+ */
+public class SmileEntityWriter implements EntityWriter {
+    private static final Logger log = LoggerFactory.getLogger(SmileEntityWriter.class);
+
+    public static final String CONTENT_TYPE = "application/x-jackson-smile";
+
+    private final ObjectMapper smile;
+    private final ObjectWriter testResultWriter;
+
+    public SmileEntityWriter(CRestConfig crestConfig) {
+        this.smile = ObjectMapperFactory.getInstance().getSmileMapper();
+        this.testResultWriter = ObjectMapperFactory.getInstance().getSmileTestResultWriter();
+    }
+
+    public String getContentType(Request request) {
+        return CONTENT_TYPE;
+    }
+
+    public int getContentLength(Request httpRequest) {
+        return -1;
+    }
+
+    public void writeTo(Request request, OutputStream outputStream) throws Exception {
+        PublishStats stats = PublishStats.current();
+        if(stats != null)
+            outputStream = stats.record(outputStream);
+        outputStream = RequestTap.tee(outputStream, RequestTap.currentRequest());
+        List<Param> value = request.getParams(FORM);
+        if (!value.isEmpty()) {
+            Object o = value.get(0).getValue().toArray(new Object[0])[0];
+            if(o instanceof TestResult) {
+                testResultWriter.writeValue(outputStream, o);
+            } else {
+                smile.writeValue(outputStream, o);
+            }
+        } else {
+            if(log.isDebugEnabled())
+                log.debug("Not serializing, value is empty.");
+        }
+    }
+
+}
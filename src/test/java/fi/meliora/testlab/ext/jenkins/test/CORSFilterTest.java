@@ -0,0 +1,116 @@
+package fi.meliora.testlab.ext.jenkins.test;
+
+import fi.meliora.testlab.ext.jenkins.CORSFilter;
+import fi.meliora.testlab.ext.jenkins.OriginMatcher;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.lang.reflect.Proxy;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for CORSFilter with stubbed servlet requests.
+ *
+ * @author Meliora Ltd
+ */
+public class CORSFilterTest {
+
+    @Test
+    public void testOrigins() throws Exception {
+        CORSFilter filter = new CORSFilter();
+        filter.configure(true, Arrays.asList("https://a.example.com", "https://b.example.com"));
+
+        assertEquals("https%3A%2F%2Fb.example.com", filterHeaders(filter, "GET", "https://b.example.com").get("Access-Control-Allow-Origin"));
+        assertNull(filterHeaders(filter, "GET", "https://c.example.com").get("Access-Control-Allow-Origin"));
+        assertNull(filterHeaders(filter, "GET", null).get("Access-Control-Allow-Origin"));
+
+        filter.setEnabled(false);
+        assertNull(filterHeaders(filter, "GET", "https://b.example.com").get("Access-Control-Allow-Origin"));
+    }
+
+    @Test
+    public void testAllowAll() throws Exception {
+        CORSFilter filter = new CORSFilter();
+        filter.configure(true, Collections.singletonList("*"));
+
+        for(int i = 0; i < 2; i++)
+            assertEquals("https%3A%2F%2Fany.example.com", filterHeaders(filter, "GET", "https://any.example.com").get("Access-Control-Allow-Origin"));
+    }
+
+    @Test
+    public void testPatterns() throws Exception {
+        OriginMatcher m = OriginMatcher.compile(Arrays.asList("https://*.melioratestlab.com", "https://exact.example.com"));
+        assertEquals(1, m.size());
+        assertTrue(m.matches("https://mycompany.melioratestlab.com"));
+        assertTrue(m.matches("https://a.b.MelioraTestlab.com"));
+        assertFalse(m.matches("https://melioratestlab.com"));
+        assertFalse(m.matches("http://mycompany.melioratestlab.com"));
+        assertFalse(m.matches("https://evil.example.com/.melioratestlab.com"));
+        assertFalse(m.matches("https://mycompany.melioratestlab.com.evil.example.com"));
+        assertNull(OriginMatcher.compile(Arrays.asList("*", "https://exact.example.com")));
+
+        CORSFilter filter = new CORSFilter();
+        filter.configure(true, Arrays.asList("https://*.melioratestlab.com", "https://exact.example.com"));
+        assertEquals("https%3A%2F%2Fmycompany.melioratestlab.com", filterHeaders(filter, "GET", "https://mycompany.melioratestlab.com").get("Access-Control-Allow-Origin"));
+        assertEquals("https%3A%2F%2Fexact.example.com", filterHeaders(filter, "GET", "https://exact.example.com").get("Access-Control-Allow-Origin"));
+        assertNull(filterHeaders(filter, "GET", "https://other.example.com").get("Access-Control-Allow-Origin"));
+    }
+
+    @Test
+    public void testPreflight() throws Exception {
+        CORSFilter filter = new CORSFilter();
+        filter.configure(true, Collections.singletonList("https://a.example.com"), 120);
+
+        Map<String, String> headers = filterHeaders(filter, "OPTIONS", "https://a.example.com");
+        assertEquals("120", headers.get("Access-Control-Max-Age"));
+        assertEquals("Origin", headers.get("Vary"));
+        assertNull("preflight should not enter the filter chain", headers.get(CHAIN));
+
+        headers = filterHeaders(filter, "GET", "https://a.example.com");
+        assertNull(headers.get("Access-Control-Max-Age"));
+        assertEquals("true", headers.get(CHAIN));
+
+        headers = filterHeaders(filter, "OPTIONS", "https://b.example.com");
+        assertEquals("Origin", headers.get("Vary"));
+        assertEquals("true", headers.get(CHAIN));
+
+        assertEquals(1, filter.getPreflightRequests());
+        assertEquals(1, filter.getCorsRequests());
+        assertEquals(1, filter.getDeniedRequests());
+
+        filter.configure(true, Collections.singletonList("https://a.example.com"), 0);
+        assertNull(filterHeaders(filter, "OPTIONS", "https://a.example.com").get("Access-Control-Max-Age"));
+    }
+
+    // marker put to the returned headers if the request entered the filter chain
+    private static final String CHAIN = "_chain";
+
+    /**
+     * Runs a request through the filter.
+     *
+     * @return headers added to the response
+     */
+    public static Map<String, String> filterHeaders(CORSFilter filter, String method, String origin) throws Exception {
+        final Map<String, String> headers = new HashMap<String, String>();
+        HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(CORSFilterTest.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class }, (proxy, m, args) -> {
+                    if("getMethod".equals(m.getName()))
+                        return method;
+                    if("getHeader".equals(m.getName()) && "Origin".equals(args[0]))
+                        return origin;
+                    return null;
+                });
+        HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(CORSFilterTest.class.getClassLoader(),
+                new Class<?>[] { HttpServletResponse.class }, (proxy, m, args) -> {
+                    if("addHeader".equals(m.getName()) || "setHeader".equals(m.getName()))
+                        headers.put((String) args[0], (String) args[1]);
+                    return null;
+                });
+        filter.doFilter(request, response, (req, resp) -> headers.put(CHAIN, "true"));
+        return headers;
+    }
+
+}
@@ -0,0 +1,110 @@
+package fi.meliora.testlab.ext.jenkins.test;
+
+import fi.meliora.testlab.ext.jenkins.ChangesetExtractor;
+import fi.meliora.testlab.ext.jenkins.ChangesetTypeMapper;
+import fi.meliora.testlab.ext.rest.model.Changeset;
+import hudson.model.User;
+import hudson.scm.ChangeLogSet;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for extracting changesets from change logs of builds.
+ *
+ * @author Meliora Ltd
+ */
+public class ChangesetExtractorTest {
+
+    private static final List<ChangesetTypeMapper> MAPPERS = Collections.singletonList(new ChangesetTypeMapper.KindMapper());
+
+    @Test
+    public void testExtract() {
+        List<ChangeLogSet<? extends ChangeLogSet.Entry>> logs = new ArrayList<ChangeLogSet<? extends ChangeLogSet.Entry>>();
+        logs.add(new FakeChangeLogSet("git", "a", "b"));
+        // same repository checked out twice
+        logs.add(new FakeChangeLogSet("git", "b", "a", "c"));
+        logs.add(new FakeChangeLogSet("hg", "d"));
+        logs.add(new FakeChangeLogSet("svn", "100"));
+
+        List<Changeset> changesets = ChangesetExtractor.extract(logs, MAPPERS, 100);
+        assertEquals(Arrays.asList("a", "b", "c", "d"), identifiers(changesets));
+        assertEquals(Changeset.TYPE_GIT, changesets.get(0).getType());
+        assertEquals(Changeset.TYPE_HG, changesets.get(3).getType());
+
+        assertEquals(Arrays.asList("a", "b"), identifiers(ChangesetExtractor.extract(logs, MAPPERS, 2)));
+        assertNull(ChangesetExtractor.extract(Collections.singletonList(new FakeChangeLogSet("svn", "1")), MAPPERS, 100));
+    }
+
+    @Test
+    public void testCustomMapper() {
+        List<ChangesetTypeMapper> mappers = new ArrayList<ChangesetTypeMapper>(MAPPERS);
+        mappers.add(0, new ChangesetTypeMapper() {
+            @Override
+            public Integer getType(ChangeLogSet<? extends ChangeLogSet.Entry> changeLogSet) {
+                return "gitlike".equals(changeLogSet.getKind()) ? Changeset.TYPE_GIT : null;
+            }
+        });
+        List<Changeset> changesets = ChangesetExtractor.extract(
+                Collections.singletonList(new FakeChangeLogSet("gitlike", "x")), mappers, 100);
+        assertEquals(Collections.singletonList("x"), identifiers(changesets));
+    }
+
+    private static List<String> identifiers(List<Changeset> changesets) {
+        List<String> ids = new ArrayList<String>();
+        for(Changeset cs : changesets)
+            ids.add(cs.getIdentifier());
+        return ids;
+    }
+
+    private static class FakeChangeLogSet extends ChangeLogSet<ChangeLogSet.Entry> {
+        private final String kind;
+        private final List<ChangeLogSet.Entry> entries = new ArrayList<ChangeLogSet.Entry>();
+
+        FakeChangeLogSet(String kind, String... commitIds) {
+            super(null, null);
+            this.kind = kind;
+            for(final String commitId : commitIds) {
+                entries.add(new ChangeLogSet.Entry() {
+                    @Override
+                    public String getCommitId() {
+                        return commitId;
+                    }
+
+                    @Override
+                    public String getMsg() {
+                        return "commit " + commitId;
+                    }
+
+                    @Override
+                    public User getAuthor() {
+                        return null;
+                    }
+
+                    @Override
+                    public Collection<String> getAffectedPaths() {
+                        return Collections.emptyList();
+                    }
+                });
+            }
+        }
+
+        @Override
+        public String getKind() {
+            return kind;
+        }
+
+        @Override
+        public boolean isEmptySet() {
+            return entries.isEmpty();
+        }
+
+        @Override
+        public Iterator<ChangeLogSet.Entry> iterator() {
+            return entries.iterator();
+        }
+    }
+
+}
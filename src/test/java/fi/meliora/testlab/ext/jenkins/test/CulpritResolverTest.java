@@ -0,0 +1,76 @@
+package fi.meliora.testlab.ext.jenkins.test;
+
+import fi.meliora.testlab.ext.jenkins.CulpritResolver;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.jvnet.hudson.test.FailureBuilder;
+import org.jvnet.hudson.test.FakeChangeLogSCM;
+import org.jvnet.hudson.test.TestBuilder;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for resolving culprits from the cache maintained as builds complete.
+ *
+ * @author Meliora Ltd
+ */
+public class CulpritResolverTest extends TestBase {
+
+    @Before
+    public void setUp() {
+        System.setProperty("TESTLAB_CULPRITS_MODE", "cached");
+        CulpritResolver.clearCache();
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty("TESTLAB_CULPRITS_MODE");
+        CulpritResolver.clearCache();
+    }
+
+    @Test
+    public void testCachedCulprits() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        FakeChangeLogSCM scm = new FakeChangeLogSCM();
+        p.setScm(scm);
+        final Map<Integer, Set<String>> resolved = new HashMap<Integer, Set<String>>();
+        p.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException {
+                resolved.put(build.getNumber(), CulpritResolver.getCulprits(build, listener));
+                return true;
+            }
+        });
+
+        scm.addChange().withAuthor("alice");
+        j.buildAndAssertSuccess(p);
+        assertEquals(Collections.singleton("alice"), resolved.get(1));
+
+        scm.addChange().withAuthor("bob");
+        p.getBuildersList().add(new FailureBuilder());
+        j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0).get());
+        assertEquals(Collections.singleton("bob"), resolved.get(2));
+
+        // previous failed, culprits of it carry over
+        scm.addChange().withAuthor("carol");
+        p.getBuildersList().remove(FailureBuilder.class);
+        FreeStyleBuild b3 = j.buildAndAssertSuccess(p);
+        assertEquals(new TreeSet<String>(Arrays.asList("bob", "carol")), resolved.get(3));
+        assertEquals(b3.getCulpritIds(), resolved.get(3));
+
+        // previous succeeded
+        scm.addChange().withAuthor("dave");
+        j.buildAndAssertSuccess(p);
+        assertEquals(Collections.singleton("dave"), resolved.get(4));
+    }
+
+}
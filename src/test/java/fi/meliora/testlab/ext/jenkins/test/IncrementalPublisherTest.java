@@ -0,0 +1,149 @@
+package fi.meliora.testlab.ext.jenkins.test;
+
+import fi.meliora.testlab.ext.jenkins.IncrementalPublisher;
+import fi.meliora.testlab.ext.rest.model.AddTestResultResponse;
+import fi.meliora.testlab.ext.rest.model.TestCaseResult;
+import fi.meliora.testlab.ext.rest.model.TestResult;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.TaskListener;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for publishing the results of a build in parts to a single test run.
+ *
+ * @author Meliora Ltd
+ */
+public class IncrementalPublisherTest extends TestBase {
+
+    /**
+     * Tests that each part sends only the new results, appends by the test run id of the first
+     * upload and that the last part carries the culprits.
+     */
+    @Test
+    public void testParts() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject("incremental");
+        FreeStyleBuild build = j.buildAndAssertSuccess(project);
+
+        final List<TestResult> sent = new ArrayList<TestResult>();
+        IncrementalPublisher.Upload upload = data -> {
+            sent.add(copy(data));
+            AddTestResultResponse response = new AddTestResultResponse();
+            response.setTestRunId(42L);
+            return response;
+        };
+        IncrementalPublisher.Options options = new IncrementalPublisher.Options(null, 3);
+        IncrementalPublisher p = IncrementalPublisher.getInstance();
+
+        p.publish(build, options, "PRJ", "run", createData("a", "b"), upload, TaskListener.NULL);
+        p.publish(build, options, "PRJ", "run", createData("a", "b", "c"), upload, TaskListener.NULL);
+        AddTestResultResponse response = p.publish(build, options, "PRJ", "run", createData("a", "b", "c", "c"), upload, TaskListener.NULL);
+
+        assertEquals(3, sent.size());
+        assertEquals(Long.valueOf(42L), response.getTestRunId());
+
+        assertNull(sent.get(0).getTestRunId());
+        assertEquals(Arrays.asList("a", "b"), getMappingIds(sent.get(0)));
+        assertNotNull(sent.get(0).getCulprits());
+
+        assertEquals(Long.valueOf(42L), sent.get(1).getTestRunId());
+        assertEquals(Collections.singletonList("c"), getMappingIds(sent.get(1)));
+        assertNull(sent.get(1).getCulprits());
+
+        // the second result of the same test case is new
+        assertEquals(Long.valueOf(42L), sent.get(2).getTestRunId());
+        assertEquals(Collections.singletonList("c"), getMappingIds(sent.get(2)));
+        assertNotNull(sent.get(2).getCulprits());
+
+        // finalized, a new part starts a new test run
+        sent.clear();
+        p.publish(build, options, "PRJ", "run", createData("a"), upload, TaskListener.NULL);
+        assertNull(sent.get(0).getTestRunId());
+    }
+
+    /**
+     * Tests that parts publishing at the same time send each result once.
+     */
+    @Test
+    public void testConcurrentParts() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject("incremental-concurrent");
+        final FreeStyleBuild build = j.buildAndAssertSuccess(project);
+
+        final int parts = 10;
+        final Queue<String> sentIds = new ConcurrentLinkedQueue<String>();
+        final Queue<Long> testRunIds = new ConcurrentLinkedQueue<Long>();
+        final IncrementalPublisher.Upload upload = data -> {
+            sentIds.addAll(getMappingIds(data));
+            testRunIds.add(data.getTestRunId() != null ? data.getTestRunId() : -1L);
+            AddTestResultResponse response = new AddTestResultResponse();
+            response.setTestRunId(7L);
+            return response;
+        };
+        final IncrementalPublisher.Options options = new IncrementalPublisher.Options(null, parts);
+
+        ExecutorService executor = Executors.newFixedThreadPool(parts);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for(int i = 0; i < parts; i++) {
+                final String[] ids = new String[i + 1];
+                for(int k = 0; k <= i; k++)
+                    ids[k] = "test" + k;
+                futures.add(executor.submit(() -> {
+                    IncrementalPublisher.getInstance().publish(build, options, "PRJ", "parallel", createData(ids), upload, TaskListener.NULL);
+                    return null;
+                }));
+            }
+            for(Future<?> f : futures)
+                f.get(30, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(parts, new HashSet<String>(sentIds).size());
+        assertEquals(parts, sentIds.size());
+        // only a single upload created the test run
+        int created = 0;
+        for(Long id : testRunIds) {
+            if(id == -1L)
+                created++;
+        }
+        assertEquals(1, created);
+    }
+
+    protected static TestResult createData(String... mappingIds) {
+        TestResult data = new TestResult();
+        data.setProjectKey("PRJ");
+        data.setCulprits(Collections.singletonList("agentsmith"));
+        List<TestCaseResult> results = new ArrayList<TestCaseResult>();
+        for(String mappingId : mappingIds) {
+            TestCaseResult r = new TestCaseResult();
+            r.setMappingId(mappingId);
+            results.add(r);
+        }
+        data.setResults(results);
+        return data;
+    }
+
+    protected static TestResult copy(TestResult data) {
+        TestResult c = new TestResult();
+        c.setTestRunId(data.getTestRunId());
+        c.setCulprits(data.getCulprits());
+        c.setResults(data.getResults() != null ? new ArrayList<TestCaseResult>(data.getResults()) : null);
+        return c;
+    }
+
+    protected static List<String> getMappingIds(TestResult data) {
+        List<String> ids = new ArrayList<String>();
+        if(data.getResults() != null) {
+            for(TestCaseResult r : data.getResults())
+                ids.add(r.getMappingId());
+        }
+        return ids;
+    }
+
+}
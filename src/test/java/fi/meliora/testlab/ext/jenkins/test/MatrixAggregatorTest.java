@@ -0,0 +1,162 @@
+package fi.meliora.testlab.ext.jenkins.test;
+
+import fi.meliora.testlab.ext.crest.UploadDeduplicator;
+import fi.meliora.testlab.ext.jenkins.MatrixAggregator;
+import fi.meliora.testlab.ext.jenkins.TestlabNotifier;
+import fi.meliora.testlab.ext.rest.model.KeyValuePair;
+import fi.meliora.testlab.ext.rest.model.TestCaseResult;
+import fi.meliora.testlab.ext.rest.model.TestResult;
+import hudson.Launcher;
+import hudson.matrix.AxisList;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixProject;
+import hudson.matrix.MatrixRun;
+import hudson.matrix.TextAxis;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.tasks.junit.JUnitResultArchiver;
+import hudson.util.Secret;
+import hudson.util.StreamTaskListener;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Test;
+import org.jvnet.hudson.test.TestBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for publishing the results of multi-configuration builds at once.
+ *
+ * @author Meliora Ltd
+ */
+public class MatrixAggregatorTest extends TestBase {
+
+    private TestlabStubServer stub;
+
+    @Test
+    public void testParseAxes() {
+        List<KeyValuePair> axes = MatrixAggregator.parseAxes("jdk=11,os=linux");
+        assertEquals(2, axes.size());
+        assertEquals("jdk", axes.get(0).getKey());
+        assertEquals("11", axes.get(0).getValue());
+        assertEquals("os", axes.get(1).getKey());
+        assertEquals("linux", axes.get(1).getValue());
+        assertTrue(MatrixAggregator.parseAxes("default").isEmpty());
+    }
+
+    @Test
+    public void testAggregatedPublish() throws Exception {
+        MatrixProject p = j.jenkins.createProject(MatrixProject.class, "matrix");
+        p.setAxes(new AxisList(new TextAxis("os", "linux", "windows")));
+        p.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                build.getWorkspace().child("TEST-matrix.xml").write(
+                        "<testsuite name=\"matrix\" tests=\"1\"><testcase classname=\"matrix.MatrixTest\" name=\"test\" time=\"0.1\"/></testsuite>", "UTF-8");
+                return true;
+            }
+        });
+        p.getPublishersList().add(new JUnitResultArchiver("TEST-*.xml"));
+        TestlabNotifier notifier = new TestlabNotifier("TLABDEMO", null, null, null, null, null, null,
+                new TestlabNotifier.AdvancedSettings(null, Secret.fromString("reallysecretapikey"), null,
+                        new TestlabNotifier.Usingonpremise(stub.getOnpremiseUrl())));
+        notifier.setAggregateMatrixResults(true);
+        p.getPublishersList().add(notifier);
+
+        MatrixBuild build = j.buildAndAssertSuccess(p);
+
+        for(MatrixRun run : build.getExactRuns()) {
+            String log = FileUtils.readFileToString(run.getLogFile());
+            l(log);
+            assertContains(log, "Test results will be published to Testlab with " + build.getFullDisplayName());
+        }
+        String log = FileUtils.readFileToString(build.getLogFile());
+        l(log);
+        assertContains(log, "Publishing 2 test results of 2 configurations with 2 parameter sets to Testlab project: TLABDEMO");
+
+        // an upload per configuration as the axes are sent as the parameters of the upload, all to the same test run
+        assertEquals(2, stub.getUploads().size());
+        Set<String> axes = new TreeSet<String>();
+        for(TestlabStubServer.Request upload : stub.getUploads()) {
+            assertEquals(1, upload.getResult().getResults().size());
+            assertEquals("os", upload.getResult().getParameters().get(0).getKey());
+            axes.add(upload.getResult().getParameters().get(0).getValue());
+            assertEquals(stub.getUploads().get(0).getTestRunId(), upload.getTestRunId());
+        }
+        assertEquals(new TreeSet<String>(Arrays.asList("linux", "windows")), axes);
+    }
+
+    /**
+     * Asserts that configurations with the same parameters are sent in a single upload.
+     */
+    @Test
+    public void testSameParametersMerged() throws Exception {
+        FreeStyleBuild parent = j.buildAndAssertSuccess(j.createFreeStyleProject("parent"));
+        MatrixAggregator aggregator = MatrixAggregator.getInstance();
+        // names of the jobs have no axes
+        aggregator.add(j.buildAndAssertSuccess(j.createFreeStyleProject("first")), parent,
+                createData("matrix.MatrixTest.first"), null, stub.getOnpremiseUrl(), "reallysecretapikey");
+        aggregator.add(j.buildAndAssertSuccess(j.createFreeStyleProject("second")), parent,
+                createData("matrix.MatrixTest.second"), null, stub.getOnpremiseUrl(), "reallysecretapikey");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        aggregator.publish(parent, new StreamTaskListener(out, StandardCharsets.UTF_8));
+        assertContains(out.toString("UTF-8"), "Publishing 2 test results of 2 configurations with 1 parameter sets");
+
+        assertEquals(1, stub.getUploads().size());
+        assertNull(stub.getUploads().get(0).getResult().getParameters());
+        assertEquals(2, stub.getUploads().get(0).getResult().getResults().size());
+    }
+
+    /**
+     * Asserts that the parent build reports configurations handed over whose results are
+     * no longer available.
+     */
+    @Test
+    public void testLostResults() throws Exception {
+        FreeStyleBuild build = j.buildAndAssertSuccess(j.createFreeStyleProject());
+        MatrixAggregator.HandedOver.increment(build);
+        MatrixAggregator.HandedOver.increment(build);
+        assertEquals(2, build.getAction(MatrixAggregator.HandedOver.class).getConfigurations());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MatrixAggregator.getInstance().publish(build, new StreamTaskListener(out, StandardCharsets.UTF_8));
+        assertContains(out.toString("UTF-8"), "Results of 2 configurations were handed over");
+    }
+
+    protected static TestResult createData(String mappingId) {
+        TestResult data = new TestResult();
+        data.setProjectKey("TLABDEMO");
+        data.setTestRunTitle("Matrix test run");
+        TestCaseResult r = new TestCaseResult();
+        r.setMappingId(mappingId);
+        r.setResult(TestCaseResult.RESULT_PASS);
+        data.setResults(new ArrayList<TestCaseResult>(Collections.singletonList(r)));
+        return data;
+    }
+
+    @Override
+    public void setup() throws IOException {
+        super.setup();
+        System.clearProperty("TESTLAB_SENDER_SKIP_SEND");
+        UploadDeduplicator.getInstance().clear();
+        stub = new TestlabStubServer();
+    }
+
+    @After
+    public void tearDown() {
+        stub.close();
+    }
+
+}
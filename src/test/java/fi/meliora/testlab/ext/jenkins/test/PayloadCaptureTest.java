@@ -0,0 +1,161 @@
+package fi.meliora.testlab.ext.jenkins.test;
+
+import fi.meliora.testlab.ext.crest.ObjectMapperFactory;
+import fi.meliora.testlab.ext.jenkins.PayloadCapture;
+import fi.meliora.testlab.ext.jenkins.PayloadReplayer;
+import fi.meliora.testlab.ext.jenkins.TestlabNotifier;
+import fi.meliora.testlab.ext.rest.model.TestResult;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.tasks.junit.JUnitResultArchiver;
+import hudson.util.Secret;
+import jenkins.model.Jenkins;
+import org.junit.After;
+import org.junit.Test;
+import org.jvnet.hudson.test.cli.CLICommandInvoker;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests capturing the payloads sent to Testlab and replaying them.
+ *
+ * @author Meliora Ltd
+ */
+public class PayloadCaptureTest extends TestBase {
+
+    private TestlabStubServer stub;
+
+    /**
+     * Asserts that the payloads are captured instead of sent with TESTLAB_SENDER_SKIP_SEND.
+     */
+    @Test
+    public void testCaptureSkippedSend() throws Exception {
+        System.setProperty("TESTLAB_SENDER_SKIP_SEND", "true");
+        FreeStyleBuild build = j.assertBuildStatus(Result.UNSTABLE, createProject().scheduleBuild2(0));
+
+        assertTrue(stub.getRequests().isEmpty());
+        List<PayloadCapture.Captured> captured = PayloadCapture.list(build);
+        assertEquals(1, captured.size());
+        PayloadCapture.Captured c = captured.get(0);
+        assertEquals(stub.getUrl(), c.getUrl());
+        assertEquals("company", c.getUser());
+        assertEquals("application/json", c.getContentType());
+        assertEquals(3, c.getResults());
+        assertEquals("false", c.getProperty("sent"));
+        assertFalse(c.isCompressed());
+
+        TestResult data = ObjectMapperFactory.getInstance().getMapper().readValue(c.readBody(), TestResult.class);
+        assertEquals("TLABDEMO", data.getProjectKey());
+        assertEquals(3, data.getResults().size());
+    }
+
+    /**
+     * Captures compressed payloads while sending and replays them concurrently.
+     */
+    @Test
+    public void testReplay() throws Exception {
+        System.setProperty("TESTLAB_SENDER_CAPTURE", "gzip");
+        FreeStyleBuild build = j.assertBuildStatus(Result.UNSTABLE, createProject().scheduleBuild2(0));
+        assertEquals(1, stub.getUploads().size());
+
+        List<PayloadCapture.Captured> captured = PayloadCapture.list(build);
+        assertEquals(1, captured.size());
+        assertTrue(captured.get(0).isCompressed());
+        assertTrue(captured.get(0).getFile().getName().endsWith(".json.gz"));
+        assertEquals(String.valueOf(stub.getUploads().get(0).getTestRunId()), captured.get(0).getProperty("testRunId"));
+
+        PayloadReplayer.Summary summary = new PayloadReplayer(null, null, "apikey", 0, 3, System.out).replay(captured, 6);
+        assertEquals(6, summary.getSent());
+        assertEquals(0, summary.getFailed());
+        assertEquals(7, stub.getUploads().size());
+        assertTrue(stub.getMaxInFlight() <= 3);
+        // the exact body is sent again
+        for(TestlabStubServer.Request upload : stub.getUploads())
+            assertEquals(stub.getUploads().get(0).getBytes(), upload.getBytes());
+
+        // failures are counted
+        stub.failNext(503, "Maintenance");
+        summary = new PayloadReplayer(stub.getUrl(), "company", "apikey", 10, 1, System.out).replay(captured, 2);
+        assertEquals(1, summary.getSent());
+        assertEquals(1, summary.getFailed());
+    }
+
+    /**
+     * Asserts that each request sent is captured as sent, including a request which failed.
+     */
+    @Test
+    public void testCaptureFailedRequest() throws Exception {
+        System.setProperty("TESTLAB_SENDER_CAPTURE", "true");
+        System.setProperty("TESTLAB_SENDER_RETRIES", "1");
+        stub.failNext(503, "Maintenance", "0");
+        FreeStyleBuild build = j.assertBuildStatus(Result.UNSTABLE, createProject().scheduleBuild2(0));
+        assertEquals(2, stub.getRequests().size());
+
+        List<PayloadCapture.Captured> captured = PayloadCapture.list(build);
+        assertEquals(2, captured.size());
+        PayloadCapture.Captured failed = captured.get(0), sent = captured.get(1);
+        assertEquals("false", failed.getProperty("sent"));
+        assertNotNull(failed.getProperty("failure"));
+        assertEquals("true", sent.getProperty("sent"));
+        assertEquals(String.valueOf(stub.getUploads().get(0).getTestRunId()), sent.getProperty("testRunId"));
+        // sent with the same key and body on both attempts
+        assertNotNull(sent.getProperty("idempotencyKey"));
+        assertEquals(sent.getProperty("idempotencyKey"), failed.getProperty("idempotencyKey"));
+        assertEquals(stub.getRequests().get(0).getContentType(), failed.getContentType());
+        for(int i = 0; i < 2; i++) {
+            assertEquals(stub.getRequests().get(i).getBytes(), captured.get(i).readBody().length);
+            assertEquals(String.valueOf(captured.get(i).readBody().length), captured.get(i).getProperty("bytes"));
+        }
+    }
+
+    @Test
+    public void testReplayCommand() throws Exception {
+        System.setProperty("TESTLAB_SENDER_SKIP_SEND", "true");
+        FreeStyleProject p = createProject();
+        FreeStyleBuild build = j.assertBuildStatus(Result.UNSTABLE, p.scheduleBuild2(0));
+
+        CLICommandInvoker.Result result = new CLICommandInvoker(j, "testlab-replay")
+                .authorizedTo(Jenkins.ADMINISTER)
+                .invokeWithArgs(p.getFullName(), String.valueOf(build.getNumber()), "-apikey", "apikey", "-repeat", "2");
+        l(result.stdout());
+        assertEquals(0, result.returnCode());
+        assertContains(result.stdout(), "2 sent, 0 failed");
+        assertEquals(2, stub.getUploads().size());
+
+        result = new CLICommandInvoker(j, "testlab-replay")
+                .authorizedTo(Jenkins.READ)
+                .invokeWithArgs(p.getFullName(), String.valueOf(build.getNumber()), "-apikey", "apikey");
+        assertNotEquals(0, result.returnCode());
+        assertEquals(2, stub.getUploads().size());
+    }
+
+    protected FreeStyleProject createProject() throws IOException {
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.getBuildersList().add(new StubPublishTest.ReportBuilder());
+        p.getPublishersList().add(new JUnitResultArchiver("TEST-*.xml"));
+        p.getPublishersList().add(new TestlabNotifier("TLABDEMO", null, null, null, null, null, null,
+                new TestlabNotifier.AdvancedSettings(null, Secret.fromString("reallysecretapikey"), null,
+                        new TestlabNotifier.Usingonpremise(stub.getOnpremiseUrl()))));
+        return p;
+    }
+
+    @Override
+    public void setup() throws IOException {
+        super.setup();
+        System.clearProperty("TESTLAB_SENDER_SKIP_SEND");
+        stub = new TestlabStubServer();
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty("TESTLAB_SENDER_SKIP_SEND");
+        System.clearProperty("TESTLAB_SENDER_CAPTURE");
+        System.clearProperty("TESTLAB_SENDER_RETRIES");
+        stub.close();
+    }
+
+}
@@ -359,6 +359,50 @@ public class PipelineTest extends TestBase {
         assertContains(log, "Publishing test results to Testlab project: TLABDEMO");
     }
 
+    /**
+     * Tests that the testlabPublish step publishes asynchronously and returns to the script.
+     */
+    @Test
+    public void testPublishStep() throws Exception {
+        WorkflowJob pipelineJob = j.jenkins.createProject(WorkflowJob.class, "test-pipeline");
+        pipelineJob.setConcurrentBuild(false);
+
+        String testProjectPath = new File(
+                getClass().getClassLoader().getResource("pipelinetestproject").toURI()
+        ).getAbsolutePath();
+
+        String script = "" +
+                "node {\n" +
+                "    sh 'cd \"" + testProjectPath + "\" && cp -r * \"$WORKSPACE\"'\n" +
+                "    junit '**/surefire-reports/*.xml'\n" +
+                "    def testRunId = testlabPublish(\n" +
+                "        projectKey: 'TLABDEMO',\n" +
+                "        rulesetSettings: [\n" +
+                "            testRunTitle: 'pipelined integration tests'\n" +
+                "        ],\n" +
+                "        advancedSettings: [" +
+                "            companyId: 'testcompany'," +
+                "            apiKey: hudson.util.Secret.fromString('reallysecretapikey')" +
+                "        ]" +
+                "    )\n" +
+                "    echo \"Testlab publish step returned: ${testRunId}\"\n" +
+                "}";
+        if(!SANDBOX) {
+            ScriptApproval.get().preapprove(script, GroovyLanguage.get());
+        }
+        pipelineJob.setDefinition(new CpsFlowDefinition(script, SANDBOX));
+
+        WorkflowRun run = pipelineJob.scheduleBuild2(0).get();
+        String log = FileUtils.readFileToString(run.getLogFile());
+
+        l(log);
+
+        j.assertBuildStatus(Result.UNSTABLE, run);
+        assertContains(log, "Publishing test results to Testlab project: TLABDEMO");
+        // nothing is sent with TESTLAB_SENDER_SKIP_SEND
+        assertContains(log, "Testlab publish step returned: null");
+    }
+
     @Override
     public void setup() throws IOException {
         super.setup();
@@ -0,0 +1,112 @@
+package fi.meliora.testlab.ext.jenkins.test;
+
+import fi.meliora.testlab.ext.crest.CrestEndpointFactory;
+import fi.meliora.testlab.ext.crest.TestResultResource;
+import fi.meliora.testlab.ext.crest.exception.ConflictException;
+import fi.meliora.testlab.ext.jenkins.PublishMetrics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the publish metrics and their JMX export.
+ *
+ * @author Meliora Ltd
+ */
+public class PublishMetricsTest {
+
+    @Before
+    public void setup() {
+        PublishMetrics.getInstance().reset();
+    }
+
+    @After
+    public void teardown() {
+        PublishMetrics.unregister();
+        PublishMetrics.getInstance().reset();
+    }
+
+    @Test
+    public void testHistogram() {
+        PublishMetrics.Histogram histogram = new PublishMetrics.Histogram();
+        for(int i = 1; i <= 100; i++)
+            histogram.update(i);
+
+        PublishMetrics.HistogramSnapshot s = histogram.snapshot();
+        assertEquals(100, s.getCount());
+        assertEquals(50.5d, s.getMean(), 0.01d);
+        assertEquals(100, s.getMax());
+        assertEquals(50, s.getP50());
+        assertEquals(95, s.getP95());
+        assertEquals(99, s.getP99());
+
+        // only the last values are kept for the other values than the count
+        for(int i = 0; i < PublishMetrics.Histogram.SIZE; i++)
+            histogram.update(1000);
+        s = histogram.snapshot();
+        assertEquals(100 + PublishMetrics.Histogram.SIZE, s.getCount());
+        assertEquals(1000, s.getP50());
+        assertEquals(PublishMetrics.Histogram.SIZE, histogram.getValues().length);
+
+        // the histograms are shared with the registry of the Metrics plugin and not reset
+        PublishMetrics m = PublishMetrics.getInstance();
+        long count = m.getQueueWaitMillis().getCount();
+        m.recordQueueWait(10);
+        m.reset();
+        assertEquals(count + 1, m.getQueueWaitMillis().getCount());
+    }
+
+    @Test
+    public void testErrors() {
+        PublishMetrics m = PublishMetrics.getInstance();
+        m.recordError(new RuntimeException(new ConflictException("conflict")));
+        m.recordError(new ConflictException("conflict"));
+        m.recordError(new RuntimeException(new java.net.SocketTimeoutException()));
+
+        Map<String, Long> errors = m.getErrors();
+        assertEquals(Long.valueOf(2), errors.get("ConflictException"));
+        assertEquals(Long.valueOf(1), errors.get("SocketTimeoutException"));
+        assertEquals(0, m.getErrors("NotFoundException"));
+    }
+
+    @Test
+    public void testEndpointCache() {
+        CrestEndpointFactory f = CrestEndpointFactory.getInstance();
+        f.clearCache();
+        long hits = f.getCacheHits(), misses = f.getCacheMisses();
+
+        TestResultResource e1 = f.getEndpoint("http://127.0.0.1:1/api", "company", "apikey", TestResultResource.class);
+        TestResultResource e2 = f.getEndpoint("http://127.0.0.1:1/api", "company", "apikey", TestResultResource.class);
+        TestResultResource e3 = f.getEndpoint("http://127.0.0.1:1/api", "company", "otherkey", TestResultResource.class);
+
+        assertSame(e1, e2);
+        assertNotSame(e1, e3);
+        assertEquals(hits + 1, f.getCacheHits());
+        assertEquals(misses + 2, f.getCacheMisses());
+        assertTrue(PublishMetrics.getInstance().getEndpointCacheHitRate() > 0d);
+    }
+
+    @Test
+    public void testJmx() throws Exception {
+        PublishMetrics.register();
+        PublishMetrics.getInstance().recordQueueWait(10);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(PublishMetrics.OBJECT_NAME);
+        assertTrue(server.isRegistered(name));
+
+        CompositeData wait = (CompositeData) server.getAttribute(name, "QueueWaitMillis");
+        assertEquals(PublishMetrics.getInstance().getQueueWaitMillis().getCount(), wait.get("count"));
+        assertTrue((Long) wait.get("max") >= 10L);
+        assertEquals(0, server.getAttribute(name, "InFlight"));
+    }
+
+}
@@ -0,0 +1,96 @@
+package fi.meliora.testlab.ext.jenkins.test;
+
+import fi.meliora.testlab.ext.jenkins.PublishScheduler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the order in which PublishScheduler lets queued uploads proceed.
+ *
+ * @author Meliora Ltd
+ */
+public class PublishSchedulerTest {
+
+    private final PublishScheduler scheduler = PublishScheduler.getInstance();
+
+    @Before
+    public void setUp() {
+        System.setProperty("TESTLAB_PUBLISH_MAX_INFLIGHT", "1");
+        System.setProperty("TESTLAB_PUBLISH_SMALL_PAYLOAD", "10");
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty("TESTLAB_PUBLISH_MAX_INFLIGHT");
+        System.clearProperty("TESTLAB_PUBLISH_SMALL_PAYLOAD");
+    }
+
+    @Test
+    public void testFairnessAndPriority() throws Exception {
+        final String endpoint = "http://fairness.example.com";
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch blocker = new CountDownLatch(1);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        // holds the only slot until released
+        threads.add(start(endpoint, "blocker", "blocker #1", 1000, order, blocker));
+        waitUntil(() -> scheduler.getInFlightByEndpoint().getOrDefault(endpoint, 0) == 1);
+
+        int queued = scheduler.getQueueDepth();
+        String[][] uploads = {
+                { "huge", "huge #1", "1000" },
+                { "huge", "huge #2", "1000" },
+                { "huge", "huge #3", "1000" },
+                { "other", "other #1", "1000" },
+                { "small", "small #1", "5" }
+        };
+        for(String[] upload : uploads) {
+            threads.add(start(endpoint, upload[0], upload[1], Integer.parseInt(upload[2]), order, null));
+            final int expected = ++queued;
+            waitUntil(() -> scheduler.getQueueDepth() == expected);
+        }
+        assertEquals(uploads.length, scheduler.getQueued().size());
+
+        blocker.countDown();
+        for(Thread t : threads)
+            t.join(10000);
+
+        assertEquals(Arrays.asList("blocker #1", "small #1", "huge #1", "other #1", "huge #2", "huge #3"), order);
+        assertEquals(0, scheduler.getQueueDepth());
+    }
+
+    private Thread start(final String endpoint, final String job, final String build, final int size,
+                         final List<String> order, final CountDownLatch hold) {
+        Thread t = new Thread(() -> {
+            try {
+                scheduler.submit(endpoint, job, build, size, () -> {
+                    order.add(build);
+                    if(hold != null)
+                        hold.await(10, TimeUnit.SECONDS);
+                    return null;
+                });
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        t.start();
+        return t;
+    }
+
+    private static void waitUntil(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long until = System.currentTimeMillis() + 10000;
+        while(!condition.getAsBoolean()) {
+            if(System.currentTimeMillis() > until)
+                fail("condition not met in time");
+            Thread.sleep(10);
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+package fi.meliora.testlab.ext.jenkins.test;
+
+import fi.meliora.testlab.ext.jenkins.ReportScanner;
+import fi.meliora.testlab.ext.rest.model.TestCaseResult;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for scanning JUnit reports for streaming.
+ *
+ * @author Meliora Ltd
+ */
+public class ReportScannerTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final String REPORT = "" +
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<testsuite name=\"fi.meliora.SuiteTest\" tests=\"4\">\n" +
+            "  <testcase classname=\"fi.meliora.SuiteTest\" name=\"passes\" time=\"1.5\"/>\n" +
+            "  <testcase classname=\"fi.meliora.SuiteTest\" name=\"fails\" time=\"1,000.25\">\n" +
+            "    <failure message=\"expected 1\" type=\"java.lang.AssertionError\">stack</failure>\n" +
+            "  </testcase>\n" +
+            "  <testcase classname=\"fi.meliora.SuiteTest\" name=\"errors\"><error message=\"boom\">trace</error></testcase>\n" +
+            "  <testcase name=\"skipped\"><skipped/></testcase>\n" +
+            "</testsuite>\n";
+
+    @Test
+    public void testParse() throws Exception {
+        List<ReportScanner.Case> cases = ReportScanner.parse(new ByteArrayInputStream(REPORT.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(4, cases.size());
+
+        assertEquals("fi.meliora.SuiteTest.passes", cases.get(0).getId());
+        assertEquals(TestCaseResult.RESULT_PASS, cases.get(0).getResult());
+        assertEquals(1.5f, cases.get(0).getDuration(), 0.001f);
+
+        assertEquals(TestCaseResult.RESULT_FAIL, cases.get(1).getResult());
+        assertEquals("expected 1", cases.get(1).getMessage());
+        assertEquals("stack", cases.get(1).getStacktrace());
+        assertEquals(1000.25f, cases.get(1).getDuration(), 0.001f);
+
+        assertEquals(TestCaseResult.RESULT_FAIL, cases.get(2).getResult());
+
+        // class name defaults to the name of the suite
+        assertEquals("fi.meliora.SuiteTest.skipped", cases.get(3).getId());
+        assertEquals(TestCaseResult.RESULT_SKIP, cases.get(3).getResult());
+    }
+
+    @Test
+    public void testIncompleteReportFails() throws Exception {
+        String partial = REPORT.substring(0, REPORT.indexOf("<testcase name=\"skipped\""));
+        try {
+            ReportScanner.parse(new ByteArrayInputStream(partial.getBytes(StandardCharsets.UTF_8)));
+            fail("Incomplete report was parsed.");
+        } catch (javax.xml.stream.XMLStreamException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Tests that a report is read once it has settled and not again unless it changes.
+     */
+    @Test
+    public void testScan() throws Exception {
+        File ws = tmp.newFolder("ws");
+        File report = new File(ws, "build/test-results/TEST-fi.meliora.SuiteTest.xml");
+        FileUtils.writeStringToFile(report, REPORT, StandardCharsets.UTF_8);
+
+        // first seen, waits to settle
+        ReportScanner.Scan scan = new ReportScanner(ReportScanner.DEFAULT_REPORTS,
+                Collections.emptyMap(), Collections.emptyMap(), false).invoke(ws, null);
+        assertTrue(scan.getCases().isEmpty());
+        assertEquals(1, scan.getPending().size());
+
+        // settled
+        scan = new ReportScanner(ReportScanner.DEFAULT_REPORTS, scan.getRead(), scan.getPending(), false).invoke(ws, null);
+        assertEquals(4, scan.getCases().size());
+        assertTrue(scan.getPending().isEmpty());
+
+        // already read
+        scan = new ReportScanner(ReportScanner.DEFAULT_REPORTS, scan.getRead(), scan.getPending(), true).invoke(ws, null);
+        assertTrue(scan.getCases().isEmpty());
+
+        // a new report is read right away when flushing
+        FileUtils.writeStringToFile(new File(ws, "TEST-other.xml"), REPORT, StandardCharsets.UTF_8);
+        scan = new ReportScanner(ReportScanner.DEFAULT_REPORTS, scan.getRead(), scan.getPending(), true).invoke(ws, null);
+        assertEquals(4, scan.getCases().size());
+        assertEquals(2, scan.getRead().size());
+    }
+
+}
@@ -1,11 +1,17 @@
 package fi.meliora.testlab.ext.jenkins.test;
 
 import org.htmlunit.html.*;
+import fi.meliora.testlab.ext.jenkins.CORSFilter;
+import fi.meliora.testlab.ext.jenkins.PublishMetrics;
 import fi.meliora.testlab.ext.jenkins.TestlabNotifier;
 import hudson.model.FreeStyleProject;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
 
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
 /**
  * Jenkins tests for testing meliora testlab plugin's settings.
  *
@@ -401,4 +407,28 @@ public class SettingsTest extends TestBase {
         assertPassword(hiddenApiKeyInput, "1010101010303030");
     }
 
+    /**
+     * Asserts that the requests handled by the CORS filter installed to Jenkins are exported
+     * with the publish metrics.
+     */
+    @Test
+    public void testCorsMetrics() throws Exception {
+        j.jenkins.getDescriptorByType(TestlabNotifier.DescriptorImpl.class);
+        CORSFilter filter = CORSFilter.getInstalled();
+        assertNotNull(filter);
+        filter.configure(true, Collections.singletonList("https://a.example.com"));
+        PublishMetrics m = PublishMetrics.getInstance();
+        long allowed = m.getCorsRequests(), denied = m.getCorsDeniedRequests();
+
+        JenkinsRule.WebClient client = getWebClient();
+        client.getOptions().setThrowExceptionOnFailingStatusCode(false);
+        client.addRequestHeader("Origin", "https://a.example.com");
+        client.goTo("");
+        client.addRequestHeader("Origin", "https://b.example.com");
+        client.goTo("");
+
+        assertEquals(allowed + 1, m.getCorsRequests());
+        assertEquals(denied + 1, m.getCorsDeniedRequests());
+    }
+
 }
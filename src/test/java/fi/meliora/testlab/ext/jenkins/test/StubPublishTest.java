@@ -0,0 +1,363 @@
+package fi.meliora.testlab.ext.jenkins.test;
+
+import fi.meliora.testlab.ext.crest.CrestEndpointFactory;
+import fi.meliora.testlab.ext.crest.UploadDeduplicator;
+import fi.meliora.testlab.ext.crest.WireFormatNegotiator;
+import fi.meliora.testlab.ext.jenkins.MatrixAggregator;
+import fi.meliora.testlab.ext.jenkins.PublishMetrics;
+import fi.meliora.testlab.ext.jenkins.PublishScheduler;
+import fi.meliora.testlab.ext.jenkins.Sender;
+import fi.meliora.testlab.ext.jenkins.TestlabNotifier;
+import fi.meliora.testlab.ext.jenkins.TestlabPublishAction;
+import fi.meliora.testlab.ext.jenkins.test.benchmark.SerializationBenchmark;
+import fi.meliora.testlab.ext.rest.model.AddTestResultResponse;
+import fi.meliora.testlab.ext.rest.model.TestResult;
+import hudson.Launcher;
+import hudson.matrix.AxisList;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixProject;
+import hudson.matrix.TextAxis;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.tasks.junit.JUnitResultArchiver;
+import hudson.util.Secret;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Test;
+import org.jvnet.hudson.test.TestBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests publishing to a local stub of Testlab, see {@link TestlabStubServer}.
+ *
+ * @author Meliora Ltd
+ */
+public class StubPublishTest extends TestBase {
+
+    public static final String REPORT = "" +
+            "<testsuite name=\"stub.StubTest\" tests=\"3\">" +
+            "<testcase classname=\"stub.StubTest\" name=\"passes\" time=\"0.1\"/>" +
+            "<testcase classname=\"stub.StubTest\" name=\"fails\" time=\"0.2\"><failure message=\"expected\">stack</failure></testcase>" +
+            "<testcase classname=\"stub.StubTest\" name=\"skipped\"><skipped/></testcase>" +
+            "</testsuite>";
+
+    private TestlabStubServer stub;
+
+    @Test
+    public void testPublish() throws Exception {
+        FreeStyleBuild build = j.assertBuildStatus(Result.UNSTABLE, createProject().scheduleBuild2(0));
+        String log = FileUtils.readFileToString(build.getLogFile());
+        l(log);
+        assertContains(log, "sending in a single request.");
+
+        assertEquals(1, stub.getUploads().size());
+        TestlabStubServer.Request upload = stub.getUploads().get(0);
+        assertEquals("PUT", upload.getMethod());
+        assertTrue(upload.getAuthorization().startsWith("Basic "));
+        assertEquals("TLABDEMO", upload.getResult().getProjectKey());
+        assertEquals(3, upload.getResult().getResults().size());
+
+        TestlabPublishAction action = build.getAction(TestlabPublishAction.class);
+        assertNotNull(action);
+        assertEquals(upload.getTestRunId(), action.getStats().getTestRunId());
+        assertEquals(upload.getBytes(), action.getStats().getPayloadBytes());
+        assertEquals(1, action.getStats().getFailed());
+    }
+
+    @Test
+    public void testServiceUnavailable() throws Exception {
+        stub.failNext(503, "Testlab is under maintenance");
+        FreeStyleBuild build = j.assertBuildStatus(Result.FAILURE, createProject().scheduleBuild2(0));
+        String log = FileUtils.readFileToString(build.getLogFile());
+        l(log);
+        assertContains(log, "Testlab is under maintenance");
+        assertTrue(stub.getUploads().isEmpty());
+        assertEquals(1, PublishMetrics.getInstance().getErrors("ServiceUnavailableException"));
+    }
+
+    /**
+     * Asserts that an upload is retried as hinted by Testlab when retries are enabled.
+     */
+    @Test
+    public void testRetry() throws Exception {
+        System.setProperty("TESTLAB_SENDER_RETRIES", "2");
+        stub.failNext(503, "Testlab is under maintenance", "0");
+        stub.failNext(429, "Too many requests", "1");
+        FreeStyleBuild build = j.assertBuildStatus(Result.UNSTABLE, createProject().scheduleBuild2(0));
+        l(FileUtils.readFileToString(build.getLogFile()));
+
+        assertEquals(3, stub.getRequests().size());
+        assertEquals(1, stub.getUploads().size());
+        // the same upload on each attempt
+        assertEquals(stub.getRequests().get(0).getHeader("Idempotency-Key"), stub.getUploads().get(0).getHeader("Idempotency-Key"));
+        assertEquals(2, build.getAction(TestlabPublishAction.class).getStats().getRetries());
+
+        // not retried if Testlab refuses the results
+        stub.failNext(400, "Project key is required.");
+        j.assertBuildStatus(Result.FAILURE, createProject().scheduleBuild2(0));
+        assertEquals(4, stub.getRequests().size());
+
+        // a hint longer than the maximum delay falls back to the backoff capped at the maximum
+        System.setProperty("TESTLAB_SENDER_MAX_RETRY_DELAY", "100");
+        stub.failNext(503, "Testlab is under maintenance", "3600");
+        j.assertBuildStatus(Result.UNSTABLE, createProject().scheduleBuild2(0));
+        assertEquals(6, stub.getRequests().size());
+        assertEquals(2, stub.getUploads().size());
+    }
+
+    @Test
+    public void testConnectionReset() throws Exception {
+        // the JDK may resend a request once if the connection is closed without a response
+        stub.resetNext();
+        stub.resetNext();
+        FreeStyleBuild build = j.assertBuildStatus(Result.FAILURE, createProject().scheduleBuild2(0));
+        l(FileUtils.readFileToString(build.getLogFile()));
+        assertFalse(stub.getRequests().isEmpty());
+        assertEquals(0, stub.getRequests().get(0).getStatus());
+        assertTrue(stub.getUploads().isEmpty());
+    }
+
+    /**
+     * Asserts that the time waiting for a slow Testlab is recorded as network time.
+     */
+    @Test
+    public void testSlowTestlab() throws Exception {
+        stub.setLatency(300);
+        stub.setReadBytesPerSecond(64 * 1024);
+        FreeStyleBuild build = j.assertBuildStatus(Result.UNSTABLE, createProject().scheduleBuild2(0));
+        assertEquals(1, stub.getUploads().size());
+        assertTrue(build.getAction(TestlabPublishAction.class).getStats().getNetworkMillis() >= 300);
+    }
+
+    /**
+     * Publishes concurrently and asserts that PublishScheduler limits the uploads in progress.
+     */
+    @Test
+    public void testConcurrentUploads() throws Exception {
+        stub.setLatency(200);
+        FreeStyleBuild build = j.buildAndAssertSuccess(j.createFreeStyleProject("concurrent"));
+        int publishes = 3 * PublishScheduler.getMaxInFlight();
+
+        ExecutorService executor = Executors.newFixedThreadPool(publishes);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for(int i = 0; i < publishes; i++) {
+                // distinct results as identical ones would be skipped as duplicates
+                TestResult data = SerializationBenchmark.createTestResult(100);
+                data.setDescription("Upload " + i);
+                futures.add(executor.submit(() -> Sender.send(null, true, stub.getOnpremiseUrl(), "apikey", data, build)));
+            }
+            for(Future<?> f : futures)
+                f.get();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(publishes, stub.getUploads().size());
+        assertEquals(publishes * 100, stub.getResultCount());
+        assertTrue("Uploads were not concurrent", stub.getMaxInFlight() > 1);
+        assertTrue("More uploads in progress than allowed: " + stub.getMaxInFlight(),
+                stub.getMaxInFlight() <= PublishScheduler.getMaxInFlight());
+    }
+
+    /**
+     * Asserts that identical results are sent once per build with the same idempotency key.
+     */
+    @Test
+    public void testDuplicateSkipped() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject("duplicate");
+        FreeStyleBuild first = j.buildAndAssertSuccess(p);
+        FreeStyleBuild second = j.buildAndAssertSuccess(p);
+        TestResult data = SerializationBenchmark.createTestResult(10);
+
+        AddTestResultResponse response = Sender.send(null, true, stub.getOnpremiseUrl(), "apikey", data, first);
+        assertEquals(response.getTestRunId(), Sender.send(null, true, stub.getOnpremiseUrl(), "apikey", data, first).getTestRunId());
+        assertEquals(1, stub.getUploads().size());
+        assertEquals(1, PublishMetrics.getInstance().getDuplicatesSkipped());
+
+        String key = stub.getUploads().get(0).getHeader("Idempotency-Key");
+        // small results are keyed with the digest of the body sent
+        String url = CrestEndpointFactory.getInstance().getTestlabUrl(null, stub.getOnpremiseUrl());
+        assertEquals(UploadDeduplicator.getInstance().getKey(p.getFullName(), first.getNumber(),
+                WireFormatNegotiator.getInstance().encode(url, data).getBytes()), key);
+        assertEquals(64, key.length());
+
+        // changed results and other builds are sent
+        Sender.send(null, true, stub.getOnpremiseUrl(), "apikey", data, second);
+        data.setDescription("Changed");
+        Sender.send(null, true, stub.getOnpremiseUrl(), "apikey", data, first);
+        assertEquals(3, stub.getUploads().size());
+        assertNotEquals(key, stub.getUploads().get(1).getHeader("Idempotency-Key"));
+        assertNotEquals(key, stub.getUploads().get(2).getHeader("Idempotency-Key"));
+
+        // failed uploads are not remembered
+        data.setDescription("Failing");
+        stub.failNext(503, "Testlab is under maintenance");
+        try {
+            Sender.send(null, true, stub.getOnpremiseUrl(), "apikey", data, first);
+            fail("Expected the upload to fail");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        Sender.send(null, true, stub.getOnpremiseUrl(), "apikey", data, first);
+        assertEquals(4, stub.getUploads().size());
+    }
+
+    /**
+     * Asserts that the bodies differing by any field are keyed apart, that streamed results
+     * are sent with random keys without checking for duplicates and that the duplicates are
+     * sent with random keys when not skipped.
+     */
+    @Test
+    public void testDuplicateKeys() throws Exception {
+        UploadDeduplicator dedupe = UploadDeduplicator.getInstance();
+        TestResult data = SerializationBenchmark.createTestResult(10);
+        String url = CrestEndpointFactory.getInstance().getTestlabUrl(null, stub.getOnpremiseUrl());
+        String key = dedupe.getKey("job", 1, WireFormatNegotiator.getInstance().encode(url, data).getBytes());
+        data.getResults().get(0).setComment("Changed");
+        assertNotEquals(key, dedupe.getKey("job", 1, WireFormatNegotiator.getInstance().encode(url, data).getBytes()));
+
+        FreeStyleBuild build = j.buildAndAssertSuccess(j.createFreeStyleProject());
+        System.setProperty("TESTLAB_SENDER_STREAMING_THRESHOLD", "100");
+        Sender.send(null, true, stub.getOnpremiseUrl(), "apikey", data, build);
+        Sender.send(null, true, stub.getOnpremiseUrl(), "apikey", data, build);
+        assertEquals(2, stub.getUploads().size());
+        assertNotEquals(stub.getUploads().get(0).getHeader("Idempotency-Key"), stub.getUploads().get(1).getHeader("Idempotency-Key"));
+        assertEquals(0, PublishMetrics.getInstance().getDuplicatesSkipped());
+        System.clearProperty("TESTLAB_SENDER_STREAMING_THRESHOLD");
+
+        System.setProperty("TESTLAB_SENDER_DEDUPE_SIZE", "0");
+        Sender.send(null, true, stub.getOnpremiseUrl(), "apikey", data, build);
+        Sender.send(null, true, stub.getOnpremiseUrl(), "apikey", data, build);
+        assertEquals(4, stub.getUploads().size());
+        assertNotEquals(stub.getUploads().get(2).getHeader("Idempotency-Key"), stub.getUploads().get(3).getHeader("Idempotency-Key"));
+    }
+
+    /**
+     * Asserts that the aggregated results of a multi-configuration build are sent in chunks
+     * by their estimated size as any results.
+     */
+    @Test
+    public void testMatrixChunks() throws Exception {
+        // each of the 3 results of a configuration is estimated larger than a chunk of 300 bytes
+        System.setProperty("TESTLAB_SENDER_STREAMING_THRESHOLD", "1000");
+        System.setProperty("TESTLAB_SENDER_CHUNKED_THRESHOLD", "1200");
+        MatrixProject p = j.jenkins.createProject(MatrixProject.class, "matrix");
+        p.setAxes(new AxisList(new TextAxis("os", "linux", "windows")));
+        p.getBuildersList().add(new ReportBuilder());
+        p.getPublishersList().add(new JUnitResultArchiver("TEST-*.xml"));
+        TestlabNotifier notifier = createNotifier();
+        notifier.setAggregateMatrixResults(true);
+        p.getPublishersList().add(notifier);
+
+        MatrixBuild build = j.assertBuildStatus(Result.UNSTABLE, p.scheduleBuild2(0));
+        String log = FileUtils.readFileToString(build.getLogFile());
+        l(log);
+        assertContains(log, "sending in 3 chunks in parallel.");
+
+        // 3 results of each configuration in 3 uploads, all to the same test run
+        assertEquals(6, stub.getUploads().size());
+        assertEquals(6, stub.getResultCount());
+        Set<String> axes = new HashSet<String>();
+        for(TestlabStubServer.Request upload : stub.getUploads()) {
+            TestResult result = upload.getResult();
+            assertEquals(1, result.getResults().size());
+            assertEquals(stub.getUploads().get(0).getTestRunId(), upload.getTestRunId());
+            // the axes of the configuration are the test case parameters of the upload
+            assertEquals(1, result.getParameters().size());
+            assertEquals("os", result.getParameters().get(0).getKey());
+            axes.add(result.getParameters().get(0).getValue());
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("linux", "windows")), axes);
+        assertNull(build.getAction(MatrixAggregator.HandedOver.class));
+    }
+
+    /**
+     * Asserts that results estimated larger than the chunked threshold are sent in chunks
+     * to the test run created by the first chunk.
+     */
+    @Test
+    public void testChunkedUpload() throws Exception {
+        // each of the 3 results is estimated larger than a chunk of 300 bytes
+        System.setProperty("TESTLAB_SENDER_STREAMING_THRESHOLD", "1000");
+        System.setProperty("TESTLAB_SENDER_CHUNKED_THRESHOLD", "1200");
+        FreeStyleBuild build = j.assertBuildStatus(Result.UNSTABLE, createProject().scheduleBuild2(0));
+        String log = FileUtils.readFileToString(build.getLogFile());
+        l(log);
+        assertContains(log, "sending in 3 chunks in parallel.");
+
+        assertEquals(3, stub.getUploads().size());
+        assertEquals(3, stub.getResultCount());
+        Long testRunId = stub.getUploads().get(0).getTestRunId();
+        for(TestlabStubServer.Request upload : stub.getUploads()) {
+            assertEquals(1, upload.getResult().getResults().size());
+            assertEquals(testRunId, upload.getTestRunId());
+        }
+
+        TestlabPublishAction action = build.getAction(TestlabPublishAction.class);
+        assertEquals(testRunId, action.getStats().getTestRunId());
+        assertEquals(3, action.getStats().getUploads());
+        assertEquals(3, action.getStats().getTotal());
+    }
+
+    protected FreeStyleProject createProject() throws IOException {
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.getBuildersList().add(new ReportBuilder());
+        p.getPublishersList().add(new JUnitResultArchiver("TEST-*.xml"));
+        p.getPublishersList().add(createNotifier());
+        return p;
+    }
+
+    protected TestlabNotifier createNotifier() {
+        TestlabNotifier.RulesetSettings rulesetSettings = new TestlabNotifier.RulesetSettings();
+        rulesetSettings.setTestRunTitle("Stub test run");
+        return new TestlabNotifier("TLABDEMO", null, rulesetSettings, null, null, null, null,
+                new TestlabNotifier.AdvancedSettings(null, Secret.fromString("reallysecretapikey"), null,
+                        new TestlabNotifier.Usingonpremise(stub.getOnpremiseUrl())));
+    }
+
+    /**
+     * Writes a JUnit report of 3 test cases to the workspace.
+     */
+    public static class ReportBuilder extends TestBuilder {
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+            build.getWorkspace().child("TEST-stub.xml").write(REPORT, "UTF-8");
+            return true;
+        }
+    }
+
+    @Override
+    public void setup() throws IOException {
+        super.setup();
+        System.clearProperty("TESTLAB_SENDER_SKIP_SEND");
+        PublishMetrics.getInstance().reset();
+        UploadDeduplicator.getInstance().clear();
+        stub = new TestlabStubServer();
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty("TESTLAB_SENDER_RETRIES");
+        System.clearProperty("TESTLAB_SENDER_MAX_RETRY_DELAY");
+        System.clearProperty("TESTLAB_SENDER_DEDUPE_SIZE");
+        System.clearProperty("TESTLAB_SENDER_STREAMING_THRESHOLD");
+        System.clearProperty("TESTLAB_SENDER_CHUNKED_THRESHOLD");
+        stub.close();
+    }
+
+}
@@ -0,0 +1,382 @@
+package fi.meliora.testlab.ext.jenkins.test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import fi.meliora.testlab.ext.crest.ObjectMapperFactory;
+import fi.meliora.testlab.ext.rest.model.TestResult;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A local stub of Testlab's REST API for tests: implements PUT /api/testresult, decodes and
+ * validates the JSON or Smile encoded results and records each request.
+ *
+ * Faults can be injected: latency before responding, failing responses (such as 503 SERVICE
+ * UNAVAILABLE), connections closed without a response and slow reading of the request body.
+ *
+ * <pre>
+ *     try(TestlabStubServer stub = new TestlabStubServer()) {
+ *         stub.failNext(503, "Maintenance");
+ *         ... publish to stub.getOnpremiseUrl() ...
+ *         assertEquals(1, stub.getUploads().size());
+ *     }
+ * </pre>
+ *
+ * @author Meliora Ltd
+ */
+public class TestlabStubServer implements AutoCloseable {
+    public static final String SMILE = "application/x-jackson-smile";
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final List<Request> requests = new CopyOnWriteArrayList<Request>();
+    private final ConcurrentLinkedQueue<Fault> faults = new ConcurrentLinkedQueue<Fault>();
+    private final Map<String, Long> testRuns = new ConcurrentHashMap<String, Long>();
+    private final AtomicLong testRunIds = new AtomicLong(1000);
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    private volatile boolean acceptSmile = true;
+    private volatile long latencyMillis = 0;
+    private volatile int readBytesPerSecond = 0;
+
+    public TestlabStubServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/testresult", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * @return url of the api, as resolved by CrestEndpointFactory.getTestlabUrl
+     */
+    public String getUrl() {
+        return getOnpremiseUrl() + "api";
+    }
+
+    /**
+     * @return url to configure as the on-premise Testlab
+     */
+    public String getOnpremiseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * @param acceptSmile if false, Smile encoded requests are answered with 415 UNSUPPORTED MEDIA TYPE
+     */
+    public void setAcceptSmile(boolean acceptSmile) {
+        this.acceptSmile = acceptSmile;
+    }
+
+    /**
+     * @param latencyMillis time to wait before responding to each request
+     */
+    public void setLatency(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * @param readBytesPerSecond rate of reading the request bodies, 0 for unlimited
+     */
+    public void setReadBytesPerSecond(int readBytesPerSecond) {
+        this.readBytesPerSecond = readBytesPerSecond;
+    }
+
+    /**
+     * Responds to the next request with a status and body instead of handling it.
+     *
+     * @param status HTTP status
+     * @param body response body
+     */
+    public void failNext(int status, String body) {
+        failNext(status, body, null);
+    }
+
+    /**
+     * Responds to the next request with a status, body and a Retry-After header instead of
+     * handling it.
+     *
+     * @param status HTTP status
+     * @param body response body
+     * @param retryAfter value of the Retry-After header, null for none
+     */
+    public void failNext(int status, String body, String retryAfter) {
+        faults.add(new Fault(status, body, retryAfter));
+    }
+
+    /**
+     * Closes the connection of the next request without responding.
+     */
+    public void resetNext() {
+        faults.add(new Fault(0, null, null));
+    }
+
+    /**
+     * @return all requests received, including the failed ones
+     */
+    public List<Request> getRequests() {
+        return requests;
+    }
+
+    /**
+     * @return requests whose results were accepted
+     */
+    public List<Request> getUploads() {
+        List<Request> uploads = new CopyOnWriteArrayList<Request>();
+        for(Request r : requests) {
+            if(r.status == 200)
+                uploads.add(r);
+        }
+        return uploads;
+    }
+
+    /**
+     * @return number of results accepted
+     */
+    public int getResultCount() {
+        int count = 0;
+        for(Request r : getUploads())
+            count += r.result.getResults() != null ? r.result.getResults().size() : 0;
+        return count;
+    }
+
+    /**
+     * @return most requests handled at the same time
+     */
+    public int getMaxInFlight() {
+        return maxInFlight.get();
+    }
+
+    public void reset() {
+        requests.clear();
+        faults.clear();
+        maxInFlight.set(0);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    protected void handle(HttpExchange exchange) throws IOException {
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        Request request = new Request(exchange);
+        try {
+            long started = System.nanoTime();
+            byte[] wire = read(exchange.getRequestBody(), readBytesPerSecond);
+            request.readMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            request.bytes = wire.length;
+
+            if(latencyMillis > 0)
+                Thread.sleep(latencyMillis);
+
+            Fault fault = faults.poll();
+            if(fault != null && fault.status == 0) {
+                // no response, the client sees the connection closed
+                request.status = 0;
+                requests.add(request);
+                exchange.close();
+                return;
+            }
+            if(fault != null) {
+                if(fault.retryAfter != null)
+                    exchange.getResponseHeaders().add("Retry-After", fault.retryAfter);
+                respond(exchange, request, fault.status, "text/plain", fault.body);
+                return;
+            }
+            if(!"PUT".equals(exchange.getRequestMethod())) {
+                respond(exchange, request, 405, "text/plain", "Method not allowed");
+                return;
+            }
+            if(request.authorization == null || !request.authorization.startsWith("Basic ")) {
+                respond(exchange, request, 401, "text/plain", "Unauthorized");
+                return;
+            }
+            boolean smile = request.contentType != null && request.contentType.startsWith(SMILE);
+            if(smile && !acceptSmile) {
+                respond(exchange, request, 415, "text/plain", "Unsupported media type");
+                return;
+            }
+
+            byte[] body = wire;
+            if("gzip".equalsIgnoreCase(request.contentEncoding))
+                body = read(new GZIPInputStream(new ByteArrayInputStream(wire)), 0);
+            request.decodedBytes = body.length;
+            TestResult result;
+            try {
+                result = smile
+                        ? ObjectMapperFactory.getInstance().getSmileMapper().readValue(body, TestResult.class)
+                        : ObjectMapperFactory.getInstance().getMapper().readValue(body, TestResult.class);
+            } catch (IOException e) {
+                respond(exchange, request, 400, "text/plain", "Could not decode the results: " + e.getMessage());
+                return;
+            }
+            request.result = result;
+            if(result.getProjectKey() == null || result.getProjectKey().isEmpty()) {
+                respond(exchange, request, 400, "text/plain", "Project key is required.");
+                return;
+            }
+            if((result.getResults() == null || result.getResults().isEmpty()) && result.getXml() == null) {
+                respond(exchange, request, 400, "text/plain", "No results.");
+                return;
+            }
+
+            // results of the same test run title go to the same test run, as in Testlab
+            Long testRunId = result.getTestRunId();
+            if(testRunId == null)
+                testRunId = testRuns.computeIfAbsent(result.getProjectKey() + "#" + result.getTestRunTitle(), k -> testRunIds.incrementAndGet());
+            request.testRunId = testRunId;
+            respond(exchange, request, 200, "application/json", "{\"testRunId\":" + testRunId + "}");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exchange.close();
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private static byte[] read(InputStream in, int rate) throws IOException, InterruptedException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[rate > 0 ? Math.max(1, Math.min(8192, rate / 10)) : 8192];
+        int n;
+        while((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+            if(rate > 0)
+                Thread.sleep(Math.max(1, n * 1000L / rate));
+        }
+        return out.toByteArray();
+    }
+
+    private void respond(HttpExchange exchange, Request request, int status, String contentType, String body) throws IOException {
+        request.status = status;
+        requests.add(request);
+        byte[] bytes = body != null ? body.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length > 0 ? bytes.length : -1);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    /**
+     * A request received.
+     */
+    public static class Request {
+        private final String method;
+        private final String contentType;
+        private final String contentEncoding;
+        private final String authorization;
+        private final Map<String, List<String>> headers;
+        private int status;
+        private long bytes;
+        private long decodedBytes;
+        private long readMillis;
+        private TestResult result;
+        private Long testRunId;
+
+        Request(HttpExchange exchange) {
+            this.method = exchange.getRequestMethod();
+            this.contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            this.contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+            this.authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            this.headers = new ConcurrentHashMap<String, List<String>>(exchange.getRequestHeaders());
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getContentEncoding() {
+            return contentEncoding;
+        }
+
+        public String getAuthorization() {
+            return authorization;
+        }
+
+        /**
+         * @param name header name, case-insensitive
+         * @return first value of the header or null
+         */
+        public String getHeader(String name) {
+            for(Map.Entry<String, List<String>> e : headers.entrySet()) {
+                if(e.getKey().equalsIgnoreCase(name) && !e.getValue().isEmpty())
+                    return e.getValue().get(0);
+            }
+            return null;
+        }
+
+        /**
+         * @return HTTP status responded, 0 if the connection was closed without a response
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return bytes of the body as received
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return bytes of the body after decompressing
+         */
+        public long getDecodedBytes() {
+            return decodedBytes;
+        }
+
+        public long getReadMillis() {
+            return readMillis;
+        }
+
+        /**
+         * @return results decoded, null if not decoded
+         */
+        public TestResult getResult() {
+            return result;
+        }
+
+        public Long getTestRunId() {
+            return testRunId;
+        }
+    }
+
+    private static final class Fault {
+        private final int status;
+        private final String body;
+        private final String retryAfter;
+
+        Fault(int status, String body, String retryAfter) {
+            this.status = status;
+            this.body = body;
+            this.retryAfter = retryAfter;
+        }
+    }
+
+}
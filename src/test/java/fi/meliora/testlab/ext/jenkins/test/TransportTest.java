@@ -0,0 +1,264 @@
+package fi.meliora.testlab.ext.jenkins.test;
+
+import fi.meliora.testlab.ext.crest.AdaptiveTimeouts;
+import fi.meliora.testlab.ext.crest.CrestEndpointFactory;
+import fi.meliora.testlab.ext.crest.CrestTransport;
+import fi.meliora.testlab.ext.crest.ErrorHandler;
+import fi.meliora.testlab.ext.crest.HttpClientTransport;
+import fi.meliora.testlab.ext.crest.ObjectMapperFactory;
+import fi.meliora.testlab.ext.crest.PayloadEstimator;
+import fi.meliora.testlab.ext.crest.PublishStats;
+import fi.meliora.testlab.ext.crest.TestlabTransport;
+import fi.meliora.testlab.ext.crest.WireFormatNegotiator;
+import fi.meliora.testlab.ext.crest.exception.ServiceUnavailableException;
+import fi.meliora.testlab.ext.crest.exception.TestlabAPIException;
+import fi.meliora.testlab.ext.crest.exception.UnauthorizedException;
+import fi.meliora.testlab.ext.crest.exception.ValidationException;
+import fi.meliora.testlab.ext.jenkins.PublishMetrics;
+import fi.meliora.testlab.ext.jenkins.test.benchmark.SerializationBenchmark;
+import fi.meliora.testlab.ext.rest.model.AddTestResultResponse;
+import fi.meliora.testlab.ext.rest.model.TestResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.UncheckedIOException;
+import java.net.http.HttpTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests sending results with {@link HttpClientTransport} to a local stub server and the
+ * adaptive timeouts of the transport.
+ *
+ * @author Meliora Ltd
+ */
+public class TransportTest {
+
+    private TestlabStubServer stub;
+    private String url;
+
+    @Before
+    public void setup() throws Exception {
+        stub = new TestlabStubServer();
+        url = stub.getUrl();
+        WireFormatNegotiator.getInstance().reset();
+        AdaptiveTimeouts.getInstance().reset();
+    }
+
+    @After
+    public void teardown() {
+        System.clearProperty("TESTLAB_SENDER_TRANSPORT");
+        System.clearProperty("TESTLAB_SENDER_WIRE_FORMAT");
+        System.clearProperty("TESTLAB_SENDER_READ_TIMEOUT");
+        System.clearProperty("TESTLAB_SENDER_MAX_READ_TIMEOUT");
+        System.clearProperty("TESTLAB_SENDER_STREAMING_THRESHOLD");
+        System.clearProperty("TESTLAB_SENDER_CHUNKED_THRESHOLD");
+        WireFormatNegotiator.getInstance().reset();
+        AdaptiveTimeouts.getInstance().reset();
+        stub.close();
+    }
+
+    /**
+     * Streams a payload of many chunks and asserts that the stub receives all of it.
+     */
+    @Test
+    public void testStreamedUpload() throws Exception {
+        TestResult data = SerializationBenchmark.createTestResult(20000);
+
+        PublishStats stats = PublishStats.start();
+        AddTestResultResponse response;
+        try {
+            response = getTransport().addTestResult(data, WireFormatNegotiator.WireFormat.JSON, "key");
+        } finally {
+            PublishStats.stop();
+        }
+
+        assertEquals(1, stub.getUploads().size());
+        TestlabStubServer.Request upload = stub.getUploads().get(0);
+        assertEquals(upload.getTestRunId(), response.getTestRunId());
+        assertEquals(20000, upload.getResult().getResults().size());
+        assertEquals("key", upload.getHeader("Idempotency-Key"));
+        assertTrue(upload.getAuthorization().startsWith("Basic "));
+        assertTrue(upload.getContentType().startsWith("application/json"));
+        assertEquals(upload.getBytes(), stats.getPayloadBytes());
+        assertTrue(stats.getPayloadBytes() > 16 * 1024);
+    }
+
+    /**
+     * Asserts that the fallback from Smile to JSON works with the transport.
+     */
+    @Test
+    public void testSmileFallback() throws Exception {
+        System.setProperty("TESTLAB_SENDER_WIRE_FORMAT", "smile");
+        stub.setAcceptSmile(false);
+
+        WireFormatNegotiator.getInstance().addTestResult(url, getTransport(), SerializationBenchmark.createTestResult(10), "key");
+
+        assertEquals(2, stub.getRequests().size());
+        assertEquals(415, stub.getRequests().get(0).getStatus());
+        assertEquals(1, stub.getUploads().size());
+        assertTrue(stub.getUploads().get(0).getContentType().startsWith("application/json"));
+        assertEquals(WireFormatNegotiator.WireFormat.JSON, WireFormatNegotiator.getInstance().getFormat(url));
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        TestResult data = SerializationBenchmark.createTestResult(10);
+
+        stub.failNext(503, "Testlab is under maintenance");
+        try {
+            getTransport().addTestResult(data, WireFormatNegotiator.WireFormat.JSON, "key");
+            fail("Expected ServiceUnavailableException");
+        } catch (ServiceUnavailableException e) {
+            assertEquals("Testlab is under maintenance", e.getResponseData());
+        }
+
+        stub.failNext(401, "Invalid api key");
+        try {
+            getTransport().addTestResult(data, WireFormatNegotiator.WireFormat.JSON, "key");
+            fail("Expected UnauthorizedException");
+        } catch (UnauthorizedException e) {
+            // expected
+        }
+        assertTrue(stub.getUploads().isEmpty());
+    }
+
+    /**
+     * Asserts that only the start of a large error response is read and that the status and
+     * the retry hint are passed with the exception.
+     */
+    @Test
+    public void testErrorResponse() throws Exception {
+        StringBuilder page = new StringBuilder("<html><body>Bad gateway");
+        while(page.length() < 5 * 1024 * 1024)
+            page.append("<p>Lorem ipsum dolor sit amet</p>");
+        stub.failNext(502, page.toString(), "2");
+        try {
+            getTransport().addTestResult(SerializationBenchmark.createTestResult(10), WireFormatNegotiator.WireFormat.JSON, "key");
+            fail("Expected TestlabAPIException");
+        } catch (TestlabAPIException e) {
+            assertEquals(502, e.getStatus());
+            assertEquals(Long.valueOf(2000L), e.getRetryAfterMillis());
+            assertTrue(e.isRetryable());
+            String responseData = (String) e.getResponseData();
+            assertTrue(responseData.startsWith("<html><body>Bad gateway"));
+            assertEquals(ErrorHandler.MAX_RESPONSE_CHARS + "...".length(), responseData.length());
+        }
+
+        stub.failNext(400, "Project key is required.");
+        try {
+            getTransport().addTestResult(SerializationBenchmark.createTestResult(10), WireFormatNegotiator.WireFormat.JSON, "key");
+            fail("Expected ValidationException");
+        } catch (ValidationException e) {
+            assertEquals(400, e.getStatus());
+            assertNull(e.getRetryAfterMillis());
+            assertFalse(e.isRetryable());
+            assertEquals("Project key is required.", e.getResponseData());
+        }
+
+        assertEquals(Long.valueOf(120000L), ErrorHandler.parseRetryAfter(" 120 "));
+        assertEquals(Long.valueOf(0L), ErrorHandler.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT"));
+        assertNull(ErrorHandler.parseRetryAfter("soon"));
+        assertNull(ErrorHandler.parseRetryAfter(null));
+    }
+
+    /**
+     * Sends asynchronously and asserts that the uploads are in progress concurrently.
+     */
+    @Test
+    public void testAsync() throws Exception {
+        stub.setLatency(200);
+        List<CompletableFuture<AddTestResultResponse>> futures = new ArrayList<CompletableFuture<AddTestResultResponse>>();
+        for(int i = 0; i < 8; i++) {
+            TestResult data = SerializationBenchmark.createTestResult(100);
+            data.setTestRunTitle("Async run " + i);
+            futures.add(getTransport().addTestResultAsync(data, WireFormatNegotiator.WireFormat.JSON, "key" + i));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+
+        assertEquals(8, stub.getUploads().size());
+        assertTrue("Uploads were not concurrent", stub.getMaxInFlight() > 1);
+    }
+
+    /**
+     * Asserts that the estimates follow the uploads observed and scale the read timeout.
+     */
+    @Test
+    public void testAdaptiveTimeouts() throws Exception {
+        AdaptiveTimeouts timeouts = AdaptiveTimeouts.getInstance();
+        TestResult data = SerializationBenchmark.createTestResult(10000);
+
+        // 1 MB at the assumed 50 kB/s
+        int slow = timeouts.getReadTimeout(url, 1024 * 1024);
+        assertEquals(AdaptiveTimeouts.DEFAULT_READ_TIMEOUT + (long) (3 * 1024 * 1024 / AdaptiveTimeouts.DEFAULT_THROUGHPUT), slow);
+        assertEquals(AdaptiveTimeouts.DEFAULT_READ_TIMEOUT, timeouts.getReadTimeout(url, 0));
+        assertEquals(AdaptiveTimeouts.DEFAULT_MAX_READ_TIMEOUT, timeouts.getReadTimeout(url, Long.MAX_VALUE / 1024));
+
+        getTransport().addTestResult(data, WireFormatNegotiator.WireFormat.JSON, "key");
+        assertTrue(timeouts.getThroughputs().containsKey(url));
+        // a local stub is faster than the assumed throughput
+        assertTrue(timeouts.getReadTimeout(url, 1024 * 1024) < slow);
+        assertTrue(PublishMetrics.getInstance().getIngestThroughput().containsKey(url));
+
+        // the base and max timeouts are configurable
+        System.setProperty("TESTLAB_SENDER_READ_TIMEOUT", "1000");
+        System.setProperty("TESTLAB_SENDER_MAX_READ_TIMEOUT", "2000");
+        assertEquals(1000, timeouts.getReadTimeout(url, 0));
+        assertEquals(2000, timeouts.getReadTimeout(url, Long.MAX_VALUE / 1024));
+    }
+
+    /**
+     * Asserts that a request times out if Testlab does not respond in the read timeout.
+     */
+    @Test
+    public void testReadTimeout() throws Exception {
+        System.setProperty("TESTLAB_SENDER_READ_TIMEOUT", "300");
+        System.setProperty("TESTLAB_SENDER_MAX_READ_TIMEOUT", "300");
+        stub.setLatency(3000);
+        long started = System.currentTimeMillis();
+        try {
+            getTransport().addTestResult(SerializationBenchmark.createTestResult(10), WireFormatNegotiator.WireFormat.JSON, "key");
+            fail("Expected a timeout");
+        } catch (UncheckedIOException e) {
+            assertTrue(e.getCause() instanceof HttpTimeoutException);
+        }
+        assertTrue(System.currentTimeMillis() - started < 3000);
+    }
+
+    /**
+     * Asserts that the estimated size of a payload is close to its serialized size.
+     */
+    @Test
+    public void testPayloadEstimate() throws Exception {
+        TestResult data = SerializationBenchmark.createTestResult(1000);
+        long bytes = ObjectMapperFactory.getInstance().getTestResultWriter().writeValueAsBytes(data).length;
+        long estimate = PayloadEstimator.estimate(data);
+        assertTrue("Estimated " + estimate + " bytes of " + bytes, estimate > bytes / 2 && estimate < bytes * 2);
+
+        assertEquals(PayloadEstimator.Strategy.SINGLE, PayloadEstimator.getStrategy(data, estimate));
+        System.setProperty("TESTLAB_SENDER_STREAMING_THRESHOLD", "1024");
+        assertEquals(PayloadEstimator.Strategy.STREAMING, PayloadEstimator.getStrategy(data, estimate));
+        System.setProperty("TESTLAB_SENDER_CHUNKED_THRESHOLD", "4096");
+        assertEquals(PayloadEstimator.Strategy.CHUNKED, PayloadEstimator.getStrategy(data, estimate));
+        // robot output is not split
+        data.setXml("<robot/>");
+        assertEquals(PayloadEstimator.Strategy.STREAMING, PayloadEstimator.getStrategy(data, estimate));
+    }
+
+    @Test
+    public void testTransportType() {
+        CrestEndpointFactory ef = CrestEndpointFactory.getInstance();
+        assertTrue(ef.getTransport(url, "company", "apikey") instanceof HttpClientTransport);
+        System.setProperty("TESTLAB_SENDER_TRANSPORT", "crest");
+        assertTrue(ef.getTransport(url, "company", "apikey") instanceof CrestTransport);
+    }
+
+    protected TestlabTransport getTransport() {
+        return CrestEndpointFactory.getInstance().getTransport(url, "company", "apikey");
+    }
+
+}
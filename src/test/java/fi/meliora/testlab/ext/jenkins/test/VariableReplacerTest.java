@@ -0,0 +1,100 @@
+package fi.meliora.testlab.ext.jenkins.test;
+
+import fi.meliora.testlab.ext.jenkins.LayeredVariables;
+import fi.meliora.testlab.ext.jenkins.VariableReplacer;
+import fi.meliora.testlab.ext.jenkins.VariableTemplate;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for replacing variable tags.
+ *
+ * @author Meliora Ltd
+ */
+public class VariableReplacerTest {
+
+    @Test
+    public void testReplace() {
+        Map<String, String> vars = new HashMap<String, String>();
+        vars.put("BUILD_NUMBER", "12");
+        vars.put("JOB_NAME", "my job");
+        Map<String, String> additional = new HashMap<String, String>();
+        additional.put("BUILD_RESULT", "SUCCESS");
+        VariableReplacer vr = new VariableReplacer(vars, additional);
+
+        assertEquals("my job #12 SUCCESS", vr.replace("${JOB_NAME} #${BUILD_NUMBER} ${BUILD_RESULT}"));
+        assertEquals("no tags", vr.replace("no tags"));
+        assertEquals("${MISSING} 12", vr.replace("${MISSING} ${BUILD_NUMBER}"));
+        assertEquals("unclosed ${BUILD_NUMBER", vr.replace("unclosed ${BUILD_NUMBER"));
+        assertEquals("${A12", vr.replace("${A${BUILD_NUMBER}"));
+        assertEquals("", vr.replace(""));
+        assertNull(vr.replace((String)null));
+    }
+
+    /**
+     * Values are inserted as they are, earlier '$' and '\' in values broke the replace.
+     */
+    @Test
+    public void testSpecialCharactersInValues() {
+        Map<String, String> vars = new HashMap<String, String>();
+        vars.put("PATH", "C:\\Program Files\\$HOME");
+        vars.put("NESTED", "${PATH}");
+        VariableReplacer vr = new VariableReplacer(vars);
+
+        assertEquals("path: C:\\Program Files\\$HOME", vr.replace("path: ${PATH}"));
+        assertEquals("${PATH}", vr.replace("${NESTED}"));
+    }
+
+    @Test
+    public void testCompiledTemplate() {
+        VariableTemplate t = VariableTemplate.compile("${A}-${B}-${A}");
+        assertTrue(t.hasVariables());
+        assertEquals(3, t.getVariableNames().size());
+
+        Map<String, String> vars = new HashMap<String, String>();
+        vars.put("A", "1");
+        assertEquals("1-${B}-1", t.render(vars));
+        vars.put("B", "2");
+        assertEquals("1-2-1", t.render(vars));
+
+        assertFalse(VariableTemplate.compile("plain").hasVariables());
+        assertNull(VariableTemplate.compile(null).render(vars));
+    }
+
+    @Test
+    public void testLayeredVariables() {
+        Map<String, String> env = new HashMap<String, String>();
+        env.put("BUILD_NUMBER", "12");
+        env.put("BUILD_RESULT", "from env");
+        Map<String, String> additional = new HashMap<String, String>();
+        additional.put("BUILD_RESULT", "SUCCESS");
+        LayeredVariables vars = new LayeredVariables(env, additional);
+
+        assertEquals("SUCCESS", vars.get("BUILD_RESULT"));
+        assertEquals("12", vars.get("BUILD_NUMBER"));
+        assertNull(vars.get("MISSING"));
+        assertEquals(2, vars.size());
+        assertEquals("SUCCESS", new HashMap<String, String>(vars).get("BUILD_RESULT"));
+
+        // not copied, changes in layers are visible
+        env.put("JOB_NAME", "job");
+        assertEquals("job", vars.get("JOB_NAME"));
+
+        LayeredVariables more = vars.withLayer(Collections.singletonMap("BUILD_NUMBER", "13"));
+        assertEquals("13", more.get("BUILD_NUMBER"));
+        assertEquals("12", vars.get("BUILD_NUMBER"));
+
+        try {
+            vars.put("A", "B");
+            fail("layered variables should be read-only");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+package fi.meliora.testlab.ext.jenkins.test;
+
+import fi.meliora.testlab.ext.crest.CrestEndpointFactory;
+import fi.meliora.testlab.ext.crest.ObjectMapperFactory;
+import fi.meliora.testlab.ext.crest.PublishStats;
+import fi.meliora.testlab.ext.crest.TestResultResource;
+import fi.meliora.testlab.ext.crest.WireFormatNegotiator;
+import fi.meliora.testlab.ext.crest.exception.ValidationException;
+import fi.meliora.testlab.ext.jenkins.test.benchmark.SerializationBenchmark;
+import fi.meliora.testlab.ext.rest.model.AddTestResultResponse;
+import fi.meliora.testlab.ext.rest.model.TestResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests sending results in binary Smile format to a local stub server and the fallback
+ * to JSON.
+ *
+ * @author Meliora Ltd
+ */
+public class WireFormatTest {
+
+    private TestlabStubServer stub;
+    private String url;
+
+    @Before
+    public void setup() throws Exception {
+        stub = new TestlabStubServer();
+        url = stub.getUrl();
+
+        WireFormatNegotiator.getInstance().reset();
+        System.setProperty("TESTLAB_SENDER_WIRE_FORMAT", "smile");
+    }
+
+    @After
+    public void teardown() {
+        System.clearProperty("TESTLAB_SENDER_WIRE_FORMAT");
+        System.clearProperty("TESTLAB_SENDER_JSON_ONLY_TTL");
+        WireFormatNegotiator.getInstance().reset();
+        stub.close();
+    }
+
+    /**
+     * Sends results as Smile and asserts that the stub decodes the same results.
+     */
+    @Test
+    public void testSmileRoundTrip() throws Exception {
+        TestResult data = SerializationBenchmark.createTestResult(100);
+
+        AddTestResultResponse response = WireFormatNegotiator.getInstance().addTestResult(url, getEndpoint(), data);
+
+        assertEquals(1, stub.getUploads().size());
+        TestlabStubServer.Request upload = stub.getUploads().get(0);
+        assertEquals(upload.getTestRunId(), response.getTestRunId());
+        assertTrue(upload.getContentType().startsWith(TestlabStubServer.SMILE));
+
+        TestResult decoded = upload.getResult();
+        assertEquals(data.getProjectKey(), decoded.getProjectKey());
+        assertEquals(data.getDescription(), decoded.getDescription());
+        assertEquals(data.getResults().size(), decoded.getResults().size());
+        for(int i = 0; i < data.getResults().size(); i++) {
+            assertEquals(data.getResults().get(i).getMappingId(), decoded.getResults().get(i).getMappingId());
+            assertEquals(data.getResults().get(i).getResult(), decoded.getResults().get(i).getResult());
+            assertEquals(data.getResults().get(i).getComment(), decoded.getResults().get(i).getComment());
+        }
+        assertTrue(
+                "Smile payload should be smaller than JSON",
+                ObjectMapperFactory.getInstance().getSmileTestResultWriter().writeValueAsBytes(data).length
+                        < ObjectMapperFactory.getInstance().getTestResultWriter().writeValueAsBytes(data).length
+        );
+    }
+
+    /**
+     * Asserts that results are resent as JSON if the server does not accept Smile and
+     * that JSON is used from there on.
+     */
+    @Test
+    public void testFallbackToJson() throws Exception {
+        stub.setAcceptSmile(false);
+        TestResult data = SerializationBenchmark.createTestResult(10);
+
+        AddTestResultResponse response = WireFormatNegotiator.getInstance().addTestResult(url, getEndpoint(), data);
+        List<TestlabStubServer.Request> requests = stub.getRequests();
+        assertEquals(2, requests.size());
+        assertEquals(415, requests.get(0).getStatus());
+        assertTrue(requests.get(1).getContentType().startsWith("application/json"));
+        assertEquals(requests.get(1).getTestRunId(), response.getTestRunId());
+
+        response = WireFormatNegotiator.getInstance().addTestResult(url, getEndpoint(), data);
+        assertEquals(3, requests.size());
+        assertTrue(requests.get(2).getContentType().startsWith("application/json"));
+        assertEquals(requests.get(2).getTestRunId(), response.getTestRunId());
+        assertEquals(2, stub.getUploads().size());
+    }
+
+    /**
+     * Asserts that invalid results are not resent as JSON and do not disable Smile.
+     */
+    @Test
+    public void testValidationNotFallback() throws Exception {
+        stub.failNext(400, "Project key is required.");
+        try {
+            WireFormatNegotiator.getInstance().addTestResult(url, getEndpoint(), SerializationBenchmark.createTestResult(10));
+            fail("Expected ValidationException");
+        } catch (ValidationException e) {
+            assertEquals("Project key is required.", e.getResponseData());
+        }
+        assertEquals(1, stub.getRequests().size());
+        assertEquals(WireFormatNegotiator.WireFormat.SMILE, WireFormatNegotiator.getInstance().getFormat(url));
+
+        // a 400 telling the content type is not readable falls back
+        stub.failNext(400, "Unsupported Content-Type: application/x-jackson-smile");
+        WireFormatNegotiator.getInstance().addTestResult(url, getEndpoint(), SerializationBenchmark.createTestResult(10));
+        assertEquals(3, stub.getRequests().size());
+        assertTrue(stub.getRequests().get(2).getContentType().startsWith("application/json"));
+        assertEquals(WireFormatNegotiator.WireFormat.JSON, WireFormatNegotiator.getInstance().getFormat(url));
+    }
+
+    /**
+     * Asserts that Smile is tried again when the fallback to JSON expires.
+     */
+    @Test
+    public void testJsonOnlyExpires() throws Exception {
+        stub.setAcceptSmile(false);
+        WireFormatNegotiator.getInstance().addTestResult(url, getEndpoint(), SerializationBenchmark.createTestResult(10));
+        assertEquals(WireFormatNegotiator.WireFormat.JSON, WireFormatNegotiator.getInstance().getFormat(url));
+
+        System.setProperty("TESTLAB_SENDER_JSON_ONLY_TTL", "0");
+        assertEquals(WireFormatNegotiator.WireFormat.SMILE, WireFormatNegotiator.getInstance().getFormat(url));
+        stub.setAcceptSmile(true);
+        WireFormatNegotiator.getInstance().addTestResult(url, getEndpoint(), SerializationBenchmark.createTestResult(10));
+        assertTrue(stub.getUploads().get(1).getContentType().startsWith(TestlabStubServer.SMILE));
+    }
+
+    /**
+     * Asserts that the uploads, retries and bytes of the requests are recorded to the
+     * statistics of the publish.
+     */
+    @Test
+    public void testPublishStats() throws Exception {
+        stub.setAcceptSmile(false);
+        TestResult data = SerializationBenchmark.createTestResult(10);
+
+        PublishStats stats = PublishStats.start();
+        try {
+            WireFormatNegotiator.getInstance().addTestResult(url, getEndpoint(), data);
+        } finally {
+            PublishStats.stop();
+        }
+        assertNull(PublishStats.current());
+        assertEquals(2, stats.getUploads());
+        assertEquals(1, stats.getRetries());
+        int smile = ObjectMapperFactory.getInstance().getSmileTestResultWriter().writeValueAsBytes(data).length;
+        int json = ObjectMapperFactory.getInstance().getTestResultWriter().writeValueAsBytes(data).length;
+        assertEquals(smile + json, stats.getPayloadBytes());
+    }
+
+    protected TestResultResource getEndpoint() {
+        return CrestEndpointFactory.getInstance().getEndpoint(url, "company", "apikey", TestResultResource.class);
+    }
+
+}
@@ -0,0 +1,107 @@
+package fi.meliora.testlab.ext.jenkins.test.benchmark;
+
+import jenkins.benchmark.jmh.BenchmarkFinder;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs all JMH benchmarks annotated with @JmhBenchmark. Not run as part of the regular
+ * test suite, run the benchmarks with
+ *
+ * mvn -Dbenchmark test
+ *
+ * The results are written as JSON to benchmark.result (system property, defaults to
+ * target/jmh-report.json). To compare the results to an earlier run, such as the report of
+ * the previous release, pass its report as benchmark.baseline. The changes are printed and
+ * if benchmark.maxRegression (percent) is set, the run fails if a benchmark got slower by more.
+ *
+ * @author Meliora Ltd
+ */
+public class BenchmarkRunner {
+
+    @Test
+    public void runJmhBenchmarks() throws Exception {
+        String result = System.getProperty("benchmark.result", "target/jmh-report.json");
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .mode(Mode.AverageTime)
+                .timeUnit(TimeUnit.MICROSECONDS)
+                .warmupIterations(3)
+                .measurementIterations(5)
+                .forks(1)
+                .shouldFailOnError(true)
+                .shouldDoGC(true)
+                .resultFormat(ResultFormatType.JSON)
+                .result(result);
+
+        BenchmarkFinder finder = new BenchmarkFinder(getClass());
+        finder.findBenchmarks(options);
+        new Runner(options.build()).run();
+
+        String baseline = System.getProperty("benchmark.baseline");
+        if(baseline != null && baseline.length() > 0)
+            compare(new File(baseline), new File(result), Double.parseDouble(System.getProperty("benchmark.maxRegression", "-1")));
+    }
+
+    /**
+     * Prints the change of each benchmark to the baseline.
+     *
+     * @param baseline report of the baseline run
+     * @param report report of this run
+     * @param maxRegression maximum slowdown in percent, negative to not fail
+     */
+    protected static void compare(File baseline, File report, double maxRegression) throws Exception {
+        Map<String, Double> before = readScores(baseline);
+        Map<String, Double> after = readScores(report);
+        StringBuilder regressions = new StringBuilder();
+        System.out.println("Benchmark results compared to " + baseline + ":");
+        for(Map.Entry<String, Double> e : after.entrySet()) {
+            Double b = before.get(e.getKey());
+            if(b == null || b == 0d) {
+                System.out.println(String.format("  %-100s %12.3f (new)", e.getKey(), e.getValue()));
+                continue;
+            }
+            // average time, a higher score is slower
+            double change = (e.getValue() - b) / b * 100d;
+            System.out.println(String.format("  %-100s %12.3f %+8.1f%%", e.getKey(), e.getValue(), change));
+            if(maxRegression >= 0 && change > maxRegression)
+                regressions.append("\n  ").append(e.getKey()).append(String.format(" %+.1f%%", change));
+        }
+        assertTrue("Benchmarks regressed by more than " + maxRegression + "%:" + regressions, regressions.length() == 0);
+    }
+
+    /**
+     * @param report JMH report in JSON
+     * @return benchmark and its parameters -> score
+     */
+    protected static Map<String, Double> readScores(File report) throws Exception {
+        Map<String, Double> scores = new TreeMap<String, Double>();
+        for(JsonNode benchmark : new ObjectMapper().readTree(report)) {
+            StringBuilder key = new StringBuilder(benchmark.get("benchmark").getTextValue());
+            JsonNode params = benchmark.get("params");
+            if(params != null) {
+                Iterator<Map.Entry<String, JsonNode>> fields = params.getFields();
+                while(fields.hasNext()) {
+                    Map.Entry<String, JsonNode> f = fields.next();
+                    key.append(' ').append(f.getKey()).append('=').append(f.getValue().getTextValue());
+                }
+            }
+            scores.put(key.toString(), benchmark.get("primaryMetric").get("score").getDoubleValue());
+        }
+        return scores;
+    }
+
+}
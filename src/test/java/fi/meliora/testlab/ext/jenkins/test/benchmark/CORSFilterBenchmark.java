@@ -0,0 +1,140 @@
+package fi.meliora.testlab.ext.jenkins.test.benchmark;
+
+import fi.meliora.testlab.ext.jenkins.CORSFilter;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.lang.reflect.Proxy;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the per request overhead of CORSFilter with stubbed servlet requests. The filter
+ * runs on every request the controller serves, for reference legacyListLookup repeats the
+ * List based origin lookup and per request encoding the filter used to do.
+ *
+ * @author Meliora Ltd
+ */
+@JmhBenchmark
+@State(Scope.Benchmark)
+public class CORSFilterBenchmark {
+
+    @Param({"1", "50"})
+    public int origins;
+
+    private CORSFilter filter;
+    private CORSFilter disabledFilter;
+    private CORSFilter allowAllFilter;
+    private CORSFilter patternFilter;
+    private List<String> originList;
+
+    private ServletRequest allowedRequest;
+    private ServletRequest patternRequest;
+    private ServletRequest preflightRequest;
+    private ServletRequest deniedRequest;
+    private ServletRequest noOriginRequest;
+    private ServletResponse response;
+    private FilterChain chain;
+
+    @Setup
+    public void setup() {
+        originList = new ArrayList<String>();
+        for(int i = 0; i < origins; i++)
+            originList.add("https://tenant" + i + ".melioratestlab.com");
+
+        filter = new CORSFilter();
+        filter.configure(true, originList);
+        disabledFilter = new CORSFilter();
+        allowAllFilter = new CORSFilter();
+        List<String> all = new ArrayList<String>();
+        all.add("*");
+        allowAllFilter.configure(true, all);
+        patternFilter = new CORSFilter();
+        List<String> patterns = new ArrayList<String>();
+        for(int i = 0; i < origins; i++)
+            patterns.add("https://*.tenant" + i + ".melioratestlab.com");
+        patternFilter.configure(true, patterns);
+
+        allowedRequest = createRequest("GET", originList.get(originList.size() - 1));
+        preflightRequest = createRequest("OPTIONS", originList.get(originList.size() - 1));
+        patternRequest = createRequest("GET", "https://ci.tenant" + (origins - 1) + ".melioratestlab.com");
+        deniedRequest = createRequest("GET", "https://elsewhere.example.com");
+        noOriginRequest = createRequest("GET", null);
+        response = (ServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { HttpServletResponse.class }, (proxy, method, args) -> null);
+        chain = (request, response) -> { };
+    }
+
+    /**
+     * @param method HTTP method
+     * @param origin value of the Origin header or null
+     * @return a request stub answering getMethod and getHeader("Origin")
+     */
+    public static HttpServletRequest createRequest(String method, String origin) {
+        return (HttpServletRequest) Proxy.newProxyInstance(CORSFilterBenchmark.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class }, (proxy, m, args) -> {
+                    if("getMethod".equals(m.getName()))
+                        return method;
+                    if("getHeader".equals(m.getName()) && "Origin".equals(args[0]))
+                        return origin;
+                    return null;
+                });
+    }
+
+    @Benchmark
+    public void disabled() throws Exception {
+        disabledFilter.doFilter(allowedRequest, response, chain);
+    }
+
+    @Benchmark
+    public void noOrigin() throws Exception {
+        filter.doFilter(noOriginRequest, response, chain);
+    }
+
+    @Benchmark
+    public void allowedOrigin() throws Exception {
+        filter.doFilter(allowedRequest, response, chain);
+    }
+
+    @Benchmark
+    public void preflight() throws Exception {
+        filter.doFilter(preflightRequest, response, chain);
+    }
+
+    @Benchmark
+    public void deniedOrigin() throws Exception {
+        filter.doFilter(deniedRequest, response, chain);
+    }
+
+    @Benchmark
+    public void allowAll() throws Exception {
+        allowAllFilter.doFilter(allowedRequest, response, chain);
+    }
+
+    @Benchmark
+    public void patternOrigin() throws Exception {
+        patternFilter.doFilter(patternRequest, response, chain);
+    }
+
+    @Benchmark
+    public void patternDenied() throws Exception {
+        patternFilter.doFilter(deniedRequest, response, chain);
+    }
+
+    @Benchmark
+    public void legacyListLookup(Blackhole bh) throws Exception {
+        String origin = ((HttpServletRequest) allowedRequest).getHeader("Origin");
+        if(originList.contains("*") || originList.contains(origin))
+            bh.consume(URLEncoder.encode(origin, StandardCharsets.UTF_8.name()));
+        bh.consume(Boolean.valueOf(System.getProperty("cors.options", "true")));
+    }
+
+}
@@ -0,0 +1,64 @@
+package fi.meliora.testlab.ext.jenkins.test.benchmark;
+
+import fi.meliora.testlab.ext.crest.ObjectMapperFactory;
+import fi.meliora.testlab.ext.crest.PublishStats;
+import fi.meliora.testlab.ext.rest.model.TestResult;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.codegist.crest.serializer.jackson.JsonEntityWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures serializing the results of a publish to a request entity with JsonEntityWriter,
+ * with and without recording the publish statistics.
+ *
+ * @author Meliora Ltd
+ */
+@JmhBenchmark
+@State(Scope.Benchmark)
+public class JsonEntityWriterBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int cases;
+
+    private JsonEntityWriter.JsonEncodedFormJacksonSerializer serializer;
+    private List<org.codegist.crest.param.Param> params;
+
+    @Setup
+    public void setup() {
+        ObjectMapperFactory.getInstance().warmUp();
+        serializer = new JsonEntityWriter.JsonEncodedFormJacksonSerializer(null);
+        params = Collections.singletonList(createParam(SerializationBenchmark.createTestResult(cases)));
+    }
+
+    @Benchmark
+    public void serialize() throws Exception {
+        serializer.serialize(params, StandardCharsets.UTF_8, OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public void serializeRecorded() throws Exception {
+        PublishStats stats = PublishStats.start();
+        try {
+            serializer.serialize(params, StandardCharsets.UTF_8, stats.record(OutputStream.nullOutputStream()));
+        } finally {
+            PublishStats.stop();
+        }
+    }
+
+    /**
+     * @param data results
+     * @return a form parameter stub holding the results as CRest passes them to the writer
+     */
+    protected static org.codegist.crest.param.Param createParam(TestResult data) {
+        return (org.codegist.crest.param.Param) Proxy.newProxyInstance(JsonEntityWriterBenchmark.class.getClassLoader(),
+                new Class<?>[] { org.codegist.crest.param.Param.class },
+                (proxy, method, args) -> "getValue".equals(method.getName()) ? Collections.<Object>singletonList(data) : null);
+    }
+
+}
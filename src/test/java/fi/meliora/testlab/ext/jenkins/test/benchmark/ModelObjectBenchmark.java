@@ -0,0 +1,37 @@
+package fi.meliora.testlab.ext.jenkins.test.benchmark;
+
+import fi.meliora.testlab.ext.rest.model.TestResult;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the reflective ModelObject.toString the model objects use, for example when
+ * the data sent is logged.
+ *
+ * @author Meliora Ltd
+ */
+@JmhBenchmark
+@State(Scope.Benchmark)
+public class ModelObjectBenchmark {
+
+    @Param({"10", "100"})
+    public int cases;
+
+    private TestResult data;
+
+    @Setup
+    public void setup() {
+        data = SerializationBenchmark.createTestResult(cases);
+    }
+
+    @Benchmark
+    public String toStringTestResult() {
+        return data.toString();
+    }
+
+    @Benchmark
+    public String toStringTestCaseResult() {
+        return data.getResults().get(0).toString();
+    }
+
+}
@@ -0,0 +1,136 @@
+package fi.meliora.testlab.ext.jenkins.test.benchmark;
+
+import fi.meliora.testlab.ext.jenkins.Sender;
+import fi.meliora.testlab.ext.rest.model.TestCaseResult;
+import hudson.tasks.junit.TestResultAction;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import jenkins.model.Jenkins;
+import org.apache.commons.io.FileUtils;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.tap4j.plugin.TapTestResultAction;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures converting the test results of a build to Testlab results: synthetic JUnit and
+ * TAP reports are published by a Pipeline build of a temporary Jenkins and the results of
+ * the build are parsed with Sender.parseResult.
+ *
+ * @author Meliora Ltd
+ */
+@JmhBenchmark
+public class ParseResultBenchmark {
+    // number of test cases in the reports
+    public static final int CASES = 1000;
+
+    public static class JenkinsState extends JmhBenchmarkState {
+        private WorkflowRun run;
+        private Object junitResult;
+        private Object tapResult;
+        private File reports;
+
+        @Override
+        public void setup() throws Exception {
+            reports = Files.createTempDirectory("testlab-benchmark").toFile();
+            writeJUnitReports(reports, CASES);
+            writeTapReport(new File(reports, "results.tap"), CASES);
+
+            WorkflowJob job = Jenkins.get().createProject(WorkflowJob.class, "benchmark");
+            job.setDefinition(new CpsFlowDefinition("" +
+                    "node {\n" +
+                    "    dir('" + reports.getAbsolutePath().replace('\\', '/') + "') {\n" +
+                    "        junit 'TEST-*.xml'\n" +
+                    "        step([$class: 'TapPublisher', testResults: '*.tap'])\n" +
+                    "    }\n" +
+                    "}", true));
+            run = job.scheduleBuild2(0).get();
+            junitResult = run.getAction(TestResultAction.class).getResult();
+            tapResult = run.getAction(TapTestResultAction.class).getResult();
+        }
+
+        @Override
+        public void tearDown() {
+            FileUtils.deleteQuietly(reports);
+        }
+    }
+
+    @Benchmark
+    public void parseJUnit(JenkinsState state, Blackhole bh) {
+        List<TestCaseResult> results = new ArrayList<TestCaseResult>();
+        Sender.parseResult(state.run, state.junitResult, results, "Jenkins job: benchmark", false, false, true, true, null);
+        bh.consume(results);
+    }
+
+    @Benchmark
+    public void parseTap(JenkinsState state, Blackhole bh) {
+        List<TestCaseResult> results = new ArrayList<TestCaseResult>();
+        Sender.parseResult(state.run, state.tapResult, results, "Jenkins job: benchmark", true, false, true, true, "tap");
+        bh.consume(results);
+    }
+
+    @Benchmark
+    public void parseTapAsSteps(JenkinsState state, Blackhole bh) {
+        List<TestCaseResult> results = new ArrayList<TestCaseResult>();
+        Sender.parseResult(state.run, state.tapResult, results, "Jenkins job: benchmark", true, true, true, true, "tap");
+        bh.consume(results);
+    }
+
+    @Benchmark
+    public TestCaseResult getTestCaseResult(JenkinsState state) {
+        return Sender.getTestCaseResult(state.run, "fi.meliora.benchmark.SomeTest.testMethod", TestCaseResult.RESULT_FAIL,
+                "java.lang.AssertionError: expected:<1> but was:<2>",
+                "java.lang.AssertionError: expected:<1> but was:<2>\n\tat org.junit.Assert.fail(Assert.java:88)",
+                "Jenkins job: benchmark", 1.5f);
+    }
+
+    /**
+     * Writes JUnit reports of 100 test cases each, every tenth test case failing.
+     *
+     * @param dir directory
+     * @param cases number of test cases
+     */
+    public static void writeJUnitReports(File dir, int cases) throws Exception {
+        for(int suite = 0; suite * 100 < cases; suite++) {
+            String className = "fi.meliora.benchmark.Suite" + suite + "Test";
+            StringBuilder sb = new StringBuilder();
+            sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                    .append("<testsuite name=\"").append(className).append("\" tests=\"100\">\n");
+            for(int i = suite * 100; i < Math.min(cases, (suite + 1) * 100); i++) {
+                sb.append("  <testcase classname=\"").append(className).append("\" name=\"testMethod").append(i).append("\" time=\"0.05\"");
+                if(i % 10 == 0) {
+                    sb.append(">\n    <failure message=\"expected:&lt;1&gt; but was:&lt;2&gt;\" type=\"java.lang.AssertionError\">")
+                            .append("java.lang.AssertionError: expected:&lt;1&gt; but was:&lt;2&gt;\n\tat org.junit.Assert.fail(Assert.java:88)")
+                            .append("</failure>\n  </testcase>\n");
+                } else {
+                    sb.append("/>\n");
+                }
+            }
+            sb.append("</testsuite>\n");
+            FileUtils.writeStringToFile(new File(dir, "TEST-" + className + ".xml"), sb.toString(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Writes a TAP stream, every tenth test not ok.
+     *
+     * @param file file
+     * @param tests number of tests
+     */
+    public static void writeTapReport(File file, int tests) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        sb.append("1..").append(tests).append('\n');
+        for(int i = 1; i <= tests; i++)
+            sb.append(i % 10 == 0 ? "not ok " : "ok ").append(i).append(" - test").append(i).append('\n');
+        FileUtils.writeStringToFile(file, sb.toString(), StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,73 @@
+package fi.meliora.testlab.ext.jenkins.test.benchmark;
+
+import fi.meliora.testlab.ext.crest.ObjectMapperFactory;
+import fi.meliora.testlab.ext.rest.model.TestCaseResult;
+import fi.meliora.testlab.ext.rest.model.TestResult;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.codehaus.jackson.map.ObjectWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares serializing a TestResult with a cold, newly constructed ObjectMapper (as
+ * done per writer before) to the shared pre-warmed ObjectWriter.
+ *
+ * @author Meliora Ltd
+ */
+@JmhBenchmark
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+
+    @Param({"10", "1000"})
+    public int cases;
+
+    private TestResult data;
+
+    @Setup
+    public void setup() {
+        ObjectMapperFactory.getInstance().warmUp();
+        data = createTestResult(cases);
+    }
+
+    @Benchmark
+    public void coldMapper() throws Exception {
+        ObjectWriter writer = ObjectMapperFactory.createObjectMapper().writerWithType(TestResult.class);
+        writer.writeValue(OutputStream.nullOutputStream(), data);
+    }
+
+    @Benchmark
+    public void warmSharedWriter() throws Exception {
+        ObjectMapperFactory.getInstance().getTestResultWriter().writeValue(OutputStream.nullOutputStream(), data);
+    }
+
+    /**
+     * @param cases number of test case results
+     * @return a TestResult resembling a typical junit publish
+     */
+    public static TestResult createTestResult(int cases) {
+        TestResult data = new TestResult();
+        data.setProjectKey("BENCH");
+        data.setAutomationSourceTitle("benchmark-job");
+        data.setTestRunTitle("Benchmark run");
+        data.setDescription("Jenkins build: benchmark #1 SUCCESS");
+        data.setUser("Jenkins job: benchmark");
+        List<TestCaseResult> results = new ArrayList<TestCaseResult>(cases);
+        for(int i = 0; i < cases; i++) {
+            TestCaseResult r = new TestCaseResult();
+            r.setMappingId("fi.meliora.benchmark.SomeTest.testMethod" + i);
+            r.setResult(i % 10 == 0 ? TestCaseResult.RESULT_FAIL : TestCaseResult.RESULT_PASS);
+            r.setStarted(1500000000000L);
+            r.setRun(1500000000000L + i);
+            r.setRunBy("Jenkins job: benchmark");
+            if(i % 10 == 0)
+                r.setComment("java.lang.AssertionError: expected:<1> but was:<2>\n\tat org.junit.Assert.fail(Assert.java:88)");
+            results.add(r);
+        }
+        data.setResults(results);
+        return data;
+    }
+
+}
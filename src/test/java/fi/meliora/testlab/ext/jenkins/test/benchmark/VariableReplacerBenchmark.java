@@ -0,0 +1,108 @@
+package fi.meliora.testlab.ext.jenkins.test.benchmark;
+
+import fi.meliora.testlab.ext.jenkins.TestlabNotifier;
+import fi.meliora.testlab.ext.jenkins.VariableReplacer;
+import fi.meliora.testlab.ext.jenkins.VariableTemplate;
+import hudson.EnvVars;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compares the earlier regex based variable replacement to compiled templates by rendering
+ * the templates a typical publish renders with a realistically sized environment.
+ *
+ * @author Meliora Ltd
+ */
+@JmhBenchmark
+@State(Scope.Benchmark)
+public class VariableReplacerBenchmark {
+
+    public static final String[] TEMPLATES = new String[] {
+            "TLABDEMO",
+            TestlabNotifier.DEFAULT_AUTOMATIONSOURCE,
+            "M${BUILD_NUMBER}",
+            "Nightly tests ${JOB_NAME}",
+            TestlabNotifier.DEFAULT_DESCRIPTION_TEMPLATE,
+            "${GIT_BRANCH}",
+            "integration-${NODE_NAME}",
+            "jenkins nightly",
+            "agentsmith",
+            "default",
+            "${BUILD_URL}",
+            "BROWSER, USERNAME"
+    };
+
+    @Param({"150"})
+    public int variables;
+
+    private Map<String, String> envVars;
+    private Map<String, String> additionalKeys;
+    private VariableReplacer replacer;
+    private VariableTemplate[] compiled;
+
+    @Setup
+    public void setup() {
+        envVars = createEnvVars(variables);
+        additionalKeys = new HashMap<String, String>();
+        additionalKeys.put("BUILD_FULL_DISPLAY_NAME", "benchmark #1234");
+        additionalKeys.put("BUILD_STATUS", "stable");
+        additionalKeys.put("BUILD_RESULT", "SUCCESS");
+        replacer = new VariableReplacer(envVars, additionalKeys);
+        compiled = new VariableTemplate[TEMPLATES.length];
+        for(int i = 0; i < TEMPLATES.length; i++)
+            compiled[i] = VariableTemplate.compile(TEMPLATES[i]);
+    }
+
+    @Benchmark
+    public void legacyRegexReplace(Blackhole bh) {
+        Map<String, String> vars = replacer.getVars();
+        for(String template : TEMPLATES)
+            bh.consume(legacyReplace(vars, template));
+    }
+
+    @Benchmark
+    public void compileAndRender(Blackhole bh) {
+        for(String template : TEMPLATES)
+            bh.consume(replacer.replace(template));
+    }
+
+    @Benchmark
+    public void renderCompiled(Blackhole bh) {
+        for(VariableTemplate template : compiled)
+            bh.consume(replacer.replace(template));
+    }
+
+    /**
+     * The replace implementation prior to compiled templates.
+     */
+    protected static String legacyReplace(Map<String, String> vars, String src) {
+        String result = src;
+        for(Map.Entry<String, String> e : vars.entrySet()) {
+            String tag = "\\$\\{" + e.getKey() + "\\}";
+            result = result.replaceAll(tag, e.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * @param variables number of variables
+     * @return environment resembling one of a Jenkins build
+     */
+    public static EnvVars createEnvVars(int variables) {
+        EnvVars env = new EnvVars();
+        env.put("BUILD_NUMBER", "1234");
+        env.put("BUILD_URL", "https://jenkins.example.com/job/benchmark/1234/");
+        env.put("JOB_NAME", "benchmark");
+        env.put("NODE_NAME", "agent-7");
+        env.put("GIT_BRANCH", "origin/master");
+        env.put("WORKSPACE", "/var/jenkins/workspace/benchmark");
+        for(int i = env.size(); i < variables; i++)
+            env.put("ENV_VARIABLE_" + i, "/some/path/value/of/variable/" + i);
+        return env;
+    }
+
+}